@@ -0,0 +1,79 @@
+package com.formulacalculator.benchmarks;
+
+import com.formulacalculator.Backend;
+import com.formulacalculator.CompiledFormula;
+import com.formulacalculator.FormulaCalculator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per row of evaluating columns of arguments, row by row with a slot
+ * array versus {@code evaluateBatch}. The forked JVM enables the Vector API
+ * so that the {@code VECTOR} backend is measured with SIMD loops.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class BatchBenchmark {
+
+    static final int ROWS = 4096;
+
+    @Param({"ARITHMETIC", "NESTED_POSITIONAL"})
+    public Formulas formula;
+
+    @Param({"INTERPRETER", "BYTECODE", "VECTOR"})
+    public Backend backend;
+
+    private CompiledFormula compiled;
+    private double[][] columns;
+    private double[] slots;
+    private double[] out;
+
+    @Setup
+    public void setUp() {
+        compiled = FormulaCalculator.compile(formula.text(), backend);
+        Random random = new Random(42);
+        columns = new double[formula.argumentCount()][ROWS];
+        for (double[] column : columns) {
+            for (int i = 0; i < ROWS; i++) {
+                column[i] = 0.5 + random.nextDouble() * 100;
+            }
+        }
+        slots = new double[columns.length];
+        out = new double[ROWS];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] rowByRow() {
+        for (int row = 0; row < ROWS; row++) {
+            for (int slot = 0; slot < slots.length; slot++) {
+                slots[slot] = columns[slot][row];
+            }
+            out[row] = compiled.evaluate(slots);
+        }
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] batch() {
+        compiled.evaluateBatch(columns, out);
+        return out;
+    }
+}
@@ -0,0 +1,63 @@
+package com.formulacalculator.benchmarks;
+
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmark suite the way releases are compared.
+ *
+ * Without arguments every benchmark runs once single-threaded and once with
+ * one thread per available processor, with the GC profiler attached so that
+ * allocation per operation is reported. Benchmarks that run their own thread
+ * pool, such as {@link ParallelBatchBenchmark}, only take part in the
+ * single-threaded pass. Each pass writes a JSON result file,
+ * {@code jmh-result-1t.json} and {@code jmh-result-<N>t.json}, into the
+ * directory given by the {@code jmh.resultDir} system property (default
+ * {@code target}). Any arguments are passed to the standard JMH command line
+ * instead, e.g. {@code -l} to list benchmarks or {@code EvaluateBenchmark -t 8}.
+ */
+public final class BenchmarkRunner {
+
+    /** Benchmarks that parallelize internally; more benchmark threads would only contend for their pool */
+    private static final String[] SINGLE_THREADED = {ParallelBatchBenchmark.class.getName()};
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        File resultDir = new File(System.getProperty("jmh.resultDir", "target"));
+        resultDir.mkdirs();
+        int cores = Runtime.getRuntime().availableProcessors();
+        run(1, resultDir);
+        if (cores > 1) {
+            run(cores, resultDir);
+        }
+    }
+
+    private static void run(int threads, File resultDir) throws RunnerException {
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.include("com\\.formulacalculator\\.benchmarks\\..*Benchmark");
+        if (threads > 1) {
+            for (String benchmark : SINGLE_THREADED) {
+                builder.exclude(benchmark.replace(".", "\\."));
+            }
+        }
+        Options options = builder
+            .threads(threads)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(new File(resultDir, "jmh-result-" + threads + "t.json").getPath())
+            .build();
+        new Runner(options).run();
+    }
+}
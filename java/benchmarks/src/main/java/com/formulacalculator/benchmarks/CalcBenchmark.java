@@ -0,0 +1,75 @@
+package com.formulacalculator.benchmarks;
+
+import com.formulacalculator.FormulaCache;
+import com.formulacalculator.FormulaCalculator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of FormulaCalculator.calc.
+ *
+ * "warm" calls hit the formula cache after the first invocation; "cold"
+ * calls run with the cache disabled so every call parses the formula, which
+ * is what calc cost before the cache existed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalcBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Input {
+        @Param({"SMALL_POSITIONAL", "SMALL_NAMED", "NESTED_POSITIONAL", "NESTED_NAMED"})
+        public Formulas formula;
+
+        public String text;
+        public Object[] args;
+
+        @Setup
+        public void setUp() {
+            text = formula.text();
+            args = formula.boxedValues();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ColdCache {
+        private int previousSize;
+
+        @Setup(Level.Trial)
+        public void disable() {
+            FormulaCache cache = FormulaCalculator.cache();
+            previousSize = cache.maximumSize();
+            cache.setMaximumSize(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void restore() {
+            FormulaCalculator.cache().setMaximumSize(previousSize);
+        }
+    }
+
+    @Benchmark
+    public double calcWarm(Input input) {
+        return FormulaCalculator.calc(input.text, input.args);
+    }
+
+    @Benchmark
+    public double calcCold(Input input, ColdCache cold) {
+        return FormulaCalculator.calc(input.text, input.args);
+    }
+}
@@ -0,0 +1,39 @@
+package com.formulacalculator.benchmarks;
+
+import com.formulacalculator.Backend;
+import com.formulacalculator.CompiledFormula;
+import com.formulacalculator.FormulaCalculator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning formula text into a CompiledFormula, per backend.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+
+    @Param({"SMALL_POSITIONAL", "SMALL_NAMED", "NESTED_POSITIONAL", "NESTED_NAMED"})
+    public Formulas formula;
+
+    @Param({"INTERPRETER", "BYTECODE"})
+    public Backend backend;
+
+    @Benchmark
+    public CompiledFormula compile() {
+        return FormulaCalculator.compile(formula.text(), backend);
+    }
+}
@@ -0,0 +1,70 @@
+package com.formulacalculator.benchmarks;
+
+import com.formulacalculator.Backend;
+import com.formulacalculator.CompiledFormula;
+import com.formulacalculator.FormulaCalculator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of evaluating an already compiled formula.
+ *
+ * The compiled formula is shared by all benchmark threads while each thread
+ * owns its slot array, which is the intended usage in multi-threaded hot loops.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluateBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"SMALL_POSITIONAL", "SMALL_NAMED", "NESTED_POSITIONAL", "NESTED_NAMED"})
+        public Formulas formula;
+
+        @Param({"INTERPRETER", "BYTECODE"})
+        public Backend backend;
+
+        public CompiledFormula compiled;
+
+        @Setup
+        public void setUp() {
+            compiled = FormulaCalculator.compile(formula.text(), backend);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        public double[] slots;
+        public Map<String, Double> named;
+
+        @Setup
+        public void setUp(Shared shared) {
+            slots = shared.formula.arguments();
+            named = shared.formula.namedValues();
+        }
+    }
+
+    @Benchmark
+    public double evaluateSlots(Shared shared, PerThread thread) {
+        return shared.compiled.evaluate(thread.slots);
+    }
+
+    @Benchmark
+    public double evaluateNamed(Shared shared, PerThread thread) {
+        return shared.compiled.evaluate(thread.named);
+    }
+}
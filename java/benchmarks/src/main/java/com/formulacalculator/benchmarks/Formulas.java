@@ -0,0 +1,81 @@
+package com.formulacalculator.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Formulas shared by the benchmarks, in small and deeply nested variants
+ * using either positional ($arg0) or named ($base) arguments, plus a formula
+ * built only from operations with a SIMD form.
+ */
+public enum Formulas {
+    SMALL_POSITIONAL("$arg0 * $arg1 + $arg2",
+        new String[] {"arg0", "arg1", "arg2"}),
+    SMALL_NAMED("$quantity * $price + $shipping",
+        new String[] {"quantity", "price", "shipping"}),
+    NESTED_POSITIONAL("sqrt(pow($arg0, 2) + pow($arg1, 2)) * abs(sin($arg2) * $arg3)"
+        + " + max(min($arg0, $arg1), floor($arg2 / 3)) - round(exp($arg3 / 10) * log($arg0 + 1))"
+        + " + (($arg0 + $arg1) * ($arg2 - $arg3)) / (1 + abs($arg1 - $arg2)) ^ 2",
+        new String[] {"arg0", "arg1", "arg2", "arg3"}),
+    NESTED_NAMED("sqrt(pow($base, 2) + pow($height, 2)) * abs(sin($angle) * $radius)"
+        + " + max(min($base, $height), floor($angle / 3)) - round(exp($radius / 10) * log($base + 1))"
+        + " + (($base + $height) * ($angle - $radius)) / (1 + abs($height - $angle)) ^ 2",
+        new String[] {"base", "height", "angle", "radius"}),
+    ARITHMETIC("sqrt($arg0 * $arg0 + $arg1 * $arg1) + max(abs($arg2 - $arg3), floor($arg0 / 3)) * ($arg1 - $arg3)",
+        new String[] {"arg0", "arg1", "arg2", "arg3"});
+
+    private static final double[] VALUES = {3.0, 4.0, 1.25, 7.5};
+
+    private final String text;
+    private final String[] names;
+
+    Formulas(String text, String[] names) {
+        this.text = text;
+        this.names = names;
+    }
+
+    /**
+     * @return The formula text
+     */
+    public String text() {
+        return text;
+    }
+
+    /**
+     * @return Argument values in slot order
+     */
+    public double[] arguments() {
+        double[] values = new double[names.length];
+        System.arraycopy(VALUES, 0, values, 0, names.length);
+        return values;
+    }
+
+    /**
+     * @return The number of arguments
+     */
+    public int argumentCount() {
+        return names.length;
+    }
+
+    /**
+     * @return Argument values boxed for calc
+     */
+    public Object[] boxedValues() {
+        Object[] values = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = VALUES[i];
+        }
+        return values;
+    }
+
+    /**
+     * @return Argument values keyed by name
+     */
+    public Map<String, Double> namedValues() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            values.put(names[i], VALUES[i]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,86 @@
+package com.formulacalculator.benchmarks;
+
+import com.formulacalculator.Backend;
+import com.formulacalculator.CompiledFormula;
+import com.formulacalculator.FormulaCalculator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scaling of {@code evaluateBatchParallel} with the number of cores.
+ *
+ * Each parallelism level gets its own fork-join pool; the score is the cost
+ * per row, so perfect scaling halves it whenever the parallelism doubles.
+ * Levels above the machine's core count show the oversubscription cost.
+ * The parallelism comes from the pool, so the benchmark itself always runs
+ * on a single thread and {@link BenchmarkRunner} leaves it out of its
+ * multi-threaded pass.
+ * Run a single formula for a quick curve, e.g.
+ * {@code java -jar target/benchmarks.jar ParallelBatchBenchmark -p formula=NESTED_POSITIONAL}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx2g"})
+@Threads(1)
+@State(Scope.Benchmark)
+public class ParallelBatchBenchmark {
+
+    static final int ROWS = 1 << 21;
+
+    @Param({"ARITHMETIC", "NESTED_POSITIONAL"})
+    public Formulas formula;
+
+    @Param({"INTERPRETER", "VECTOR"})
+    public Backend backend;
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int parallelism;
+
+    private CompiledFormula compiled;
+    private ForkJoinPool pool;
+    private double[][] columns;
+    private double[] out;
+
+    @Setup
+    public void setUp() {
+        compiled = FormulaCalculator.compile(formula.text(), backend);
+        pool = new ForkJoinPool(parallelism);
+        Random random = new Random(42);
+        columns = new double[formula.argumentCount()][ROWS];
+        for (double[] column : columns) {
+            for (int i = 0; i < ROWS; i++) {
+                column[i] = 0.5 + random.nextDouble() * 100;
+            }
+        }
+        out = new double[ROWS];
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] evaluateBatchParallel() {
+        compiled.evaluateBatchParallel(columns, 0, ROWS, out, null, pool);
+        return out;
+    }
+}
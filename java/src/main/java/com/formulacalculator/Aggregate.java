@@ -0,0 +1,291 @@
+package com.formulacalculator;
+
+import java.util.function.DoubleConsumer;
+
+/**
+ * Running count, sum, mean, minimum, maximum and optional histogram of
+ * formula results, folded in one value at a time.
+ *
+ * Filled by the {@code aggregate} methods of {@link CompiledFormula}, which
+ * evaluate a batch a chunk at a time and fold every chunk in directly, so
+ * memory does not grow with the number of rows. The same aggregate can be
+ * passed to several calls to cover input that arrives in pieces:
+ * <pre>
+ * Aggregate total = new Aggregate();
+ * for (double[][] columns : orderLines) {
+ *     formula.aggregate(columns, 0, columns[0].length, total);
+ * }
+ * total.sum();
+ * </pre>
+ * The sum uses Neumaier's compensated summation, which keeps the rounding
+ * error of every addition in a second term, so the sum of millions of
+ * values is as accurate as if it were computed in much higher precision
+ * and does not depend on their order unless it cancels almost completely.
+ * Aggregates of disjoint parts are merged with {@link #combine}, which is
+ * how parallel aggregation joins the partial results of its tasks.
+ *
+ * Results that are NaN or infinite are not part of any statistic; they
+ * are only counted by {@link #invalidCount()}. An aggregate must not be
+ * shared between threads that add to it at the same time.
+ */
+public final class Aggregate implements DoubleConsumer {
+
+    private long count;
+    private long invalidCount;
+    private double sum;
+    private double compensation;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private final double lower;
+    private final double upper;
+    private final double binsPerUnit;
+    private final long[] bins;
+    private long underflowCount;
+    private long overflowCount;
+
+    /**
+     * Creates an empty aggregate without a histogram.
+     */
+    public Aggregate() {
+        this.lower = 0.0;
+        this.upper = 0.0;
+        this.binsPerUnit = 0.0;
+        this.bins = new long[0];
+    }
+
+    /**
+     * Creates an empty aggregate that also counts results in equal-width
+     * bins. Bin {@code i} holds results from {@code lower + i * width}
+     * inclusive to the next bound exclusive, where {@code width} is
+     * {@code (upper - lower) / bins}; results below {@code lower} or from
+     * {@code upper} on are only counted as underflow or overflow
+     * @param lower The lower bound of the first bin
+     * @param upper The upper bound of the last bin
+     * @param bins The number of bins
+     * @throws IllegalArgumentException If the bounds are not finite and increasing or there is no bin
+     */
+    public Aggregate(double lower, double upper, int bins) {
+        if (!(Double.isFinite(lower) && Double.isFinite(upper) && lower < upper)) {
+            throw new IllegalArgumentException("Histogram bounds must be finite with lower < upper");
+        }
+        if (bins < 1) {
+            throw new IllegalArgumentException("Histogram must have at least one bin");
+        }
+        this.lower = lower;
+        this.upper = upper;
+        this.binsPerUnit = bins / (upper - lower);
+        this.bins = new long[bins];
+    }
+
+    /**
+     * @return An empty aggregate with the same histogram bins as this one
+     */
+    public Aggregate emptyCopy() {
+        return bins.length == 0 ? new Aggregate() : new Aggregate(lower, upper, bins.length);
+    }
+
+    /**
+     * Adds a result
+     * @param value The result; NaN and infinities are counted as invalid and otherwise ignored
+     */
+    @Override
+    public void accept(double value) {
+        if (!Double.isFinite(value)) {
+            invalidCount++;
+            return;
+        }
+        count++;
+        add(value);
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        if (bins.length > 0) {
+            bin(value);
+        }
+    }
+
+    /**
+     * Adds a chunk of results, with one tight loop per statistic.
+     * @param values The array holding the chunk
+     * @param from The index of the first result
+     * @param length The number of results
+     */
+    void accept(double[] values, int from, int length) {
+        double sum = this.sum;
+        double compensation = this.compensation;
+        double min = this.min;
+        double max = this.max;
+        int valid = 0;
+        for (int i = from; i < from + length; i++) {
+            double value = values[i];
+            if (Double.isFinite(value)) {
+                valid++;
+                double t = sum + value;
+                if (Math.abs(sum) >= Math.abs(value)) {
+                    compensation += (sum - t) + value;
+                } else {
+                    compensation += (value - t) + sum;
+                }
+                sum = t;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        this.sum = sum;
+        this.compensation = compensation;
+        this.min = min;
+        this.max = max;
+        this.count += valid;
+        this.invalidCount += length - valid;
+        if (bins.length > 0) {
+            for (int i = from; i < from + length; i++) {
+                if (Double.isFinite(values[i])) {
+                    bin(values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the results of another aggregate into this one
+     * @param other An aggregate of other results, with the same histogram bins
+     * @return This aggregate
+     * @throws IllegalArgumentException If the histograms differ
+     */
+    public Aggregate combine(Aggregate other) {
+        if (bins.length != other.bins.length || lower != other.lower || upper != other.upper) {
+            throw new IllegalArgumentException("Cannot combine aggregates with different histogram bins");
+        }
+        count += other.count;
+        invalidCount += other.invalidCount;
+        add(other.sum);
+        compensation += other.compensation;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] += other.bins[i];
+        }
+        underflowCount += other.underflowCount;
+        overflowCount += other.overflowCount;
+        return this;
+    }
+
+    /**
+     * One step of Neumaier summation: adds the value and keeps the rounding error.
+     */
+    private void add(double value) {
+        double t = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            compensation += (sum - t) + value;
+        } else {
+            compensation += (value - t) + sum;
+        }
+        sum = t;
+    }
+
+    private void bin(double value) {
+        if (value < lower) {
+            underflowCount++;
+        } else if (value >= upper) {
+            overflowCount++;
+        } else {
+            // Rounding can put a value just below upper past the last bin
+            bins[Math.min((int) ((value - lower) * binsPerUnit), bins.length - 1)]++;
+        }
+    }
+
+    /**
+     * @return The number of finite results
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return The number of NaN or infinite results, which are left out of every statistic
+     */
+    public long invalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return The compensated sum of the finite results, or 0 when there are none
+     */
+    public double sum() {
+        double total = sum + compensation;
+        // An overflowing sum leaves a NaN compensation; the plain sum is then the better answer
+        return Double.isNaN(total) ? sum : total;
+    }
+
+    /**
+     * @return The mean of the finite results, or NaN when there are none
+     */
+    public double mean() {
+        return count == 0 ? Double.NaN : sum() / count;
+    }
+
+    /**
+     * @return The smallest finite result, or positive infinity when there are none
+     */
+    public double min() {
+        return min;
+    }
+
+    /**
+     * @return The largest finite result, or negative infinity when there are none
+     */
+    public double max() {
+        return max;
+    }
+
+    /**
+     * @return The number of histogram bins; 0 for an aggregate without a histogram
+     */
+    public int binCount() {
+        return bins.length;
+    }
+
+    /**
+     * @param bin The bin index
+     * @return The number of results in the bin
+     * @throws IndexOutOfBoundsException If there is no such bin
+     */
+    public long frequency(int bin) {
+        return bins[bin];
+    }
+
+    /**
+     * @param bin The bin index, or {@link #binCount()} for the upper bound of the last bin
+     * @return The smallest value the bin holds
+     * @throws IndexOutOfBoundsException If the index is out of range
+     */
+    public double binLowerBound(int bin) {
+        if (bin < 0 || bin > bins.length) {
+            throw new IndexOutOfBoundsException("Bin " + bin + " is out of range");
+        }
+        return bin == bins.length ? upper : lower + bin / binsPerUnit;
+    }
+
+    /**
+     * @return The number of finite results below the first bin
+     */
+    public long underflowCount() {
+        return underflowCount;
+    }
+
+    /**
+     * @return The number of finite results at or above the upper bound of the last bin
+     */
+    public long overflowCount() {
+        return overflowCount;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", sum=" + sum() + ", mean=" + mean() + ", min=" + min + ", max=" + max
+            + (invalidCount == 0 ? "" : ", invalid=" + invalidCount);
+    }
+}
@@ -0,0 +1,34 @@
+package com.formulacalculator;
+
+/**
+ * Execution strategies for compiled formulas.
+ */
+public enum Backend {
+    /** Walk the expression tree on every evaluation; cheapest to create */
+    INTERPRETER,
+    /**
+     * Generate a hidden JVM class whose {@code apply} method computes the
+     * formula in straight-line bytecode, so that the JIT can inline it and
+     * intrinsify calls such as {@code Math.sqrt}. Costs more to create than
+     * the interpreter; the class is unloaded once the formula is unreachable.
+     */
+    BYTECODE,
+    /**
+     * Evaluate {@link CompiledFormula#evaluateBatch batches} with SIMD
+     * instructions through the incubating Vector API. Arithmetic,
+     * {@code sqrt}, {@code abs}, {@code min}, {@code max}, {@code floor} and
+     * {@code ceil} run several rows per instruction; other functions keep
+     * their scalar loop. Results are identical to the other backends, and
+     * single rows are evaluated by the interpreter. Requires
+     * {@code --add-modules jdk.incubator.vector}; without it formulas
+     * silently use {@link #INTERPRETER}.
+     */
+    VECTOR,
+    /**
+     * Start with the interpreter and switch to {@link #BYTECODE} in the
+     * background once the formula has been evaluated often enough, so that
+     * only hot formulas pay for code generation. Batches run as with the
+     * interpreter. See {@link TieredCompilation}.
+     */
+    TIERED
+}
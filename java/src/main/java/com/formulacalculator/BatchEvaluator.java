@@ -0,0 +1,472 @@
+package com.formulacalculator;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Column-at-a-time interpreter for {@link Program}s.
+ *
+ * Rows are processed in chunks. For each chunk every instruction runs as
+ * one tight loop over the chunk, so dispatch on the operation happens once
+ * per instruction and chunk rather than once per row, and the loops over
+ * primitive arrays are simple enough for the JIT to unroll and vectorize.
+ * Argument registers read the caller's arrays in place, or chunk-sized
+ * copies of off-heap buffer columns; constants are
+ * broadcast into columns once; every instruction writes its own scratch
+ * column, which stays cache resident for chunks of {@link #CHUNK_SIZE} rows.
+ *
+ * When vectorized, instructions with an exact SIMD form run through
+ * {@link VectorKernels}; all others keep their scalar loop, so a formula
+ * mixing e.g. {@code sin} with arithmetic still vectorizes the arithmetic.
+ *
+ * An evaluator owns its scratch columns and must only be used by one thread
+ * at a time.
+ */
+final class BatchEvaluator {
+
+    /** Number of rows evaluated per chunk */
+    static final int CHUNK_SIZE = 512;
+
+    /**
+     * Whether the Vector API can be used: the {@code jdk.incubator.vector}
+     * module must have been added with {@code --add-modules} and the
+     * platform must offer vectors of at least two doubles.
+     */
+    static final boolean VECTOR_AVAILABLE = vectorAvailable();
+
+    private final Program program;
+    private final boolean vectorized;
+    private final double[][] registers;
+    private final int[] bases;
+    private final int chunkSize;
+    /** Chunk of each argument copied from buffer columns, allocated on first use */
+    private double[][] staging;
+
+    /**
+     * Creates an evaluator with scratch space for one chunk.
+     * @param program The program to evaluate
+     * @param rows The number of rows the caller intends to evaluate, used to size the chunk
+     * @param vectorized Whether to use SIMD loops; ignored when {@link #VECTOR_AVAILABLE} is false
+     */
+    BatchEvaluator(Program program, int rows, boolean vectorized) {
+        this.program = program;
+        this.vectorized = vectorized && VECTOR_AVAILABLE;
+        this.chunkSize = Math.max(1, Math.min(CHUNK_SIZE, rows));
+        int registerCount = program.registerCount();
+        this.registers = new double[registerCount][];
+        this.bases = new int[registerCount];
+        for (int i = 0; i < program.constants.length; i++) {
+            double[] column = new double[chunkSize];
+            Arrays.fill(column, program.constants[i]);
+            registers[program.argumentCount + i] = column;
+        }
+        for (int r = program.firstInstructionRegister(); r < registerCount; r++) {
+            registers[r] = new double[chunkSize];
+        }
+    }
+
+    /**
+     * @return The maximum number of rows per {@link #run} call
+     */
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the column holding a register's values for the last chunk.
+     * @param register The register
+     * @return The column; the chunk starts at {@link #base(int)}
+     */
+    double[] column(int register) {
+        return registers[register];
+    }
+
+    /**
+     * @param register The register
+     * @return The index of the first row of the last chunk in {@link #column(int)}
+     */
+    int base(int register) {
+        return bases[register];
+    }
+
+    /**
+     * @return Whether supported instructions run as SIMD loops
+     */
+    boolean vectorized() {
+        return vectorized;
+    }
+
+    /**
+     * Evaluates the first output of the program for a range of rows, one chunk at a time.
+     * @param columns The argument columns, indexed by slot and then by row
+     * @param start The first row
+     * @param end The row after the last one
+     * @param out Receives the result of row {@code r} at index {@code r}
+     * @param errors Bitmap receiving a set bit for every row with a non-finite result; may be null
+     * @return The number of rows with a non-finite result
+     */
+    int evaluate(double[][] columns, int start, int end, double[] out, long[] errors) {
+        int invalid = 0;
+        for (int row = start; row < end; row += chunkSize) {
+            int count = Math.min(chunkSize, end - row);
+            run(columns, row, count);
+            invalid += copyOutput(0, out, row, count, errors);
+        }
+        return invalid;
+    }
+
+    /**
+     * Evaluates every output of the program for a range of rows, one chunk at a time.
+     * @param columns The argument columns, indexed by slot and then by row
+     * @param start The first row
+     * @param end The row after the last one
+     * @param out Receives output {@code i} of row {@code r} at {@code out[i][r]}
+     * @param errors One bitmap per output receiving a set bit for every row where that output is not finite;
+     *     may be null, as may each bitmap
+     * @return The number of non-finite results over all outputs
+     */
+    int evaluateAll(double[][] columns, int start, int end, double[][] out, long[][] errors) {
+        int invalid = 0;
+        for (int row = start; row < end; row += chunkSize) {
+            int count = Math.min(chunkSize, end - row);
+            run(columns, row, count);
+            for (int output = 0; output < program.outputs.length; output++) {
+                invalid += copyOutput(output, out[output], row, count, errors == null ? null : errors[output]);
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Evaluates the first output of the program for a range of rows of
+     * buffer columns. Each chunk of every argument is copied with one bulk
+     * get into a scratch column, so at most one chunk per argument is ever
+     * on the heap, and each chunk of results is stored with one bulk put.
+     * Rows are addressed by absolute index; buffer positions are not used.
+     * @param columns The argument columns, indexed by slot and then by row
+     * @param start The first row
+     * @param end The row after the last one
+     * @param out Receives the result of row {@code r} at index {@code r}
+     * @param errors Bitmap receiving a set bit for every row with a non-finite result; may be null
+     * @return The number of rows with a non-finite result
+     */
+    int evaluate(DoubleBuffer[] columns, int start, int end, DoubleBuffer out, long[] errors) {
+        if (staging == null) {
+            staging = new double[program.argumentCount][chunkSize];
+        }
+        int invalid = 0;
+        for (int row = start; row < end; row += chunkSize) {
+            int count = Math.min(chunkSize, end - row);
+            for (int slot = 0; slot < program.argumentCount; slot++) {
+                columns[slot].get(row, staging[slot], 0, count);
+            }
+            run(staging, 0, count);
+            int register = program.outputs[0];
+            double[] source = registers[register];
+            int base = bases[register];
+            invalid += countInvalid(source, base, row, count, errors);
+            out.put(row, source, base, count);
+        }
+        return invalid;
+    }
+
+    /**
+     * Evaluates the first output of the program for a range of rows and folds
+     * each chunk of results into an aggregate, so no output array is needed.
+     * @param columns The argument columns, indexed by slot and then by row
+     * @param start The first row
+     * @param end The row after the last one
+     * @param into Receives the results
+     */
+    void aggregate(double[][] columns, int start, int end, Aggregate into) {
+        int register = program.outputs[0];
+        for (int row = start; row < end; row += chunkSize) {
+            int count = Math.min(chunkSize, end - row);
+            run(columns, row, count);
+            into.accept(registers[register], bases[register], count);
+        }
+    }
+
+    /**
+     * Evaluates the first output of the program for a range of rows of buffer
+     * columns and folds each chunk of results into an aggregate. Arguments are
+     * read as described for {@link #evaluate(DoubleBuffer[], int, int, DoubleBuffer, long[])}.
+     * @param columns The argument columns, indexed by slot and then by row
+     * @param start The first row
+     * @param end The row after the last one
+     * @param into Receives the results
+     */
+    void aggregate(DoubleBuffer[] columns, int start, int end, Aggregate into) {
+        if (staging == null) {
+            staging = new double[program.argumentCount][chunkSize];
+        }
+        int register = program.outputs[0];
+        for (int row = start; row < end; row += chunkSize) {
+            int count = Math.min(chunkSize, end - row);
+            for (int slot = 0; slot < program.argumentCount; slot++) {
+                columns[slot].get(row, staging[slot], 0, count);
+            }
+            run(staging, 0, count);
+            into.accept(registers[register], bases[register], count);
+        }
+    }
+
+    /**
+     * Evaluates every instruction for a range of rows.
+     * @param columns The argument columns, indexed by slot and then by row
+     * @param start The first row
+     * @param count The number of rows, at most {@link #chunkSize()}
+     */
+    void run(double[][] columns, int start, int count) {
+        for (int slot = 0; slot < program.argumentCount; slot++) {
+            registers[slot] = columns[slot];
+            bases[slot] = start;
+        }
+        int target = program.firstInstructionRegister();
+        for (int i = 0; i < program.operations.length; i++) {
+            int l = program.left[i];
+            int r = program.right[i];
+            Operation operation = program.operations[i];
+            if (vectorized && VectorKernels.supports(operation)) {
+                VectorKernels.execute(operation, registers[l], bases[l], registers[r], bases[r], registers[target + i], count);
+            } else {
+                execute(operation, registers[l], bases[l], registers[r], bases[r], registers[target + i], count);
+            }
+        }
+    }
+
+    /**
+     * Runs one instruction over a chunk. Each operation has its own small
+     * loop method so that the JIT compiles and unrolls them independently.
+     */
+    static void execute(Operation operation, double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        switch (operation) {
+            case ADD:
+                add(a, ai, b, bi, out, count);
+                break;
+            case SUBTRACT:
+                subtract(a, ai, b, bi, out, count);
+                break;
+            case MULTIPLY:
+                multiply(a, ai, b, bi, out, count);
+                break;
+            case DIVIDE:
+                divide(a, ai, b, bi, out, count);
+                break;
+            case NEGATE:
+                negate(a, ai, out, count);
+                break;
+            case SQRT:
+                sqrt(a, ai, out, count);
+                break;
+            case ABS:
+                abs(a, ai, out, count);
+                break;
+            case MIN:
+                min(a, ai, b, bi, out, count);
+                break;
+            case MAX:
+                max(a, ai, b, bi, out, count);
+                break;
+            case FLOOR:
+                floor(a, ai, out, count);
+                break;
+            case CEIL:
+                ceil(a, ai, out, count);
+                break;
+            case POWER:
+            case POW:
+                pow(a, ai, b, bi, out, count);
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    out[i] = operation.apply(a[ai + i], b[bi + i]);
+                }
+                break;
+        }
+    }
+
+    private static void add(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = a[ai + i] + b[bi + i];
+        }
+    }
+
+    private static void subtract(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = a[ai + i] - b[bi + i];
+        }
+    }
+
+    private static void multiply(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = a[ai + i] * b[bi + i];
+        }
+    }
+
+    private static void divide(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = a[ai + i] / b[bi + i];
+        }
+    }
+
+    private static void negate(double[] a, int ai, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = -a[ai + i];
+        }
+    }
+
+    private static void sqrt(double[] a, int ai, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = Math.sqrt(a[ai + i]);
+        }
+    }
+
+    private static void abs(double[] a, int ai, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = Math.abs(a[ai + i]);
+        }
+    }
+
+    private static void min(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = Math.min(a[ai + i], b[bi + i]);
+        }
+    }
+
+    private static void max(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = Math.max(a[ai + i], b[bi + i]);
+        }
+    }
+
+    private static void floor(double[] a, int ai, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = Math.floor(a[ai + i]);
+        }
+    }
+
+    private static void ceil(double[] a, int ai, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = Math.ceil(a[ai + i]);
+        }
+    }
+
+    private static void pow(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = Math.pow(a[ai + i], b[bi + i]);
+        }
+    }
+
+    /**
+     * Copies one output of the last chunk to the caller's array and records non-finite rows.
+     * @param output The program output to copy
+     * @param out The destination, indexed by row
+     * @param start The first row of the chunk
+     * @param count The number of rows in the chunk
+     * @param errors Bitmap receiving a set bit for every row with a non-finite result; may be null
+     * @return The number of rows with a non-finite result
+     */
+    int copyOutput(int output, double[] out, int start, int count, long[] errors) {
+        int register = program.outputs[output];
+        double[] source = registers[register];
+        int base = bases[register];
+        System.arraycopy(source, base, out, start, count);
+        return countInvalid(source, base, start, count, errors);
+    }
+
+    /**
+     * Counts the non-finite values of a chunk and records them in the error bitmap.
+     */
+    private static int countInvalid(double[] source, int base, int start, int count, long[] errors) {
+        int invalid = 0;
+        for (int i = 0; i < count; i++) {
+            if (!Double.isFinite(source[base + i])) {
+                invalid++;
+                if (errors != null) {
+                    int row = start + i;
+                    errors[row >>> 6] |= 1L << row;
+                }
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Checks the arguments of a batch call.
+     * @throws IllegalArgumentException If the columns or output are too short for the row range
+     */
+    static void checkRange(int argumentCount, double[][] columns, int offset, int length, int outLength, long[] errors) {
+        checkColumnCount(argumentCount, columns.length, offset, length);
+        int end = offset + length;
+        for (int slot = 0; slot < argumentCount; slot++) {
+            if (columns[slot] == null || columns[slot].length < end) {
+                throw new IllegalArgumentException("Argument column " + slot + " has fewer than " + end + " rows");
+            }
+        }
+        checkOutput(end, outLength, errors);
+    }
+
+    /**
+     * Checks the arguments of a batch call over buffers.
+     * @throws IllegalArgumentException If the columns or output are too short for the row range, or the output is read-only
+     */
+    static void checkRange(int argumentCount, DoubleBuffer[] columns, int offset, int length, DoubleBuffer out, long[] errors) {
+        checkColumns(argumentCount, columns, offset, length);
+        int end = offset + length;
+        if (out.isReadOnly()) {
+            throw new IllegalArgumentException("Output buffer is read-only");
+        }
+        checkOutput(end, out.limit(), errors);
+    }
+
+    /**
+     * Checks the buffer columns of a batch call that has no output.
+     * @throws IllegalArgumentException If the columns are too short for the row range
+     */
+    static void checkColumns(int argumentCount, DoubleBuffer[] columns, int offset, int length) {
+        checkColumnCount(argumentCount, columns.length, offset, length);
+        int end = offset + length;
+        for (int slot = 0; slot < argumentCount; slot++) {
+            if (columns[slot] == null || columns[slot].limit() < end) {
+                throw new IllegalArgumentException("Argument column " + slot + " has fewer than " + end + " rows");
+            }
+        }
+    }
+
+    private static void checkColumnCount(int argumentCount, int columnCount, int offset, int length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length cannot be negative");
+        }
+        if (offset > Integer.MAX_VALUE - length) {
+            throw new IllegalArgumentException("Row range " + offset + " + " + length + " is too large");
+        }
+        if (columnCount < argumentCount) {
+            throw new IllegalArgumentException("Expected " + argumentCount + " argument columns but got " + columnCount);
+        }
+    }
+
+    private static void checkOutput(int end, int outLength, long[] errors) {
+        if (outLength < end) {
+            throw new IllegalArgumentException("Output has fewer than " + end + " rows");
+        }
+        if (errors != null && errors.length < (end + 63) >>> 6) {
+            throw new IllegalArgumentException("Error bitmap is too small for " + end + " rows");
+        }
+    }
+
+    /**
+     * Checks for the Vector API without loading any of its classes when the
+     * module is absent, so the library runs unchanged on a plain JVM.
+     */
+    private static boolean vectorAvailable() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return VectorKernels.lanes() >= 2;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.formulacalculator;
+
+import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Spliterator over the results of a formula for a range of rows of a
+ * columnar batch.
+ *
+ * Results are computed lazily a chunk at a time with a {@link BatchEvaluator}
+ * created on first use, so a spliterator that is split for a parallel stream
+ * allocates scratch space only in the threads that traverse it. Splits keep
+ * at least one chunk on each side. Non-finite results are reported as is.
+ */
+final class BatchSpliterator implements Spliterator.OfDouble {
+
+    private final Program program;
+    private final boolean vectorized;
+    private final double[][] columns;
+    private final int end;
+    private int row;
+    private BatchEvaluator evaluator;
+    private double[] buffer;
+    private int bufferIndex;
+    private int bufferLength;
+
+    BatchSpliterator(Program program, boolean vectorized, double[][] columns, int start, int end) {
+        this.program = program;
+        this.vectorized = vectorized;
+        this.columns = columns;
+        this.row = start;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(DoubleConsumer action) {
+        if (bufferIndex == bufferLength) {
+            if (row >= end) {
+                return false;
+            }
+            fill();
+        }
+        action.accept(buffer[bufferIndex++]);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(DoubleConsumer action) {
+        while (bufferIndex < bufferLength) {
+            action.accept(buffer[bufferIndex++]);
+        }
+        while (row < end) {
+            fill();
+            for (int i = 0; i < bufferLength; i++) {
+                action.accept(buffer[i]);
+            }
+            bufferIndex = bufferLength;
+        }
+    }
+
+    /**
+     * Evaluates the next chunk into the buffer.
+     */
+    private void fill() {
+        if (evaluator == null) {
+            evaluator = new BatchEvaluator(program, end - row, vectorized);
+            buffer = new double[evaluator.chunkSize()];
+        }
+        int count = Math.min(evaluator.chunkSize(), end - row);
+        evaluator.run(columns, row, count);
+        evaluator.copyOutput(0, buffer, 0, count, null);
+        row += count;
+        bufferIndex = 0;
+        bufferLength = count;
+    }
+
+    @Override
+    public Spliterator.OfDouble trySplit() {
+        int remaining = end - row;
+        if (bufferIndex < bufferLength || remaining < 2 * BatchEvaluator.CHUNK_SIZE) {
+            return null;
+        }
+        int middle = row + remaining / 2;
+        BatchSpliterator prefix = new BatchSpliterator(program, vectorized, columns, row, middle);
+        row = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return (long) (end - row) + (bufferLength - bufferIndex);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,353 @@
+package com.formulacalculator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiles optimized programs into hidden JVM classes.
+ *
+ * Each formula becomes a small final class implementing {@link FormulaKernel}
+ * whose {@code apply} method is straight-line bytecode: arguments are loaded
+ * from the slot array, constants come from the constant pool and functions
+ * are {@code invokestatic} calls on {@link Math}. Values the program shares
+ * between several instructions are computed once into local variables;
+ * everything else is evaluated directly on the operand stack. Because the code has no
+ * branches the class file needs no stack map frames, which keeps the writer
+ * below small enough to avoid a bytecode library dependency.
+ *
+ * Classes are defined with {@link MethodHandles.Lookup#defineHiddenClass}
+ * without the {@code STRONG} option, so they are unloaded together with the
+ * last reference to the kernel instance.
+ */
+final class BytecodeCompiler {
+
+    private static final String CLASS_NAME = "com/formulacalculator/GeneratedFormula";
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_POOL_SIZE = 65000;
+
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int DALOAD = 0x31;
+    private static final int DSTORE = 0x39;
+    private static final int WIDE = 0xc4;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DNEG = 0x77;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private final Program program;
+    private final int[] locals;
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+    private BytecodeCompiler(Program program) {
+        this.program = program;
+        this.locals = new int[program.registerCount()];
+    }
+
+    /**
+     * Generates and loads a kernel computing the first output of a program.
+     * @param program The optimized program
+     * @return A new kernel instance, or null if the formula is too large for a single method
+     */
+    static FormulaKernel compile(Program program) {
+        byte[] bytes = new BytecodeCompiler(program).generate();
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (FormulaKernel) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to load generated formula class", e);
+        }
+    }
+
+    private byte[] generate() {
+        int[] uses = program.useCounts();
+        int first = program.firstInstructionRegister();
+        int nextLocal = 2;
+        int maxStack = 2;
+        for (int register = first; register < program.registerCount(); register++) {
+            if (uses[register] > 1) {
+                maxStack = Math.max(maxStack, emitInstruction(register - first));
+                emitLocal(DSTORE, nextLocal);
+                locals[register] = nextLocal;
+                nextLocal += 2;
+            }
+        }
+        maxStack = Math.max(maxStack, emit(program.outputs[0]));
+        code.write(DRETURN);
+        if (code.size() > MAX_CODE_LENGTH || pool.size() > MAX_POOL_SIZE || nextLocal > 0xFFFF) {
+            return null;
+        }
+
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int kernel = pool.classRef("com/formulacalculator/FormulaKernel");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int applyName = pool.utf8("apply");
+        int applyType = pool.utf8("([D)D");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(61);
+            pool.write(out);
+            out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(kernel);
+            out.writeShort(0);
+            out.writeShort(2);
+
+            byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN};
+            writeMethod(out, initName, initType, codeName, 1, 1, init);
+            writeMethod(out, applyName, applyType, codeName, maxStack, nextLocal, code.toByteArray());
+
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName,
+                                    int maxStack, int maxLocals, byte[] body) throws IOException {
+        out.writeShort(0x0001); // ACC_PUBLIC
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    /**
+     * Emits code that leaves the value of a register on the operand stack.
+     * @return The maximum operand stack depth, in words, used by the emitted code
+     */
+    private int emit(int register) {
+        if (register < program.argumentCount) {
+            emitArgument(register);
+            return 2;
+        }
+        int first = program.firstInstructionRegister();
+        if (register < first) {
+            emitConstant(program.constants[register - program.argumentCount]);
+            return 2;
+        }
+        if (locals[register] != 0) {
+            emitLocal(DLOAD, locals[register]);
+            return 2;
+        }
+        return emitInstruction(register - first);
+    }
+
+    /**
+     * Emits code that computes one instruction from its operands.
+     * @return The maximum operand stack depth, in words, used by the emitted code
+     */
+    private int emitInstruction(int index) {
+        Operation operation = program.operations[index];
+        int depth = 2;
+        if (operation.arity() >= 1) {
+            depth = emit(program.left[index]);
+        }
+        if (operation.arity() == 2) {
+            depth = Math.max(depth, 2 + emit(program.right[index]));
+        }
+        switch (operation) {
+            case ADD: code.write(DADD); break;
+            case SUBTRACT: code.write(DSUB); break;
+            case MULTIPLY: code.write(DMUL); break;
+            case DIVIDE: code.write(DDIV); break;
+            case NEGATE: code.write(DNEG); break;
+            case POWER:
+            case POW: invokeStatic("java/lang/Math", "pow", "(DD)D"); break;
+            case SQRT: invokeStatic("java/lang/Math", "sqrt", "(D)D"); break;
+            case ABS: invokeStatic("java/lang/Math", "abs", "(D)D"); break;
+            case ROUND: invokeStatic("com/formulacalculator/Operation", "round", "(D)D"); break;
+            case FLOOR: invokeStatic("java/lang/Math", "floor", "(D)D"); break;
+            case CEIL: invokeStatic("java/lang/Math", "ceil", "(D)D"); break;
+            case MIN: invokeStatic("java/lang/Math", "min", "(DD)D"); break;
+            case MAX: invokeStatic("java/lang/Math", "max", "(DD)D"); break;
+            case SIN: invokeStatic("java/lang/Math", "sin", "(D)D"); break;
+            case COS: invokeStatic("java/lang/Math", "cos", "(D)D"); break;
+            case TAN: invokeStatic("java/lang/Math", "tan", "(D)D"); break;
+            case LOG: invokeStatic("java/lang/Math", "log", "(D)D"); break;
+            case EXP: invokeStatic("java/lang/Math", "exp", "(D)D"); break;
+            case RANDOM: invokeStatic("com/formulacalculator/Operation", "random", "()D"); break;
+            default: throw new AssertionError(operation);
+        }
+        return depth;
+    }
+
+    private void emitLocal(int opcode, int local) {
+        if (local <= 0xFF) {
+            code.write(opcode);
+            code.write(local);
+        } else {
+            code.write(WIDE);
+            code.write(opcode);
+            code.write(local >> 8);
+            code.write(local);
+        }
+    }
+
+    private void emitConstant(double value) {
+        int index = pool.doubleConstant(value);
+        code.write(LDC2_W);
+        code.write(index >> 8);
+        code.write(index);
+    }
+
+    private void emitArgument(int slot) {
+        code.write(ALOAD_1);
+        if (slot <= 5) {
+            code.write(ICONST_0 + slot);
+        } else if (slot <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(slot);
+        } else {
+            code.write(SIPUSH);
+            code.write(slot >> 8);
+            code.write(slot);
+        }
+        code.write(DALOAD);
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor) {
+        int index = pool.methodRef(owner, name, descriptor);
+        code.write(INVOKESTATIC);
+        code.write(index >> 8);
+        code.write(index);
+    }
+
+    /**
+     * Deduplicating class file constant pool.
+     */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<Object, Integer> entries = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get(value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return add(value, 1);
+        }
+
+        int classRef(String internalName) {
+            String key = "Class:" + internalName;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            int name = utf8(internalName);
+            writeEntry(7, name, -1);
+            return add(key, 1);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            String key = "Method:" + owner + "." + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            String natKey = "NameAndType:" + name + descriptor;
+            Integer nameAndType = entries.get(natKey);
+            if (nameAndType == null) {
+                int nameIndex = utf8(name);
+                int typeIndex = utf8(descriptor);
+                writeEntry(12, nameIndex, typeIndex);
+                nameAndType = add(natKey, 1);
+            }
+            writeEntry(10, ownerIndex, nameAndType);
+            return add(key, 1);
+        }
+
+        int doubleConstant(double value) {
+            Long key = Double.doubleToRawLongBits(value);
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(6);
+                out.writeDouble(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // Doubles occupy two constant pool slots
+            return add(key, 2);
+        }
+
+        int size() {
+            return next;
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            target.writeShort(next);
+            bytes.writeTo(target);
+        }
+
+        private void writeEntry(int tag, int first, int second) {
+            try {
+                out.writeByte(tag);
+                out.writeShort(first);
+                if (second >= 0) {
+                    out.writeShort(second);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private int add(Object key, int size) {
+            int index = next;
+            entries.put(key, index);
+            next += size;
+            return index;
+        }
+    }
+}
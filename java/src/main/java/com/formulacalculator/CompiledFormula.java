@@ -0,0 +1,812 @@
+package com.formulacalculator;
+
+import java.math.RoundingMode;
+import java.nio.DoubleBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A formula that has been parsed once and can be evaluated many times.
+ *
+ * Instances are created with {@link FormulaCalculator#compile(String)}, which
+ * also runs the {@link Optimizer}: constant subexpressions are folded,
+ * squares become multiplications and repeated subexpressions are computed
+ * once per evaluation. They
+ * are immutable and safe to share between threads: evaluation keeps all of
+ * its state in local variables, the caller's arrays or per-thread scratch
+ * space, so concurrent calls never observe each other. Every $name placeholder
+ * in the formula is resolved to a fixed argument slot at compile time; slots
+ * are numbered in order of first appearance, which is the same positional
+ * binding used by {@link FormulaCalculator#calc(String, Object...)}:
+ * <pre>
+ * CompiledFormula total = FormulaCalculator.compile("$quantity * $price");
+ * total.evaluate(4, 6);                                  // 24.0
+ * total.evaluate(Map.of("quantity", 4, "price", 6));     // 24.0
+ * </pre>
+ * The primitive overloads for up to three arguments, and
+ * {@link #evaluate(double...)} when called with an existing array, do not
+ * allocate: hot loops can keep one slot array per thread and refill it for
+ * every row. Failures throw a {@link FormulaException}; for dirty data,
+ * {@link #tryEvaluate} reports them in a reusable {@link EvaluationResult}
+ * instead, and {@link #withNonFinitePolicy} makes infinite and NaN results
+ * return NaN.
+ */
+public final class CompiledFormula {
+
+    /** Per-thread slot array backing the fixed-arity evaluate overloads */
+    private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[3]);
+
+    private final String formula;
+    private final Node root;
+    private final Program program;
+    private final Backend backend;
+    private final FormulaKernel kernel;
+    private final List<String> argumentNames;
+    private final Map<String, Integer> slots;
+    private final NonFinitePolicy nonFinitePolicy;
+    /** The formula holding the lazily created state below; itself unless this is a {@link #withNonFinitePolicy} view */
+    private final CompiledFormula origin;
+    /** Created on first use; its fields are final, so a racy initialization is harmless */
+    private Differentiator differentiator;
+    /** Evaluation counters of {@link FormulaMetrics}, looked up on first instrumented evaluation */
+    private FormulaMetrics.Counters counters;
+
+    CompiledFormula(String formula, Node root, List<String> argumentNames, Backend backend) {
+        this(formula, root, Optimizer.optimize(root, argumentNames.size()), argumentNames, backend);
+    }
+
+    /**
+     * Creates a formula from an already optimized program, as loaded by {@link FormulaLibrary}.
+     * @param root The expression tree, or null when only the program is available
+     */
+    CompiledFormula(String formula, Node root, Program program, List<String> argumentNames, Backend backend) {
+        FormulaKernel generated = backend == Backend.BYTECODE ? BytecodeCompiler.compile(program) : null;
+        this.formula = formula;
+        this.root = root;
+        this.program = program;
+        if (generated != null) {
+            this.backend = Backend.BYTECODE;
+        } else if (backend == Backend.VECTOR && BatchEvaluator.VECTOR_AVAILABLE) {
+            this.backend = Backend.VECTOR;
+        } else if (backend == Backend.TIERED) {
+            this.backend = Backend.TIERED;
+        } else {
+            this.backend = Backend.INTERPRETER;
+        }
+        if (generated != null) {
+            this.kernel = generated;
+        } else if (this.backend == Backend.TIERED) {
+            this.kernel = new TieredKernel(program, TieredCompilation.threshold(), this);
+        } else {
+            this.kernel = new ProgramInterpreter(program);
+        }
+        this.argumentNames = Collections.unmodifiableList(argumentNames);
+        Map<String, Integer> slots = new HashMap<>();
+        for (int i = 0; i < argumentNames.size(); i++) {
+            slots.put(argumentNames.get(i), i);
+        }
+        this.slots = slots;
+        this.nonFinitePolicy = NonFinitePolicy.THROW;
+        this.origin = this;
+    }
+
+    /**
+     * Creates a view of a formula with another non-finite policy, sharing its
+     * compiled code, differentiator and metrics counters.
+     */
+    private CompiledFormula(CompiledFormula source, NonFinitePolicy nonFinitePolicy) {
+        this.formula = source.formula;
+        this.root = source.root;
+        this.program = source.program;
+        this.backend = source.backend;
+        this.kernel = source.kernel;
+        this.argumentNames = source.argumentNames;
+        this.slots = source.slots;
+        this.nonFinitePolicy = nonFinitePolicy;
+        this.origin = source.origin;
+    }
+
+    /**
+     * @return The formula text this instance was compiled from
+     */
+    public String formula() {
+        return formula;
+    }
+
+    /**
+     * @return The backend that evaluates this formula; formulas too large for
+     *     a single generated method, and vector formulas on a JVM without the
+     *     Vector API, fall back to the interpreter
+     */
+    public Backend backend() {
+        return backend;
+    }
+
+    /**
+     * @return What single-row evaluation does with an infinite or NaN result;
+     *     {@link NonFinitePolicy#THROW} unless changed with {@link #withNonFinitePolicy}
+     */
+    public NonFinitePolicy nonFinitePolicy() {
+        return nonFinitePolicy;
+    }
+
+    /**
+     * Returns this formula with another policy for infinite or NaN results.
+     * The returned formula shares the compiled code, tier, differentiator and
+     * {@link FormulaMetrics} counters of this one
+     * @param nonFinitePolicy The policy
+     * @return A formula with the given policy; this instance if it already has it
+     */
+    public CompiledFormula withNonFinitePolicy(NonFinitePolicy nonFinitePolicy) {
+        if (nonFinitePolicy == null) {
+            throw new IllegalArgumentException("Non-finite policy cannot be null");
+        }
+        return nonFinitePolicy == this.nonFinitePolicy ? this : new CompiledFormula(this, nonFinitePolicy);
+    }
+
+    /**
+     * @return The tier single-row evaluations currently run in: {@link Tier#COMPILED}
+     *     for generated bytecode, {@link Tier#INTERPRETED} for the other backends,
+     *     and the current tier of a {@link Backend#TIERED} formula
+     */
+    public Tier tier() {
+        if (kernel instanceof TieredKernel) {
+            return ((TieredKernel) kernel).tier();
+        }
+        return backend == Backend.BYTECODE ? Tier.COMPILED : Tier.INTERPRETED;
+    }
+
+    /**
+     * @return The number of single-row evaluations a {@link Backend#TIERED}
+     *     formula has run in the interpreter, which stops growing once it is
+     *     compiled; 0 for the other backends. The count is approximate when
+     *     several threads evaluate the formula at once
+     */
+    public long invocationCount() {
+        return kernel instanceof TieredKernel ? ((TieredKernel) kernel).invocations() : 0;
+    }
+
+    /**
+     * @return The unoptimized expression tree, exposed for tests; null for
+     *     formulas loaded from a {@link FormulaLibrary}
+     */
+    Node root() {
+        return root;
+    }
+
+    /**
+     * @return The optimized program
+     */
+    Program program() {
+        return program;
+    }
+
+    /**
+     * @return The executable kernel, exposed for tests
+     */
+    FormulaKernel kernel() {
+        return kernel;
+    }
+
+    /**
+     * @return The argument names (without the leading $) in slot order
+     */
+    public List<String> argumentNames() {
+        return argumentNames;
+    }
+
+    /**
+     * @return The number of argument slots
+     */
+    public int argumentCount() {
+        return argumentNames.size();
+    }
+
+    /**
+     * Looks up the slot an argument is bound to
+     * @param name The argument name, with or without the leading $
+     * @return The zero-based slot index, or -1 if the formula has no such argument
+     */
+    public int slotOf(String name) {
+        Integer slot = slots.get(name.startsWith("$") ? name.substring(1) : name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Evaluates a formula that has no arguments
+     * @return The calculated result
+     * @throws IllegalArgumentException If the formula has arguments or the result is not a finite number under {@link NonFinitePolicy#THROW}
+     */
+    public double evaluate() {
+        return evaluateScratch(0, 0.0, 0.0, 0.0);
+    }
+
+    /**
+     * Evaluates the formula with one positional argument without allocating
+     * @param a0 The value for slot 0
+     * @return The calculated result
+     * @throws IllegalArgumentException If the formula needs more arguments or the result is not a finite number under {@link NonFinitePolicy#THROW}
+     */
+    public double evaluate(double a0) {
+        return evaluateScratch(1, a0, 0.0, 0.0);
+    }
+
+    /**
+     * Evaluates the formula with two positional arguments without allocating
+     * @param a0 The value for slot 0
+     * @param a1 The value for slot 1
+     * @return The calculated result
+     * @throws IllegalArgumentException If the formula needs more arguments or the result is not a finite number under {@link NonFinitePolicy#THROW}
+     */
+    public double evaluate(double a0, double a1) {
+        return evaluateScratch(2, a0, a1, 0.0);
+    }
+
+    /**
+     * Evaluates the formula with three positional arguments without allocating
+     * @param a0 The value for slot 0
+     * @param a1 The value for slot 1
+     * @param a2 The value for slot 2
+     * @return The calculated result
+     * @throws IllegalArgumentException If the formula needs more arguments or the result is not a finite number under {@link NonFinitePolicy#THROW}
+     */
+    public double evaluate(double a0, double a1, double a2) {
+        return evaluateScratch(3, a0, a1, a2);
+    }
+
+    private double evaluateScratch(int supplied, double a0, double a1, double a2) {
+        double[] args = SCRATCH.get();
+        args[0] = a0;
+        args[1] = a1;
+        args[2] = a2;
+        return evaluate(args, supplied);
+    }
+
+    /**
+     * Evaluates the formula with positional arguments. The array is only
+     * read, so callers may reuse one slot array across calls
+     * @param args The argument values in slot order; extra values are ignored
+     * @return The calculated result
+     * @throws IllegalArgumentException If too few arguments are supplied or the result is not a finite number under {@link NonFinitePolicy#THROW}
+     */
+    public double evaluate(double... args) {
+        return evaluate(args, args.length);
+    }
+
+    /**
+     * Evaluates the formula with named arguments
+     * @param args The argument values keyed by name (without the leading $)
+     * @return The calculated result
+     * @throws IllegalArgumentException If an argument is missing or the result is not a finite number under {@link NonFinitePolicy#THROW}
+     */
+    public double evaluate(Map<String, ? extends Number> args) {
+        double[] values = new double[argumentNames.size()];
+        for (int i = 0; i < values.length; i++) {
+            Number value = args.get(argumentNames.get(i));
+            if (value == null) {
+                return evaluate(values, i);
+            }
+            values[i] = value.doubleValue();
+        }
+        return evaluate(values, values.length);
+    }
+
+    /**
+     * Evaluates the formula without throwing. Missing arguments and infinite
+     * or NaN results are reported through the holder instead, without
+     * capturing a stack trace, so rows of dirty data cost no more than valid ones
+     * @param result Receives the result or the reason for the failure
+     * @param args The argument values in slot order; extra values are ignored
+     * @return Whether the result is a finite number
+     */
+    public boolean tryEvaluate(EvaluationResult result, double... args) {
+        return tryEvaluate(result, args, args.length);
+    }
+
+    boolean tryEvaluate(EvaluationResult result, double[] args, int supplied) {
+        if (supplied < argumentNames.size()) {
+            if (FormulaMetrics.active) {
+                FormulaMetrics.rejected(this, ErrorCategory.MISSING_ARGUMENT);
+            }
+            return result.fail(ErrorCategory.MISSING_ARGUMENT, missingArgumentMessage(supplied), -1);
+        }
+        double value = evaluate(args, supplied, NonFinitePolicy.RETURN_NAN);
+        if (Double.isNaN(value)) {
+            return result.fail(ErrorCategory.INVALID_RESULT, EvaluationResult.INVALID_RESULT_MESSAGE, -1);
+        }
+        return result.succeed(value);
+    }
+
+    private double evaluate(double[] args, int supplied) {
+        return evaluate(args, supplied, nonFinitePolicy);
+    }
+
+    /**
+     * Evaluates the formula, instrumented when {@link FormulaMetrics} is active
+     * @param args The argument values in slot order
+     * @param supplied The number of leading values that were actually supplied
+     * @param policy What to do with an infinite or NaN result
+     * @return The calculated result
+     * @throws FormulaException If too few arguments are supplied or the result is not a finite number
+     */
+    double evaluate(double[] args, int supplied, NonFinitePolicy policy) {
+        if (FormulaMetrics.active) {
+            return FormulaMetrics.evaluate(this, args, supplied, policy);
+        }
+        return run(args, supplied, policy);
+    }
+
+    double run(double[] args, int supplied, NonFinitePolicy policy) {
+        if (supplied < argumentNames.size()) {
+            throw missingArgument(supplied);
+        }
+        double result = kernel.apply(args);
+        if (Double.isFinite(result)) {
+            return result;
+        }
+        if (policy == NonFinitePolicy.RETURN_NAN) {
+            return Double.NaN;
+        }
+        throw invalidResult();
+    }
+
+    /**
+     * Evaluates the formula for every row of a set of argument columns
+     * @param columns One column per argument slot, all of the same length
+     * @param out Receives the result of each row; must be at least as long as the columns
+     * @return The number of rows whose result is not a finite number; those rows hold NaN or an infinity
+     * @throws IllegalArgumentException If a column is missing or shorter than the first one
+     */
+    public int evaluateBatch(double[][] columns, double[] out) {
+        int rows = columns.length == 0 ? out.length : columns[0].length;
+        return evaluateBatch(columns, 0, rows, out, null);
+    }
+
+    /**
+     * Evaluates the formula for a range of rows of a set of argument columns.
+     *
+     * Rows are evaluated a chunk at a time with one tight primitive loop per
+     * operation, so there is no per-row dispatch or allocation. With the
+     * {@link Backend#VECTOR} backend these loops use SIMD instructions where
+     * the operation allows it, with identical results. A row whose
+     * result is NaN or infinite does not abort the batch: the value is
+     * stored as is and, when an error bitmap is supplied, bit {@code row % 64}
+     * of {@code errors[row / 64]} is set. Bits of valid rows are left untouched.
+     * @param columns One column per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param out Receives the result of row {@code r} at index {@code r}
+     * @param errors Bitmap of rows with non-finite results, indexed like the rows; may be null
+     * @return The number of rows in the range whose result is not a finite number
+     * @throws IllegalArgumentException If a column, the output or the bitmap is too short for the range
+     */
+    public int evaluateBatch(double[][] columns, int offset, int length, double[] out, long[] errors) {
+        BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, out.length, errors);
+        return new BatchEvaluator(program, length, backend == Backend.VECTOR).evaluate(columns, offset, offset + length, out, errors);
+    }
+
+    /**
+     * Evaluates the formula for every row of a set of off-heap argument columns
+     * @param columns One buffer per argument slot, all with the same limit
+     * @param out Receives the result of each row; its limit must be at least that of the columns
+     * @return The number of rows whose result is not a finite number; those rows hold NaN or an infinity
+     * @throws IllegalArgumentException If a column is missing or shorter than the first one, or the output is read-only
+     * @see MappedColumns
+     */
+    public int evaluateBatch(DoubleBuffer[] columns, DoubleBuffer out) {
+        int rows = columns.length == 0 ? out.limit() : columns[0].limit();
+        return evaluateBatch(columns, 0, rows, out, null);
+    }
+
+    /**
+     * Evaluates the formula for a range of rows of off-heap argument columns,
+     * such as memory-mapped files of little-endian doubles.
+     *
+     * Rows are addressed by absolute buffer index, so buffer positions are
+     * neither used nor changed and the same buffers may be shared between
+     * threads. Arguments are read one chunk at a time into small scratch
+     * arrays and results are stored the same way, so the columns are never
+     * copied to the heap as a whole and files larger than the heap can be
+     * evaluated. Buffers in the platform's native byte order are fastest.
+     * Results and error reporting are those of
+     * {@link #evaluateBatch(double[][], int, int, double[], long[])}.
+     * @param columns One buffer per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param out Receives the result of row {@code r} at index {@code r}
+     * @param errors Bitmap of rows with non-finite results, indexed like the rows; may be null
+     * @return The number of rows in the range whose result is not a finite number
+     * @throws IllegalArgumentException If a column, the output or the bitmap is too short for the range, or the output is read-only
+     */
+    public int evaluateBatch(DoubleBuffer[] columns, int offset, int length, DoubleBuffer out, long[] errors) {
+        BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, out, errors);
+        return new BatchEvaluator(program, length, backend == Backend.VECTOR).evaluate(columns, offset, offset + length, out, errors);
+    }
+
+    /**
+     * Evaluates the formula for every row of a set of argument columns on the common fork-join pool
+     * @param columns One column per argument slot, all of the same length
+     * @param out Receives the result of each row; must be at least as long as the columns
+     * @return The number of rows whose result is not a finite number; those rows hold NaN or an infinity
+     * @throws IllegalArgumentException If a column is missing or shorter than the first one
+     * @see #evaluateBatchParallel(double[][], int, int, double[], long[], ForkJoinPool)
+     */
+    public int evaluateBatchParallel(double[][] columns, double[] out) {
+        int rows = columns.length == 0 ? out.length : columns[0].length;
+        return evaluateBatchParallel(columns, 0, rows, out, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates the formula for a range of rows of a set of argument columns on a fork-join pool.
+     *
+     * The range is split into tasks whose size adapts to the number of rows,
+     * the pool's parallelism and the cost of the formula; ranges too small to
+     * be worth splitting are evaluated in the calling thread. The output,
+     * error bitmap and return value are exactly those of
+     * {@link #evaluateBatch(double[][], int, int, double[], long[])}.
+     * @param columns One column per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param out Receives the result of row {@code r} at index {@code r}
+     * @param errors Bitmap of rows with non-finite results, indexed like the rows; may be null
+     * @param pool The pool to run the tasks in
+     * @return The number of rows in the range whose result is not a finite number
+     * @throws IllegalArgumentException If a column, the output or the bitmap is too short for the range
+     */
+    public int evaluateBatchParallel(double[][] columns, int offset, int length, double[] out, long[] errors, ForkJoinPool pool) {
+        BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, out.length, errors);
+        int leafSize = ParallelBatch.leafSize(program, length, pool.getParallelism());
+        ParallelBatch task = new ParallelBatch(program, backend == Backend.VECTOR, columns, offset, offset + length, out, errors, leafSize);
+        return length <= leafSize ? task.compute() : pool.invoke(task);
+    }
+
+    /**
+     * Aggregates the results of the formula for every row of a set of argument columns
+     * @param columns One column per argument slot, all of the same length
+     * @return The count, compensated sum, mean, minimum and maximum of the results
+     * @throws IllegalArgumentException If a column is missing or shorter than the first one
+     */
+    public Aggregate aggregate(double[][] columns) {
+        int rows = columns.length == 0 ? 0 : columns[0].length;
+        return aggregate(columns, 0, rows, new Aggregate());
+    }
+
+    /**
+     * Evaluates the formula for a range of rows of a set of argument columns
+     * and folds the results into an aggregate instead of storing them.
+     *
+     * Rows are evaluated a chunk at a time as in
+     * {@link #evaluateBatch(double[][], int, int, double[], long[])}, and each
+     * chunk is added to the aggregate while it is still in cache, so the
+     * memory used does not depend on the number of rows. Calling this
+     * repeatedly with the same aggregate covers input that is read in pieces.
+     * @param columns One column per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param into Receives the results; non-finite results only count as invalid
+     * @return The aggregate
+     * @throws IllegalArgumentException If a column is too short for the range
+     */
+    public Aggregate aggregate(double[][] columns, int offset, int length, Aggregate into) {
+        BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, Integer.MAX_VALUE, null);
+        new BatchEvaluator(program, length, backend == Backend.VECTOR).aggregate(columns, offset, offset + length, into);
+        return into;
+    }
+
+    /**
+     * Aggregates the results of the formula for a range of rows of off-heap
+     * argument columns, read a chunk at a time as described for
+     * {@link #evaluateBatch(DoubleBuffer[], int, int, DoubleBuffer, long[])}
+     * @param columns One buffer per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param into Receives the results; non-finite results only count as invalid
+     * @return The aggregate
+     * @throws IllegalArgumentException If a column is too short for the range
+     * @see MappedColumns
+     */
+    public Aggregate aggregate(DoubleBuffer[] columns, int offset, int length, Aggregate into) {
+        BatchEvaluator.checkColumns(argumentNames.size(), columns, offset, length);
+        new BatchEvaluator(program, length, backend == Backend.VECTOR).aggregate(columns, offset, offset + length, into);
+        return into;
+    }
+
+    /**
+     * Aggregates the results of the formula for every row of a set of argument columns on the common fork-join pool
+     * @param columns One column per argument slot, all of the same length
+     * @return The count, compensated sum, mean, minimum and maximum of the results
+     * @throws IllegalArgumentException If a column is missing or shorter than the first one
+     * @see #aggregateParallel(double[][], int, int, Aggregate, ForkJoinPool)
+     */
+    public Aggregate aggregateParallel(double[][] columns) {
+        int rows = columns.length == 0 ? 0 : columns[0].length;
+        return aggregateParallel(columns, 0, rows, new Aggregate(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Aggregates the results of the formula for a range of rows on a fork-join pool.
+     *
+     * The range is split into tasks as for
+     * {@link #evaluateBatchParallel(double[][], int, int, double[], long[], ForkJoinPool)}.
+     * Each task folds its rows into its own empty copy of the aggregate, and
+     * the partial aggregates are combined when the tasks join. Counts,
+     * minimum, maximum and histogram are those of a sequential call; the sum
+     * can differ from it in the last bits, as its terms are grouped differently.
+     * @param columns One column per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param into Receives the results; non-finite results only count as invalid
+     * @param pool The pool to run the tasks in
+     * @return The aggregate
+     * @throws IllegalArgumentException If a column is too short for the range
+     */
+    public Aggregate aggregateParallel(double[][] columns, int offset, int length, Aggregate into, ForkJoinPool pool) {
+        BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, Integer.MAX_VALUE, null);
+        int leafSize = ParallelBatch.leafSize(program, length, pool.getParallelism());
+        if (length <= leafSize) {
+            return aggregate(columns, offset, length, into);
+        }
+        ParallelAggregate task = new ParallelAggregate(program, backend == Backend.VECTOR, columns, offset, offset + length, into, leafSize);
+        return into.combine(pool.invoke(task));
+    }
+
+    /**
+     * Returns the results of the formula for every row of a set of argument
+     * columns as a stream. Results are computed lazily a chunk at a time; the
+     * stream is sequential, and {@code parallel()} splits the rows between
+     * threads without changing any result. Non-finite results are included as is.
+     * @param columns One column per argument slot, all of the same length
+     * @return The results in row order
+     * @throws IllegalArgumentException If a column is missing or shorter than the first one
+     */
+    public DoubleStream stream(double[][] columns) {
+        int rows = columns.length == 0 ? 0 : columns[0].length;
+        return StreamSupport.doubleStream(spliterator(columns, 0, rows), false);
+    }
+
+    /**
+     * Returns a spliterator over the results of the formula for a range of rows
+     * @param columns One column per argument slot, indexed by row
+     * @param offset The first row
+     * @param length The number of rows
+     * @return The results in row order
+     * @throws IllegalArgumentException If a column is too short for the range
+     */
+    public Spliterator.OfDouble spliterator(double[][] columns, int offset, int length) {
+        BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, Integer.MAX_VALUE, null);
+        return new BatchSpliterator(program, backend == Backend.VECTOR, columns, offset, offset + length);
+    }
+
+    /**
+     * Evaluates the formula for every combination of argument values on the common fork-join pool
+     * @param axes The values of each argument slot, in slot order
+     * @param out Receives the grid, laid out as described for {@link #tabulate(double[][], double[], ForkJoinPool)}
+     * @return The number of cells whose result is not a finite number; those cells hold NaN or an infinity
+     * @throws IllegalArgumentException If an axis is missing or the output is shorter than the grid
+     */
+    public int tabulate(double[][] axes, double[] out) {
+        return tabulate(axes, out, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates the formula for every combination of argument values given by name
+     * @param axes The values of each argument, keyed by name (without the leading $)
+     * @param out Receives the grid, with axes in slot order as described for
+     *     {@link #tabulate(double[][], double[], ForkJoinPool)}
+     * @return The number of cells whose result is not a finite number
+     * @throws IllegalArgumentException If an axis is missing or the output is shorter than the grid
+     */
+    public int tabulate(Map<String, double[]> axes, double[] out) {
+        double[][] values = new double[argumentNames.size()][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = axes.get(argumentNames.get(i));
+            if (values[i] == null) {
+                throw missingArgument(i);
+            }
+        }
+        return tabulate(values, out);
+    }
+
+    /**
+     * Evaluates the formula over the Cartesian product of one array of values per argument.
+     *
+     * The grid is stored row-major in slot order, with the last slot varying
+     * fastest: for axes of lengths {@code n0, n1, ..., nk} the cell for
+     * indices {@code (i0, i1, ..., ik)} is at
+     * {@code ((i0 * n1 + i1) * n2 + ...) * nk + ik}, so for two arguments
+     * {@code out[i * n1 + j]} holds the result for {@code axes[0][i]} and
+     * {@code axes[1][j]}. Subexpressions that do not depend on the last
+     * argument are computed once per grid row rather than once per cell,
+     * and only when one of their arguments changed; listing the argument of
+     * the most expensive subexpression first therefore saves the most work.
+     * Grid rows are split between tasks on the pool. Every cell holds the
+     * same value as {@link #evaluate(double...)} would return for its
+     * arguments; non-finite results are stored as is.
+     * @param axes The values of each argument slot, in slot order
+     * @param out Receives the grid; must hold at least the product of the axis lengths
+     * @param pool The pool to run the tasks in
+     * @return The number of cells whose result is not a finite number
+     * @throws IllegalArgumentException If an axis is missing, the grid has more than
+     *     {@code Integer.MAX_VALUE} cells or the output is shorter than the grid
+     * @see FormulaCalculator#range(double, double, int)
+     */
+    public int tabulate(double[][] axes, double[] out, ForkJoinPool pool) {
+        int cells = Tabulator.cellCount(argumentNames.size(), axes);
+        if (out.length < cells) {
+            throw new IllegalArgumentException("Output has fewer than " + cells + " cells");
+        }
+        Tabulator tabulator = new Tabulator(program, backend == Backend.VECTOR, axes);
+        int leafRows = tabulator.leafRows(pool.getParallelism());
+        if (tabulator.rows() <= leafRows) {
+            return tabulator.tabulate(0, tabulator.rows(), out);
+        }
+        return pool.invoke(new Tabulator.Task(tabulator, 0, tabulator.rows(), out, leafRows));
+    }
+
+    /**
+     * Returns this formula for exact evaluation in fixed-point decimal
+     * arithmetic on scaled {@code long} values; see {@link DecimalFormula}
+     * @param scale The number of decimal places of every value, from 0 to {@link DecimalFormula#MAX_SCALE}
+     * @param roundingMode How products and quotients are rounded to the scale; not {@link RoundingMode#UNNECESSARY}
+     * @return The decimal formula
+     * @throws IllegalArgumentException If the scale or rounding mode is not supported, or the
+     *     formula uses a function without an exact decimal result, such as {@code sqrt}
+     */
+    public DecimalFormula decimal(int scale, RoundingMode roundingMode) {
+        Node tree = root != null ? root : new FormulaParser(formula).parse();
+        return new DecimalFormula(this, tree, scale, roundingMode);
+    }
+
+    /**
+     * Computes the partial derivative of the formula with respect to one
+     * argument, in forward mode. The derivative is exact up to rounding,
+     * unlike a finite difference; see {@link #gradient(double[], double[])}
+     * for the conventions at points where the formula is not differentiable
+     * @param argument The argument name, with or without the leading $
+     * @param args The argument values in slot order
+     * @return The partial derivative, which may be infinite or NaN where the formula has no derivative
+     * @throws IllegalArgumentException If the formula has no such argument, too few arguments are
+     *     supplied or the formula value is not a finite number
+     */
+    public double derivative(String argument, double... args) {
+        int slot = slotOf(argument);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Invalid formula: no argument " + (argument.startsWith("$") ? "" : "$") + argument);
+        }
+        if (args.length < argumentNames.size()) {
+            throw missingArgument(args.length);
+        }
+        double[][] scratch = Differentiator.scratch(program.registerCount());
+        double derivative = differentiator().forward(args, slot, scratch[0], scratch[1]);
+        checkResult(scratch[0][program.outputs[0]]);
+        return derivative;
+    }
+
+    /**
+     * Computes the value and the gradient of the formula in reverse mode:
+     * one evaluation followed by one backward pass yields the partial
+     * derivatives with respect to all arguments, at about the cost of two
+     * or three evaluations however many arguments there are.
+     *
+     * Every built-in function is differentiated exactly. Where a function
+     * has no derivative a subgradient is used: {@code abs} has derivative 0
+     * at 0, {@code min} and {@code max} give each of two equal operands half,
+     * and {@code round}, {@code floor} and {@code ceil} have derivative 0.
+     * Other singular points, such as {@code sqrt} at 0, give infinite or NaN
+     * components.
+     * @param args The argument values in slot order
+     * @param gradient Receives the partial derivative with respect to slot {@code s} at index {@code s}
+     * @return The value of the formula
+     * @throws IllegalArgumentException If too few arguments are supplied, the gradient array is too
+     *     short or the value is not a finite number
+     */
+    public double gradient(double[] args, double[] gradient) {
+        if (args.length < argumentNames.size()) {
+            throw missingArgument(args.length);
+        }
+        if (gradient.length < argumentNames.size()) {
+            throw new IllegalArgumentException("Expected a gradient array of at least " + argumentNames.size() + " values");
+        }
+        double[][] scratch = Differentiator.scratch(program.registerCount());
+        return checkResult(differentiator().reverse(args, gradient, scratch[0], scratch[1]));
+    }
+
+    /**
+     * Computes values and gradients for every row of a set of argument columns
+     * @param columns One column per argument slot, all of the same length
+     * @param values Receives the value of each row
+     * @param gradients One column per argument slot receiving the partial derivatives of each row
+     * @return The number of rows whose value is not a finite number
+     * @throws IllegalArgumentException If a column is missing or too short
+     */
+    public int gradientBatch(double[][] columns, double[] values, double[][] gradients) {
+        int rows = columns.length == 0 ? values.length : columns[0].length;
+        return gradientBatch(columns, 0, rows, values, gradients, null);
+    }
+
+    /**
+     * Computes values and gradients for a range of rows of a set of argument
+     * columns. Each chunk of rows is evaluated like
+     * {@link #evaluateBatch(double[][], int, int, double[], long[])} and
+     * then differentiated in reverse mode one instruction at a time over the
+     * chunk. Values, error bitmap and return value are those of
+     * {@code evaluateBatch}; gradients follow the conventions of
+     * {@link #gradient(double[], double[])} and are stored as is.
+     * @param columns One column per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param values Receives the value of row {@code r} at index {@code r}
+     * @param gradients Receives the partial derivative with respect to slot {@code s} of row {@code r}
+     *     at {@code gradients[s][r]}
+     * @param errors Bitmap of rows with non-finite values, indexed like the rows; may be null
+     * @return The number of rows in the range whose value is not a finite number
+     * @throws IllegalArgumentException If a column, the values, a gradient column or the bitmap is too short for the range
+     */
+    public int gradientBatch(double[][] columns, int offset, int length, double[] values, double[][] gradients, long[] errors) {
+        BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, values.length, errors);
+        if (gradients.length < argumentNames.size()) {
+            throw new IllegalArgumentException("Expected " + argumentNames.size() + " gradient columns but got " + gradients.length);
+        }
+        for (int slot = 0; slot < argumentNames.size(); slot++) {
+            if (gradients[slot] == null || gradients[slot].length < offset + length) {
+                throw new IllegalArgumentException("Gradient column " + slot + " has fewer than " + (offset + length) + " rows");
+            }
+        }
+        BatchEvaluator evaluator = new BatchEvaluator(program, length, backend == Backend.VECTOR);
+        return differentiator().reverse(evaluator, columns, offset, offset + length, values, gradients, errors);
+    }
+
+    private Differentiator differentiator() {
+        CompiledFormula origin = this.origin;
+        Differentiator differentiator = origin.differentiator;
+        if (differentiator == null) {
+            differentiator = new Differentiator(program);
+            origin.differentiator = differentiator;
+        }
+        return differentiator;
+    }
+
+    FormulaMetrics.Counters counters() {
+        return origin.counters;
+    }
+
+    void counters(FormulaMetrics.Counters counters) {
+        origin.counters = counters;
+    }
+
+    private FormulaException missingArgument(int slot) {
+        return new FormulaException(missingArgumentMessage(slot), ErrorCategory.MISSING_ARGUMENT, -1);
+    }
+
+    private String missingArgumentMessage(int slot) {
+        return "Invalid formula: no value supplied for argument $" + argumentNames.get(slot);
+    }
+
+    /**
+     * Validates an evaluation result
+     * @param result The raw result
+     * @return The result if it is finite
+     * @throws FormulaException If the result is infinite or NaN
+     */
+    static double checkResult(double result) {
+        if (!Double.isFinite(result)) {
+            throw invalidResult();
+        }
+        return result;
+    }
+
+    static FormulaException invalidResult() {
+        return new FormulaException(EvaluationResult.INVALID_RESULT_MESSAGE, ErrorCategory.INVALID_RESULT, -1);
+    }
+
+    @Override
+    public String toString() {
+        return formula;
+    }
+}
@@ -0,0 +1,161 @@
+package com.formulacalculator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line mode that evaluates a formula over a CSV file:
+ * <pre>
+ * java -jar formula-calculator.jar --formula "$qty * $price" --in data.csv --out result.csv --map qty=col3,price=col5
+ * </pre>
+ * Each argument of the formula is mapped to an input column, either as
+ * {@code colN} (1-based) or, with {@code --header}, by column name.
+ * With {@code --header}, arguments that are not mapped are looked up by
+ * their own name. The work is done by {@link CsvEvaluator}; this class only
+ * parses the options and reports the throughput.
+ */
+final class CsvCommand {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+        "Usage: java -jar formula-calculator.jar --formula FORMULA --in INPUT.csv --out OUTPUT.csv [options]",
+        "  --map NAME=colN,...   input column of each $NAME argument; colN is 1-based, or a header name",
+        "  --header              the first line holds column names; the output gets a header line",
+        "  --delimiter C         field separator (default ,)",
+        "  --backend NAME        INTERPRETER, BYTECODE, VECTOR or TIERED (default VECTOR, falls back when unavailable)");
+
+    private CsvCommand() {
+    }
+
+    /**
+     * Runs the command.
+     * @param args The command line arguments
+     * @param out Receives the summary
+     * @param err Receives error messages and usage
+     * @return The process exit code: 0 on success, 1 if evaluation failed, 2 for invalid options
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        Map<String, String> options = new HashMap<>();
+        boolean header = false;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--header")) {
+                header = true;
+            } else if (option.equals("--formula") || option.equals("--in") || option.equals("--out")
+                    || option.equals("--map") || option.equals("--delimiter") || option.equals("--backend")) {
+                if (i + 1 == args.length) {
+                    return usage(err, "Missing value for " + option);
+                }
+                options.put(option, args[++i]);
+            } else {
+                return usage(err, "Unknown option " + option);
+            }
+        }
+        for (String required : new String[] {"--formula", "--in", "--out"}) {
+            if (!options.containsKey(required)) {
+                return usage(err, "Missing option " + required);
+            }
+        }
+        String delimiter = options.getOrDefault("--delimiter", ",");
+        if (delimiter.length() != 1 || delimiter.charAt(0) > 127 || delimiter.charAt(0) == '"') {
+            return usage(err, "The delimiter must be a single ASCII character other than a quote");
+        }
+
+        try {
+            Backend backend = backend(options.getOrDefault("--backend", "VECTOR"));
+            CompiledFormula formula = FormulaCalculator.compile(options.get("--formula"), backend);
+            Path input = Paths.get(options.get("--in"));
+            Path output = Paths.get(options.get("--out"));
+            List<String> names = header ? CsvEvaluator.readHeader(input, delimiter.charAt(0)) : Collections.emptyList();
+            int[] columnOfSlot = mapColumns(formula, options.getOrDefault("--map", ""), names);
+
+            CsvEvaluator evaluator = new CsvEvaluator(formula, columnOfSlot, (byte) delimiter.charAt(0), header, CsvEvaluator.DEFAULT_WINDOW);
+            long start = System.nanoTime();
+            evaluator.run(input, output);
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            out.printf(Locale.ROOT, "Evaluated %,d rows in %.3f s (%,.0f rows/s), %,d invalid%n",
+                evaluator.rows(), seconds, evaluator.rows() / seconds, evaluator.invalidRows());
+            return 0;
+        } catch (IllegalArgumentException e) {
+            return usage(err, e.getMessage());
+        } catch (IOException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Resolves the input column of every argument slot.
+     * @param formula The compiled formula
+     * @param map The {@code --map} option, e.g. {@code qty=col3,price=col5}
+     * @param header The column names, or an empty list without a header
+     * @return The zero-based column of each slot
+     * @throws IllegalArgumentException If a mapping is malformed or an argument has no column
+     */
+    static int[] mapColumns(CompiledFormula formula, String map, List<String> header) {
+        int[] columnOfSlot = new int[formula.argumentCount()];
+        Arrays.fill(columnOfSlot, -1);
+        if (!map.isEmpty()) {
+            for (String entry : map.split(",")) {
+                int separator = entry.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Invalid mapping " + entry + ", expected NAME=colN");
+                }
+                String name = entry.substring(0, separator).trim();
+                int slot = formula.slotOf(name);
+                if (slot < 0) {
+                    throw new IllegalArgumentException("The formula has no argument $" + name);
+                }
+                columnOfSlot[slot] = column(entry.substring(separator + 1).trim(), header);
+            }
+        }
+        for (int slot = 0; slot < columnOfSlot.length; slot++) {
+            if (columnOfSlot[slot] < 0) {
+                String name = formula.argumentNames().get(slot);
+                columnOfSlot[slot] = header.indexOf(name);
+                if (columnOfSlot[slot] < 0) {
+                    throw new IllegalArgumentException("No column mapped for argument $" + name);
+                }
+            }
+        }
+        return columnOfSlot;
+    }
+
+    private static Backend backend(String name) {
+        for (Backend backend : Backend.values()) {
+            if (backend.name().equalsIgnoreCase(name)) {
+                return backend;
+            }
+        }
+        throw new IllegalArgumentException("Unknown backend " + name);
+    }
+
+    private static int column(String reference, List<String> header) {
+        if (reference.matches("(?i)col[0-9]+")) {
+            int column = Integer.parseInt(reference.substring(3));
+            if (column < 1) {
+                throw new IllegalArgumentException("Column numbers start at col1");
+            }
+            return column - 1;
+        }
+        int column = header.indexOf(reference);
+        if (column < 0) {
+            throw new IllegalArgumentException("Unknown column " + reference
+                + (header.isEmpty() ? "; use colN or --header to map by name" : ""));
+        }
+        return column;
+    }
+
+    private static int usage(PrintStream err, String message) {
+        err.println("Error: " + message);
+        err.println(USAGE);
+        return 2;
+    }
+}
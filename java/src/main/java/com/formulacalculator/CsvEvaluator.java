@@ -0,0 +1,431 @@
+package com.formulacalculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates a formula for every row of a CSV file and writes one result per line.
+ *
+ * The input is read through memory-mapped windows of the file, so the
+ * operating system pages it in and out and files far larger than the heap
+ * can be processed. Fields are split and numbers parsed directly from the
+ * mapped bytes; only numbers with more than 15 significant digits or a large
+ * exponent fall back to {@link Double#parseDouble}. Rows are collected into
+ * fixed-size argument columns and evaluated with
+ * {@link CompiledFormula#evaluateBatch(double[][], int, int, double[], long[])},
+ * and results are formatted into a reused buffer and written to a file
+ * channel. Memory use is therefore constant regardless of the file size.
+ *
+ * Fields may be quoted, with {@code ""} as an escaped quote, and lines may end
+ * with {@code \n} or {@code \r\n}; blank lines are skipped. A row whose mapped
+ * fields are missing or not numbers, or whose result is not finite, produces
+ * an empty output line and is counted as invalid, so output lines stay
+ * aligned with input rows.
+ */
+final class CsvEvaluator {
+
+    /** Rows evaluated per batch */
+    static final int BATCH_SIZE = 4096;
+    /** Bytes of the input mapped at a time; a line must fit in one window */
+    static final int DEFAULT_WINDOW = 1 << 26;
+
+    private static final int WRITE_BUFFER = 1 << 16;
+    /** Longest text produced by {@link StringBuilder#append(double)} plus the newline */
+    private static final int MAX_VALUE_LENGTH = 32;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final CompiledFormula formula;
+    private final int[][] slotsOfColumn;
+    private final int mappedColumns;
+    private final byte delimiter;
+    private final boolean header;
+    private final int window;
+    private final double[][] columns;
+    private final double[] results = new double[BATCH_SIZE];
+    private final long[] errors = new long[BATCH_SIZE / 64];
+    private final long[] inputErrors = new long[BATCH_SIZE / 64];
+    private final StringBuilder text = new StringBuilder(MAX_VALUE_LENGTH);
+    private ByteBuffer output;
+    private FileChannel outputChannel;
+    private int pending;
+    private long rows;
+    private long invalidRows;
+
+    /**
+     * @param formula The formula to evaluate
+     * @param columnOfSlot The zero-based CSV column of each argument slot
+     * @param delimiter The field separator
+     * @param header Whether the first line is a header, which is skipped; the output then starts with a {@code result} header
+     * @param window Bytes of the input mapped at a time
+     */
+    CsvEvaluator(CompiledFormula formula, int[] columnOfSlot, byte delimiter, boolean header, int window) {
+        this.formula = formula;
+        int columnCount = 0;
+        for (int column : columnOfSlot) {
+            columnCount = Math.max(columnCount, column + 1);
+        }
+        int[][] slots = new int[columnCount][];
+        int mapped = 0;
+        for (int slot = 0; slot < columnOfSlot.length; slot++) {
+            int[] existing = slots[columnOfSlot[slot]];
+            if (existing == null) {
+                mapped++;
+                existing = new int[0];
+            }
+            existing = Arrays.copyOf(existing, existing.length + 1);
+            existing[existing.length - 1] = slot;
+            slots[columnOfSlot[slot]] = existing;
+        }
+        this.slotsOfColumn = slots;
+        this.mappedColumns = mapped;
+        this.delimiter = delimiter;
+        this.header = header;
+        this.window = window;
+        this.columns = new double[columnOfSlot.length][BATCH_SIZE];
+    }
+
+    /**
+     * @return The number of data rows evaluated by the last {@link #run}
+     */
+    long rows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of rows of the last {@link #run} that produced no result
+     */
+    long invalidRows() {
+        return invalidRows;
+    }
+
+    /**
+     * Evaluates every row of the input and writes the results.
+     * @param input The CSV file to read
+     * @param destination The file to create or overwrite with one result per line
+     * @throws IOException If a file cannot be read or written, or a line does not fit in the mapping window
+     */
+    void run(Path input, Path destination) throws IOException {
+        rows = 0;
+        invalidRows = 0;
+        pending = 0;
+        clearErrors();
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            this.outputChannel = out;
+            this.output = ByteBuffer.allocateDirect(WRITE_BUFFER);
+            if (header) {
+                this.output.put("result\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            long size = in.size();
+            long position = 0;
+            boolean skipLine = header;
+            while (position < size) {
+                int length = (int) Math.min(window, size - position);
+                MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                int start = 0;
+                if (skipLine) {
+                    start = skipLine(buffer, 0, length, last);
+                    if (start < 0) {
+                        throw new IOException("CSV header is longer than the mapping window of " + window + " bytes");
+                    }
+                    skipLine = false;
+                }
+                int consumed = parseLines(buffer, start, length, last);
+                if (consumed == 0 && !last) {
+                    throw new IOException("CSV line at byte " + position + " is longer than the mapping window of " + window + " bytes");
+                }
+                position += consumed;
+            }
+            evaluatePending();
+            output.flip();
+            while (output.hasRemaining()) {
+                out.write(output);
+            }
+        } finally {
+            this.output = null;
+            this.outputChannel = null;
+        }
+    }
+
+    /**
+     * Parses the complete lines of a window.
+     * @return The number of bytes consumed; an incomplete last line is left for the next window
+     */
+    private int parseLines(ByteBuffer buffer, int start, int limit, boolean last) throws IOException {
+        int position = start;
+        while (position < limit) {
+            int next = parseRow(buffer, position, limit, last);
+            if (next < 0) {
+                return position;
+            }
+            position = next;
+        }
+        return limit;
+    }
+
+    /**
+     * Parses one line into the pending argument columns.
+     * @return The start of the next line, or -1 if the line is not complete in this window
+     */
+    private int parseRow(ByteBuffer buffer, int start, int limit, boolean last) throws IOException {
+        int row = pending;
+        int column = 0;
+        int found = 0;
+        int position = start;
+        while (true) {
+            int fieldStart = position;
+            boolean quoted = false;
+            byte b = 0;
+            while (position < limit) {
+                b = buffer.get(position);
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && (b == delimiter || b == '\n')) {
+                    break;
+                }
+                position++;
+            }
+            if (position == limit && !last) {
+                // The line will be parsed again from the next window
+                inputErrors[row >>> 6] &= ~(1L << row);
+                return -1;
+            }
+            boolean endOfLine = position == limit || b == '\n';
+            if (endOfLine && column == 0 && isBlank(buffer, fieldStart, position)) {
+                return position == limit ? limit : position + 1;
+            }
+            if (column < slotsOfColumn.length && slotsOfColumn[column] != null) {
+                double value = parseNumber(buffer, fieldStart, position);
+                if (Double.isNaN(value)) {
+                    inputErrors[row >>> 6] |= 1L << row;
+                }
+                for (int slot : slotsOfColumn[column]) {
+                    columns[slot][row] = value;
+                }
+                found++;
+            }
+            column++;
+            if (endOfLine) {
+                if (found < mappedColumns) {
+                    inputErrors[row >>> 6] |= 1L << row;
+                }
+                pending++;
+                if (pending == BATCH_SIZE) {
+                    evaluatePending();
+                }
+                return position == limit ? limit : position + 1;
+            }
+            position++;
+        }
+    }
+
+    private static int skipLine(ByteBuffer buffer, int start, int limit, boolean last) {
+        for (int position = start; position < limit; position++) {
+            if (buffer.get(position) == '\n') {
+                return position + 1;
+            }
+        }
+        return last ? limit : -1;
+    }
+
+    private static boolean isBlank(ByteBuffer buffer, int start, int end) {
+        for (int position = start; position < end; position++) {
+            if (!isSpace(buffer.get(position))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Evaluates the pending rows and appends their results to the output.
+     */
+    private void evaluatePending() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        formula.evaluateBatch(columns, 0, pending, results, errors);
+        for (int row = 0; row < pending; row++) {
+            if (output.remaining() < MAX_VALUE_LENGTH) {
+                flush();
+            }
+            if (((errors[row >>> 6] | inputErrors[row >>> 6]) & (1L << row)) != 0) {
+                invalidRows++;
+            } else {
+                text.setLength(0);
+                text.append(results[row]);
+                for (int i = 0; i < text.length(); i++) {
+                    output.put((byte) text.charAt(i));
+                }
+            }
+            output.put((byte) '\n');
+        }
+        rows += pending;
+        pending = 0;
+        clearErrors();
+    }
+
+    private void clearErrors() {
+        Arrays.fill(errors, 0L);
+        Arrays.fill(inputErrors, 0L);
+    }
+
+    private void flush() throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            outputChannel.write(output);
+        }
+        output.clear();
+    }
+
+    /**
+     * Parses a decimal number such as {@code -12.5}, {@code .5} or {@code 1.5e3}
+     * from a range of bytes, ignoring surrounding whitespace and quotes.
+     *
+     * Numbers with at most 15 significant digits and a decimal exponent of at
+     * most 22 are exact in a double together with the power of ten, so one
+     * multiplication or division gives the correctly rounded result without
+     * building a String. Other numbers are rare in practice and are handed to
+     * {@link Double#parseDouble}, so the result always equals it.
+     * @param buffer The bytes
+     * @param start The first byte of the field
+     * @param end The byte after the field
+     * @return The value, or NaN if the field is empty or not a number
+     */
+    static double parseNumber(ByteBuffer buffer, int start, int end) {
+        while (start < end && isSpace(buffer.get(start))) {
+            start++;
+        }
+        while (end > start && isSpace(buffer.get(end - 1))) {
+            end--;
+        }
+        if (end - start >= 2 && buffer.get(start) == '"' && buffer.get(end - 1) == '"') {
+            return parseNumber(buffer, start + 1, end - 1);
+        }
+        int position = start;
+        boolean negative = false;
+        if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+            negative = buffer.get(position) == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        boolean exact = true;
+        while (position < end && isDigit(buffer.get(position))) {
+            int digit = buffer.get(position++) - '0';
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                exact &= digit == 0;
+            }
+        }
+        if (position < end && buffer.get(position) == '.') {
+            position++;
+            while (position < end && isDigit(buffer.get(position))) {
+                int digit = buffer.get(position++) - '0';
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + digit;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    exact &= digit == 0;
+                }
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        if (position < end && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+            if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                negativeExponent = buffer.get(position) == '-';
+                position++;
+            }
+            if (position == end) {
+                return Double.NaN;
+            }
+            int value = 0;
+            while (position < end && isDigit(buffer.get(position))) {
+                value = Math.min(value * 10 + buffer.get(position++) - '0', 100_000);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (position != end) {
+            return Double.NaN;
+        }
+        if (mantissa == 0 && exact) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (exact && digits <= 15 && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Reads the column names from the first line of a CSV file.
+     * @param input The CSV file
+     * @param delimiter The field separator
+     * @return The names, trimmed and without quotes; empty if the file is empty
+     * @throws IOException If the file cannot be read
+     */
+    static List<String> readHeader(Path input, char delimiter) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) {
+                return names;
+            }
+            int start = 0;
+            while (true) {
+                int end = line.indexOf(delimiter, start);
+                String name = (end < 0 ? line.substring(start) : line.substring(start, end)).trim();
+                if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+                    name = name.substring(1, name.length() - 1);
+                }
+                names.add(name);
+                if (end < 0) {
+                    return names;
+                }
+                start = end + 1;
+            }
+        }
+    }
+}
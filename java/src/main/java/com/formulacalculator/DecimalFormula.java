@@ -0,0 +1,560 @@
+package com.formulacalculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled formula evaluated in exact fixed-point decimal arithmetic.
+ *
+ * Created with {@link CompiledFormula#decimal(int, RoundingMode)}, which
+ * keeps the formula text and fixes a scale, the number of decimal places,
+ * and a rounding mode. Every value is a {@code long} holding the number
+ * times 10<sup>scale</sup>, so {@code 19.99} at scale 2 is {@code 1999}.
+ * Addition, subtraction, negation, {@code abs}, {@code min} and {@code max}
+ * are exact; products and quotients are rounded to the scale with the
+ * rounding mode after each operation, exactly as
+ * {@link BigDecimal#multiply} followed by {@link BigDecimal#setScale} and
+ * {@link BigDecimal#divide(BigDecimal, int, RoundingMode)} would.
+ * {@code round}, {@code floor} and {@code ceil} round to whole numbers with
+ * the same rules as in double mode. Numbers written in the formula keep
+ * their decimal value, so {@code 0.1 + 0.2} is exactly {@code 0.3}; constants
+ * with more places than the scale, such as {@code PI}, are rounded to it.
+ * <pre>
+ * DecimalFormula total = FormulaCalculator.compile("$quantity * $price").decimal(2, RoundingMode.HALF_UP);
+ * total.evaluate(new BigDecimal("3"), new BigDecimal("19.99"));   // 59.97
+ * total.evaluateUnscaled(300, 1999);                                // 5997
+ * </pre>
+ * Operations check for overflow. A row whose intermediate values leave the
+ * {@code long} range is evaluated again with {@link BigDecimal}, and only
+ * that row pays for it; its result is exact whenever the final value fits.
+ * Division by zero is an invalid result, like a non-finite result in double
+ * mode. Functions without an exact decimal result ({@code sqrt},
+ * trigonometry, {@code log}, {@code exp}, {@code random} and powers other
+ * than squares) are rejected when the decimal formula is created.
+ *
+ * Instances are immutable and safe to share between threads.
+ */
+public final class DecimalFormula {
+
+    /** The largest supported scale; 10<sup>18</sup> is the largest power of ten in a {@code long} */
+    public static final int MAX_SCALE = 18;
+
+    /** Marks a value that must be computed exactly; never produced by a successful long operation */
+    private static final long EXACT = Long.MIN_VALUE;
+
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[16]);
+
+    private final CompiledFormula formula;
+    private final Program program;
+    private final int scale;
+    private final RoundingMode roundingMode;
+    private final long factor;
+    private final long[] constants;
+    private final BigDecimal[] exactConstants;
+    /** Whether a constant does not fit in a long, so every row is evaluated exactly */
+    private final boolean exactOnly;
+
+    DecimalFormula(CompiledFormula formula, Node root, int scale, RoundingMode roundingMode) {
+        if (scale < 0 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("Scale must be between 0 and " + MAX_SCALE);
+        }
+        if (roundingMode == null || roundingMode == RoundingMode.UNNECESSARY) {
+            throw new IllegalArgumentException("Rounding mode must be one that rounds, not " + roundingMode);
+        }
+        Program program = Optimizer.lowerExact(root, formula.argumentCount());
+        for (Operation operation : program.operations) {
+            if (!supports(operation)) {
+                throw new IllegalArgumentException("Invalid formula: " + (operation.isFunction() ? "function '" : "operator '")
+                    + operation.symbol() + "' is not supported in decimal mode");
+            }
+        }
+        this.formula = formula;
+        this.program = program;
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+        this.factor = BigInteger.TEN.pow(scale).longValueExact();
+        this.constants = new long[program.constants.length];
+        this.exactConstants = new BigDecimal[program.constants.length];
+        boolean exactOnly = false;
+        for (int i = 0; i < constants.length; i++) {
+            double value = program.constants[i];
+            if (!Double.isFinite(value)) {
+                throw new IllegalArgumentException("Invalid formula: constant " + value + " is out of range in decimal mode");
+            }
+            exactConstants[i] = BigDecimal.valueOf(value).setScale(scale, roundingMode);
+            BigInteger unscaled = exactConstants[i].unscaledValue();
+            if (unscaled.bitLength() < 64 && unscaled.longValue() != EXACT) {
+                constants[i] = unscaled.longValue();
+            } else {
+                exactOnly = true;
+            }
+        }
+        this.exactOnly = exactOnly;
+    }
+
+    private static boolean supports(Operation operation) {
+        switch (operation) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case NEGATE:
+            case ABS:
+            case ROUND:
+            case FLOOR:
+            case CEIL:
+            case MIN:
+            case MAX:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The compiled formula this decimal formula evaluates
+     */
+    public CompiledFormula formula() {
+        return formula;
+    }
+
+    /**
+     * @return The number of decimal places of every value
+     */
+    public int scale() {
+        return scale;
+    }
+
+    /**
+     * @return How products and quotients are rounded to the scale
+     */
+    public RoundingMode roundingMode() {
+        return roundingMode;
+    }
+
+    /**
+     * @return The argument names in slot order
+     */
+    public List<String> argumentNames() {
+        return formula.argumentNames();
+    }
+
+    /**
+     * @return The number of argument slots
+     */
+    public int argumentCount() {
+        return formula.argumentCount();
+    }
+
+    /**
+     * Converts a number to this formula's fixed-point representation
+     * @param value The number
+     * @return The number times 10<sup>scale</sup>, rounded with the rounding mode
+     * @throws IllegalArgumentException If the result does not fit in a {@code long}
+     */
+    public long unscaled(BigDecimal value) {
+        BigInteger unscaled = value.setScale(scale, roundingMode).unscaledValue();
+        if (unscaled.bitLength() >= 64) {
+            throw new IllegalArgumentException("Value " + value + " does not fit in a long at scale " + scale);
+        }
+        return unscaled.longValue();
+    }
+
+    /**
+     * Converts a fixed-point value of this formula to a number
+     * @param unscaled The number times 10<sup>scale</sup>
+     * @return The number
+     */
+    public BigDecimal decimal(long unscaled) {
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /**
+     * Evaluates the formula
+     * @param args The argument values in slot order, rounded to the scale; extra values are ignored
+     * @return The exact result at the scale, which may be outside the {@code long} range
+     * @throws FormulaException If too few arguments are supplied or the formula divides by zero
+     */
+    public BigDecimal evaluate(BigDecimal... args) {
+        checkArguments(args.length);
+        int argumentCount = program.argumentCount;
+        long[] registers = registers();
+        boolean fits = !exactOnly;
+        for (int slot = 0; slot < argumentCount; slot++) {
+            BigInteger unscaled = args[slot].setScale(scale, roundingMode).unscaledValue();
+            if (unscaled.bitLength() < 64) {
+                registers[slot] = unscaled.longValue();
+            } else {
+                fits = false;
+            }
+        }
+        if (fits) {
+            long result = run(registers);
+            if (result != EXACT) {
+                return BigDecimal.valueOf(result, scale);
+            }
+        }
+        BigDecimal[] exact = new BigDecimal[argumentCount];
+        for (int slot = 0; slot < argumentCount; slot++) {
+            exact[slot] = args[slot].setScale(scale, roundingMode);
+        }
+        return checkExact(exact(exact));
+    }
+
+    /**
+     * Evaluates the formula on fixed-point values without allocating,
+     * unless a value leaves the {@code long} range along the way
+     * @param args The argument values in slot order, each times 10<sup>scale</sup>; extra values are ignored
+     * @return The result times 10<sup>scale</sup>
+     * @throws FormulaException If too few arguments are supplied, the formula
+     *     divides by zero or the result does not fit in a {@code long}
+     */
+    public long evaluateUnscaled(long... args) {
+        checkArguments(args.length);
+        long[] registers = registers();
+        System.arraycopy(args, 0, registers, 0, program.argumentCount);
+        long result = exactOnly ? EXACT : run(registers);
+        if (result != EXACT) {
+            return result;
+        }
+        BigDecimal value = checkExact(exactRow(args, 0, null));
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() >= 64) {
+            throw new FormulaException("Decimal result " + value + " does not fit in a long at scale " + scale,
+                ErrorCategory.INVALID_RESULT, -1);
+        }
+        return unscaled.longValue();
+    }
+
+    /**
+     * Evaluates the formula for every row of a set of fixed-point argument columns
+     * @param columns One column per argument slot, values times 10<sup>scale</sup>
+     * @param out Receives the result of each row times 10<sup>scale</sup>
+     * @return The number of rows that divide by zero or whose result does not fit in a {@code long}; those rows hold 0
+     * @throws IllegalArgumentException If a column is missing or shorter than the first one
+     */
+    public int evaluateBatch(long[][] columns, long[] out) {
+        int rows = columns.length == 0 ? out.length : columns[0].length;
+        return evaluateBatch(columns, 0, rows, out, null);
+    }
+
+    /**
+     * Evaluates the formula for a range of rows of fixed-point argument
+     * columns. Rows are processed a chunk at a time with one loop per
+     * operation, as in {@link CompiledFormula#evaluateBatch(double[][], double[])};
+     * rows that overflow are evaluated again with {@link BigDecimal} one at a time
+     * @param columns One column per argument slot, values times 10<sup>scale</sup>
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param out Receives the result of row {@code r} at index {@code r}
+     * @param errors Bitmap receiving a set bit for every invalid row, indexed like the columns; may be null
+     * @return The number of rows that divide by zero or whose result does not fit in a {@code long}; those rows hold 0
+     * @throws IllegalArgumentException If a column, the output or the bitmap is too short for the range
+     */
+    public int evaluateBatch(long[][] columns, int offset, int length, long[] out, long[] errors) {
+        checkRange(columns, offset, length, out.length, errors);
+        int chunkSize = Math.min(BatchEvaluator.CHUNK_SIZE, Math.max(length, 1));
+        int first = program.firstInstructionRegister();
+        long[][] registers = new long[program.registerCount()][];
+        int[] bases = new int[registers.length];
+        for (int i = 0; i < constants.length; i++) {
+            registers[program.argumentCount + i] = new long[chunkSize];
+            Arrays.fill(registers[program.argumentCount + i], constants[i]);
+        }
+        for (int i = 0; i < program.operations.length; i++) {
+            registers[first + i] = new long[chunkSize];
+        }
+        int output = program.outputs[0];
+        int invalid = 0;
+        for (int row = offset; row < offset + length; row += chunkSize) {
+            int count = Math.min(chunkSize, offset + length - row);
+            for (int slot = 0; slot < program.argumentCount; slot++) {
+                registers[slot] = columns[slot];
+                bases[slot] = row;
+            }
+            for (int i = 0; i < program.operations.length; i++) {
+                Operation operation = program.operations[i];
+                int l = operation.arity() >= 1 ? program.left[i] : first + i;
+                int r = operation.arity() == 2 ? program.right[i] : first + i;
+                execute(operation, registers[l], bases[l], registers[r], bases[r], registers[first + i], count);
+            }
+            long[] result = registers[output];
+            int base = bases[output];
+            for (int k = 0; k < count; k++) {
+                long value = exactOnly ? EXACT : result[base + k];
+                if (value == EXACT) {
+                    BigDecimal exact = exactRow(null, row + k, columns);
+                    BigInteger unscaled = exact == null ? null : exact.unscaledValue();
+                    if (unscaled == null || unscaled.bitLength() >= 64) {
+                        out[row + k] = 0;
+                        invalid++;
+                        if (errors != null) {
+                            errors[(row + k) >>> 6] |= 1L << (row + k);
+                        }
+                        continue;
+                    }
+                    value = unscaled.longValue();
+                }
+                out[row + k] = value;
+            }
+        }
+        return invalid;
+    }
+
+    private void checkArguments(int supplied) {
+        if (supplied < program.argumentCount) {
+            throw new FormulaException("Invalid formula: no value supplied for argument $" + argumentNames().get(supplied),
+                ErrorCategory.MISSING_ARGUMENT, -1);
+        }
+    }
+
+    private void checkRange(long[][] columns, int offset, int length, int outLength, long[] errors) {
+        if (columns.length < program.argumentCount) {
+            throw new IllegalArgumentException("Expected " + program.argumentCount + " columns but got " + columns.length);
+        }
+        if (offset < 0 || length < 0 || offset > Integer.MAX_VALUE - length || offset + length > outLength) {
+            throw new IllegalArgumentException("Row range " + offset + ".." + (offset + length) + " is out of bounds");
+        }
+        for (int slot = 0; slot < program.argumentCount; slot++) {
+            if (columns[slot] == null || columns[slot].length < offset + length) {
+                throw new IllegalArgumentException("Column " + slot + " has fewer than " + (offset + length) + " rows");
+            }
+        }
+        if (errors != null && errors.length < (offset + length + 63) >>> 6) {
+            throw new IllegalArgumentException("Error bitmap is too short for " + (offset + length) + " rows");
+        }
+    }
+
+    private long[] registers() {
+        long[] registers = SCRATCH.get();
+        if (registers.length < program.registerCount()) {
+            registers = new long[Math.max(program.registerCount(), registers.length * 2)];
+            SCRATCH.set(registers);
+        }
+        return registers;
+    }
+
+    /**
+     * Runs the program in long arithmetic.
+     * @param registers The arguments in their slots, with room for all registers
+     * @return The result, or {@link #EXACT} when the row must be evaluated exactly
+     */
+    private long run(long[] registers) {
+        System.arraycopy(constants, 0, registers, program.argumentCount, constants.length);
+        for (int slot = 0; slot < program.argumentCount; slot++) {
+            if (registers[slot] == EXACT) {
+                return EXACT;
+            }
+        }
+        int first = program.firstInstructionRegister();
+        for (int i = 0; i < program.operations.length; i++) {
+            long value = apply(program.operations[i], registers[program.left[i]], registers[program.right[i]]);
+            if (value == EXACT) {
+                return EXACT;
+            }
+            registers[first + i] = value;
+        }
+        return registers[program.outputs[0]];
+    }
+
+    private long apply(Operation operation, long a, long b) {
+        switch (operation) {
+            case ADD: return add(a, b);
+            case SUBTRACT: return subtract(a, b);
+            case MULTIPLY: return multiply(a, b, factor, roundingMode);
+            case DIVIDE: return divide(a, b, factor, roundingMode);
+            case NEGATE: return a == EXACT ? EXACT : -a;
+            case ABS: return a == EXACT ? EXACT : Math.abs(a);
+            case ROUND: return round(a, factor);
+            case FLOOR: return floor(a, factor);
+            case CEIL: return ceil(a, factor);
+            case MIN: return a == EXACT || b == EXACT ? EXACT : Math.min(a, b);
+            case MAX: return a == EXACT || b == EXACT ? EXACT : Math.max(a, b);
+            default: throw new AssertionError(operation);
+        }
+    }
+
+    /**
+     * Applies an operation to a chunk of rows. Results that overflow are set to {@link #EXACT}.
+     */
+    private void execute(Operation operation, long[] a, int ai, long[] b, int bi, long[] out, int count) {
+        switch (operation) {
+            case ADD:
+                for (int k = 0; k < count; k++) {
+                    out[k] = add(a[ai + k], b[bi + k]);
+                }
+                break;
+            case SUBTRACT:
+                for (int k = 0; k < count; k++) {
+                    out[k] = subtract(a[ai + k], b[bi + k]);
+                }
+                break;
+            case MULTIPLY:
+                for (int k = 0; k < count; k++) {
+                    out[k] = multiply(a[ai + k], b[bi + k], factor, roundingMode);
+                }
+                break;
+            case DIVIDE:
+                for (int k = 0; k < count; k++) {
+                    out[k] = divide(a[ai + k], b[bi + k], factor, roundingMode);
+                }
+                break;
+            default:
+                for (int k = 0; k < count; k++) {
+                    out[k] = apply(operation, a[ai + k], b[bi + k]);
+                }
+                break;
+        }
+    }
+
+    static long add(long a, long b) {
+        long r = a + b;
+        return a == EXACT || b == EXACT || ((a ^ r) & (b ^ r)) < 0 ? EXACT : r;
+    }
+
+    static long subtract(long a, long b) {
+        long r = a - b;
+        return a == EXACT || b == EXACT || ((a ^ b) & (a ^ r)) < 0 ? EXACT : r;
+    }
+
+    static long multiply(long a, long b, long factor, RoundingMode mode) {
+        long low = a * b;
+        if (a == EXACT || b == EXACT || Math.multiplyHigh(a, b) != (low >> 63)) {
+            return EXACT;
+        }
+        return factor == 1 ? low : divide(low, factor, mode);
+    }
+
+    static long divide(long a, long b, long factor, RoundingMode mode) {
+        long low = a * factor;
+        if (a == EXACT || b == EXACT || b == 0 || Math.multiplyHigh(a, factor) != (low >> 63)) {
+            return EXACT;
+        }
+        return divide(low, b, mode);
+    }
+
+    /**
+     * Divides with rounding. The divisor must not be 0 or {@link #EXACT};
+     * a quotient that overflows comes out as {@link #EXACT}.
+     */
+    static long divide(long dividend, long divisor, RoundingMode mode) {
+        long quotient = dividend / divisor;
+        long remainder = dividend - divisor * quotient;
+        if (remainder == 0) {
+            return quotient;
+        }
+        int sign = 1 | (int) ((dividend ^ divisor) >> 63);
+        boolean increment;
+        switch (mode) {
+            case DOWN:
+                increment = false;
+                break;
+            case UP:
+                increment = true;
+                break;
+            case FLOOR:
+                increment = sign < 0;
+                break;
+            case CEILING:
+                increment = sign > 0;
+                break;
+            default: {
+                long half = Math.abs(remainder);
+                long compare = half - (Math.abs(divisor) - half);
+                if (compare == 0) {
+                    increment = mode == RoundingMode.HALF_UP || (mode == RoundingMode.HALF_EVEN && (quotient & 1) != 0);
+                } else {
+                    increment = compare > 0;
+                }
+                break;
+            }
+        }
+        return increment ? quotient + sign : quotient;
+    }
+
+    /**
+     * Rounds half up to a whole number, like {@link Operation#round} in double mode.
+     */
+    static long round(long a, long factor) {
+        if (factor == 1 || a == EXACT) {
+            return a;
+        }
+        return floor(add(a, factor / 2), factor);
+    }
+
+    static long floor(long a, long factor) {
+        return a == EXACT ? EXACT : subtract(a, Math.floorMod(a, factor));
+    }
+
+    static long ceil(long a, long factor) {
+        if (a == EXACT) {
+            return EXACT;
+        }
+        long remainder = Math.floorMod(a, factor);
+        return remainder == 0 ? a : add(a, factor - remainder);
+    }
+
+    /**
+     * Evaluates one row with {@link BigDecimal}, from either an argument array or columns.
+     * @return The exact result, or null after a division by zero
+     */
+    private BigDecimal exactRow(long[] args, int row, long[][] columns) {
+        BigDecimal[] values = new BigDecimal[program.argumentCount];
+        for (int slot = 0; slot < values.length; slot++) {
+            values[slot] = BigDecimal.valueOf(args != null ? args[slot] : columns[slot][row], scale);
+        }
+        return exact(values);
+    }
+
+    /**
+     * @param args The argument values at the scale
+     * @return The exact result, or null after a division by zero
+     */
+    private BigDecimal exact(BigDecimal[] args) {
+        BigDecimal[] registers = new BigDecimal[program.registerCount()];
+        System.arraycopy(args, 0, registers, 0, args.length);
+        System.arraycopy(exactConstants, 0, registers, program.argumentCount, exactConstants.length);
+        int first = program.firstInstructionRegister();
+        for (int i = 0; i < program.operations.length; i++) {
+            BigDecimal a = registers[program.left[i]];
+            BigDecimal b = program.operations[i].arity() == 2 ? registers[program.right[i]] : null;
+            BigDecimal value;
+            switch (program.operations[i]) {
+                case ADD: value = a.add(b); break;
+                case SUBTRACT: value = a.subtract(b); break;
+                case MULTIPLY: value = a.multiply(b).setScale(scale, roundingMode); break;
+                case DIVIDE:
+                    if (b.signum() == 0) {
+                        return null;
+                    }
+                    value = a.divide(b, scale, roundingMode);
+                    break;
+                case NEGATE: value = a.negate(); break;
+                case ABS: value = a.abs(); break;
+                case ROUND: value = a.add(new BigDecimal("0.5")).setScale(0, RoundingMode.FLOOR).setScale(scale); break;
+                case FLOOR: value = a.setScale(0, RoundingMode.FLOOR).setScale(scale); break;
+                case CEIL: value = a.setScale(0, RoundingMode.CEILING).setScale(scale); break;
+                case MIN: value = a.min(b); break;
+                case MAX: value = a.max(b); break;
+                default: throw new AssertionError(program.operations[i]);
+            }
+            registers[first + i] = value;
+        }
+        return registers[program.outputs[0]];
+    }
+
+    private static BigDecimal checkExact(BigDecimal result) {
+        if (result == null) {
+            throw new FormulaException("Invalid formula: division by zero", ErrorCategory.INVALID_RESULT, -1);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return formula.formula();
+    }
+}
@@ -0,0 +1,292 @@
+package com.formulacalculator;
+
+import java.util.Arrays;
+
+/**
+ * Automatic differentiation of a {@link Program}.
+ *
+ * Derivatives are propagated through the instructions with the chain rule,
+ * using the exact local derivative of every operation, so results are as
+ * precise as the formula value itself. Forward mode carries the derivative
+ * with respect to one argument along with the values, in a single pass.
+ * Reverse mode first evaluates the program and then walks the instructions
+ * backwards, accumulating the derivative of the result with respect to
+ * every register (its adjoint); one backward pass gives the
+ * whole gradient, at a cost of a few evaluations whatever the number of
+ * arguments. Because the program shares common subexpressions, a shared
+ * value is differentiated once and its adjoint collects the contributions of
+ * all its uses.
+ *
+ * Non-smooth functions use one-sided choices: {@code abs} has derivative 0
+ * at 0, {@code min} and {@code max} split the derivative equally between
+ * operands that are equal, and {@code round}, {@code floor} and {@code ceil}
+ * have derivative 0 everywhere. Each of these is an element of the
+ * function's subdifferential (or superdifferential). Only registers that
+ * depend on an argument take part, and terms whose incoming derivative is
+ * zero are skipped, so a constant operand never contributes an infinite or
+ * NaN partial derivative to the result.
+ */
+final class Differentiator {
+
+    private static final ThreadLocal<double[][]> SCRATCH = ThreadLocal.withInitial(() -> new double[][] {new double[16], new double[16]});
+
+    private final Program program;
+    /** Whether each register depends on at least one argument */
+    private final boolean[] active;
+
+    Differentiator(Program program) {
+        this.program = program;
+        this.active = new boolean[program.registerCount()];
+        for (int slot = 0; slot < program.argumentCount; slot++) {
+            active[slot] = true;
+        }
+        int first = program.firstInstructionRegister();
+        for (int i = 0; i < program.operations.length; i++) {
+            int arity = program.operations[i].arity();
+            active[first + i] = (arity >= 1 && active[program.left[i]]) || (arity == 2 && active[program.right[i]]);
+        }
+    }
+
+    /**
+     * Returns the calling thread's scratch space for register values and their derivatives.
+     * @param size The minimum number of registers needed
+     * @return Two arrays of at least the requested size
+     */
+    static double[][] scratch(int size) {
+        double[][] scratch = SCRATCH.get();
+        if (scratch[0].length < size) {
+            int grown = Math.max(size, scratch[0].length * 2);
+            scratch[0] = new double[grown];
+            scratch[1] = new double[grown];
+        }
+        return scratch;
+    }
+
+    /**
+     * Computes the value and one partial derivative in a single forward pass.
+     * @param args The argument values, indexed by slot
+     * @param slot The argument to differentiate with respect to
+     * @param registers Scratch space of at least {@link Program#registerCount()} values, receiving the register values
+     * @param tangents Scratch space of the same size, receiving the derivative of every register
+     * @return The raw partial derivative of the first output
+     */
+    double forward(double[] args, int slot, double[] registers, double[] tangents) {
+        program.execute(args, registers);
+        int first = program.firstInstructionRegister();
+        for (int r = 0; r < first; r++) {
+            tangents[r] = r == slot ? 1.0 : 0.0;
+        }
+        for (int i = 0; i < program.operations.length; i++) {
+            Operation operation = program.operations[i];
+            int l = program.left[i];
+            int r = program.right[i];
+            double tangent = 0.0;
+            if (active[first + i]) {
+                double a = registers[l];
+                double b = operation.arity() == 2 ? registers[r] : 0.0;
+                double z = registers[first + i];
+                if (tangents[l] != 0.0) {
+                    tangent += partial(operation, 0, a, b, z) * tangents[l];
+                }
+                if (operation.arity() == 2 && tangents[r] != 0.0) {
+                    tangent += partial(operation, 1, a, b, z) * tangents[r];
+                }
+            }
+            tangents[first + i] = tangent;
+        }
+        return tangents[program.outputs[0]];
+    }
+
+    /**
+     * Computes the value and the gradient in one forward and one backward pass.
+     * @param args The argument values, indexed by slot
+     * @param gradient Receives the raw partial derivative with respect to each slot
+     * @param registers Scratch space of at least {@link Program#registerCount()} values, receiving the register values
+     * @param adjoints Scratch space of the same size, receiving the adjoint of every register
+     * @return The raw value of the first output
+     */
+    double reverse(double[] args, double[] gradient, double[] registers, double[] adjoints) {
+        program.execute(args, registers);
+        int first = program.firstInstructionRegister();
+        int count = program.registerCount();
+        for (int r = 0; r < count; r++) {
+            adjoints[r] = 0.0;
+        }
+        int output = program.outputs[0];
+        adjoints[output] = 1.0;
+        for (int i = program.operations.length - 1; i >= 0; i--) {
+            double adjoint = adjoints[first + i];
+            if (adjoint == 0.0 || !active[first + i]) {
+                continue;
+            }
+            Operation operation = program.operations[i];
+            int l = program.left[i];
+            int r = program.right[i];
+            double a = registers[l];
+            double b = operation.arity() == 2 ? registers[r] : 0.0;
+            double z = registers[first + i];
+            if (active[l]) {
+                adjoints[l] += adjoint * partial(operation, 0, a, b, z);
+            }
+            if (operation.arity() == 2 && active[r]) {
+                adjoints[r] += adjoint * partial(operation, 1, a, b, z);
+            }
+        }
+        System.arraycopy(adjoints, 0, gradient, 0, program.argumentCount);
+        return registers[output];
+    }
+
+    /**
+     * Computes values and gradients for a range of rows. Each chunk is
+     * evaluated by the batch evaluator and then differentiated backwards one
+     * instruction at a time over the whole chunk.
+     * @param evaluator A batch evaluator for the same program
+     * @param columns The argument columns, indexed by slot and then by row
+     * @param start The first row
+     * @param end The row after the last one
+     * @param values Receives the raw value of row {@code r} at index {@code r}
+     * @param gradients Receives the partial derivative with respect to slot {@code s} of row {@code r}
+     *     at {@code gradients[s][r]}
+     * @param errors Bitmap receiving a set bit for every row with a non-finite value; may be null
+     * @return The number of rows with a non-finite value
+     */
+    int reverse(BatchEvaluator evaluator, double[][] columns, int start, int end,
+                double[] values, double[][] gradients, long[] errors) {
+        int chunkSize = evaluator.chunkSize();
+        int first = program.firstInstructionRegister();
+        double[][] adjoints = new double[program.registerCount()][];
+        for (int r = 0; r < adjoints.length; r++) {
+            if (active[r]) {
+                adjoints[r] = new double[chunkSize];
+            }
+        }
+        int output = program.outputs[0];
+        int invalid = 0;
+        for (int row = start; row < end; row += chunkSize) {
+            int count = Math.min(chunkSize, end - row);
+            evaluator.run(columns, row, count);
+            invalid += evaluator.copyOutput(0, values, row, count, errors);
+            for (double[] adjoint : adjoints) {
+                if (adjoint != null) {
+                    Arrays.fill(adjoint, 0, count, 0.0);
+                }
+            }
+            if (active[output]) {
+                Arrays.fill(adjoints[output], 0, count, 1.0);
+            }
+            for (int i = program.operations.length - 1; i >= 0; i--) {
+                if (active[first + i]) {
+                    backward(evaluator, adjoints, i, count);
+                }
+            }
+            for (int slot = 0; slot < program.argumentCount; slot++) {
+                System.arraycopy(adjoints[slot], 0, gradients[slot], row, count);
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Propagates the adjoints of one instruction to its operands over a chunk.
+     */
+    private void backward(BatchEvaluator evaluator, double[][] adjoints, int index, int count) {
+        Operation operation = program.operations[index];
+        int target = program.firstInstructionRegister() + index;
+        int l = program.left[index];
+        int r = program.right[index];
+        boolean binary = operation.arity() == 2;
+        double[] adjoint = adjoints[target];
+        double[] z = evaluator.column(target);
+        int zi = evaluator.base(target);
+        double[] a = evaluator.column(l);
+        int ai = evaluator.base(l);
+        double[] b = binary ? evaluator.column(r) : null;
+        int bi = binary ? evaluator.base(r) : 0;
+        double[] left = active[l] ? adjoints[l] : null;
+        double[] right = binary && active[r] ? adjoints[r] : null;
+        for (int k = 0; k < count; k++) {
+            double g = adjoint[k];
+            if (g == 0.0) {
+                continue;
+            }
+            double av = a[ai + k];
+            double bv = binary ? b[bi + k] : 0.0;
+            double zv = z[zi + k];
+            if (left != null) {
+                left[k] += g * partial(operation, 0, av, bv, zv);
+            }
+            if (right != null) {
+                right[k] += g * partial(operation, 1, av, bv, zv);
+            }
+        }
+    }
+
+    /**
+     * Returns the partial derivative of {@code z = operation(a, b)} with
+     * respect to one operand.
+     * @param operation The operation
+     * @param operand 0 for {@code a}, 1 for {@code b}
+     * @param a The first operand
+     * @param b The second operand, ignored by unary operations
+     * @param z The result of the operation for these operands
+     * @return The partial derivative
+     */
+    static double partial(Operation operation, int operand, double a, double b, double z) {
+        switch (operation) {
+            case ADD:
+                return 1.0;
+            case SUBTRACT:
+                return operand == 0 ? 1.0 : -1.0;
+            case MULTIPLY:
+                return operand == 0 ? b : a;
+            case DIVIDE:
+                return operand == 0 ? 1.0 / b : -z / b;
+            case POWER:
+            case POW:
+                if (operand == 0) {
+                    return b == 0.0 ? 0.0 : b * Math.pow(a, b - 1.0);
+                }
+                return z == 0.0 ? 0.0 : z * Math.log(a);
+            case NEGATE:
+                return -1.0;
+            case SQRT:
+                return 0.5 / z;
+            case ABS:
+                return a > 0.0 ? 1.0 : a < 0.0 ? -1.0 : a == 0.0 ? 0.0 : Double.NaN;
+            case ROUND:
+            case FLOOR:
+            case CEIL:
+                return Double.isFinite(a) ? 0.0 : Double.NaN;
+            case MIN:
+                return selected(operand == 0 ? a : b, operand == 0 ? b : a, true);
+            case MAX:
+                return selected(operand == 0 ? a : b, operand == 0 ? b : a, false);
+            case SIN:
+                return Math.cos(a);
+            case COS:
+                return -Math.sin(a);
+            case TAN:
+                return 1.0 + z * z;
+            case LOG:
+                return 1.0 / a;
+            case EXP:
+                return z;
+            default:
+                throw new AssertionError(operation);
+        }
+    }
+
+    /**
+     * Derivative of min or max with respect to the operand {@code self}: 1
+     * when it is the one selected, 0 when the other one is, one half for a tie.
+     */
+    private static double selected(double self, double other, boolean minimum) {
+        if (self == other) {
+            return 0.5;
+        }
+        if (Double.isNaN(self) || Double.isNaN(other)) {
+            return Double.NaN;
+        }
+        return (self < other) == minimum ? 1.0 : 0.0;
+    }
+}
@@ -0,0 +1,21 @@
+package com.formulacalculator;
+
+/**
+ * Why compiling or evaluating a formula failed.
+ *
+ * Every failure is reported as an {@link IllegalArgumentException}; the
+ * category tells failures apart without parsing the message, e.g. for
+ * {@link FormulaMetrics}.
+ */
+public enum ErrorCategory {
+    /** The formula is null or blank */
+    EMPTY_FORMULA,
+    /** The formula is not syntactically valid */
+    SYNTAX,
+    /** Fewer argument values were supplied than the formula has arguments */
+    MISSING_ARGUMENT,
+    /** An argument value is not a number */
+    INVALID_ARGUMENT,
+    /** The result is infinite or NaN, e.g. after a division by zero */
+    INVALID_RESULT
+}
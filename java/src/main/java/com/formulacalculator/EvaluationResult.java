@@ -0,0 +1,86 @@
+package com.formulacalculator;
+
+/**
+ * Reusable holder for the outcome of {@code tryEvaluate} and
+ * {@link FormulaCalculator#tryCalc}.
+ *
+ * Each call overwrites the previous outcome, so a loop over many rows can
+ * use one holder and never allocate. A holder must not be shared between
+ * threads that evaluate at the same time.
+ */
+public final class EvaluationResult {
+
+    /** Message of the most common failure, kept to avoid building it per row */
+    static final String INVALID_RESULT_MESSAGE = "Formula evaluation resulted in an invalid number";
+
+    private double value = Double.NaN;
+    private ErrorCategory error;
+    private String message;
+    private int position = -1;
+
+    /**
+     * Creates an empty holder.
+     */
+    public EvaluationResult() {
+    }
+
+    /**
+     * @return Whether the last evaluation produced a finite result
+     */
+    public boolean isValid() {
+        return error == null && !Double.isNaN(value);
+    }
+
+    /**
+     * @return The result of the last evaluation, or NaN if it failed
+     */
+    public double value() {
+        return value;
+    }
+
+    /**
+     * @return Why the last evaluation failed, or null if it succeeded
+     */
+    public ErrorCategory error() {
+        return error;
+    }
+
+    /**
+     * @return The message the throwing methods would have used, or null if the last evaluation succeeded
+     */
+    public String message() {
+        return message;
+    }
+
+    /**
+     * @return The zero-based offset in the formula where a syntax error was found, otherwise -1
+     */
+    public int position() {
+        return position;
+    }
+
+    boolean succeed(double value) {
+        this.value = value;
+        this.error = null;
+        this.message = null;
+        this.position = -1;
+        return true;
+    }
+
+    boolean fail(ErrorCategory error, String message, int position) {
+        this.value = Double.NaN;
+        this.error = error;
+        this.message = message;
+        this.position = position;
+        return false;
+    }
+
+    boolean fail(FormulaException e) {
+        return fail(e.category(), e.getMessage(), e.position());
+    }
+
+    @Override
+    public String toString() {
+        return error == null ? Double.toString(value) : message;
+    }
+}
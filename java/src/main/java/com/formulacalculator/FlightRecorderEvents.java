@@ -0,0 +1,130 @@
+package com.formulacalculator;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of {@link FormulaMetrics}.
+ *
+ * All references to {@code jdk.jfr} live in this class, which is only
+ * loaded when that module is present. Event objects are passed around as
+ * {@code Object} so that callers do not need it either.
+ */
+final class FlightRecorderEvents {
+
+    /** Ids of the recordings currently running */
+    private static final Set<Long> RUNNING = ConcurrentHashMap.newKeySet();
+
+    private FlightRecorderEvents() {
+    }
+
+    @Name("com.formulacalculator.Compile")
+    @Label("Formula Compilation")
+    @Description("Parsing and optimizing a formula")
+    @Category("Formula Calculator")
+    @StackTrace(false)
+    static final class CompileEvent extends Event {
+        @Label("Formula Hash")
+        int formulaHash;
+
+        @Label("Formula")
+        String formula;
+
+        @Label("Backend")
+        String backend;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.formulacalculator.Evaluate")
+    @Label("Formula Evaluation")
+    @Description("Single-row evaluation of a compiled formula; only evaluations above the threshold are recorded by default")
+    @Category("Formula Calculator")
+    @StackTrace(false)
+    @Threshold("20 us")
+    static final class EvaluateEvent extends Event {
+        @Label("Formula Hash")
+        int formulaHash;
+
+        @Label("Tier")
+        String tier;
+
+        @Label("Error")
+        String error;
+    }
+
+    /**
+     * Starts tracking which recordings run, so that events are only built while one does.
+     */
+    static void register() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                for (Recording recording : recorder.getRecordings()) {
+                    update(recording);
+                }
+            }
+
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update(recording);
+            }
+        });
+    }
+
+    private static void update(Recording recording) {
+        if (recording.getState() == RecordingState.RUNNING) {
+            RUNNING.add(recording.getId());
+        } else {
+            RUNNING.remove(recording.getId());
+        }
+        FormulaMetrics.setRecording(!RUNNING.isEmpty());
+    }
+
+    static Object beginCompile() {
+        CompileEvent event = new CompileEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endCompile(Object started, String formula, Backend backend, ErrorCategory error) {
+        CompileEvent event = (CompileEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.formulaHash = formula == null ? 0 : formula.hashCode();
+            event.formula = formula;
+            event.backend = backend == null ? null : backend.name();
+            event.error = error == null ? null : error.name();
+            event.commit();
+        }
+    }
+
+    static Object beginEvaluate() {
+        EvaluateEvent event = new EvaluateEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endEvaluate(Object started, CompiledFormula formula, Tier tier, ErrorCategory error) {
+        EvaluateEvent event = (EvaluateEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.formulaHash = formula.formula().hashCode();
+            event.tier = tier.name();
+            event.error = error == null ? null : error.name();
+            event.commit();
+        }
+    }
+}
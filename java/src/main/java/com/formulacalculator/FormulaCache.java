@@ -0,0 +1,292 @@
+package com.formulacalculator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of compiled formulas keyed by formula text.
+ *
+ * {@link FormulaCalculator#calc(String, Object...)} uses the process-wide
+ * instance returned by {@link FormulaCalculator#cache()}, so repeated calls
+ * with the same formula only parse it once. Cached formulas use
+ * {@link Backend#TIERED}, so the ones evaluated often are promoted to
+ * generated code. Lookups are a single {@link ConcurrentHashMap} read and
+ * never take a lock; the lock below is only taken on a miss, when a newly
+ * compiled formula is admitted.
+ *
+ * When the cache is full it follows a TinyLFU policy: a sample of resident
+ * entries is taken, the one with the lowest estimated access frequency
+ * (least recently used among equals) becomes the eviction candidate, and the
+ * new formula only replaces it if it has been requested more often. A burst
+ * of one-off formulas therefore cannot flush the frequently used ones.
+ *
+ * The default maximum size is 4096 entries and can be changed with the
+ * {@code formulacalculator.cache.maximumSize} system property or at runtime
+ * with {@link #setMaximumSize(int)}; a size of 0 disables caching.
+ */
+public final class FormulaCache {
+
+    /** System property overriding the default maximum size of the shared cache */
+    public static final String MAXIMUM_SIZE_PROPERTY = "formulacalculator.cache.maximumSize";
+
+    static final int DEFAULT_MAXIMUM_SIZE = 4096;
+    private static final int SAMPLE_SIZE = 8;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final List<Entry> resident = new ArrayList<>();
+    private final FrequencySketch sketch;
+    private volatile int maximumSize;
+    /** Logical time for least-recently-used tie-breaks, advanced by admissions and hits */
+    private volatile int clock;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Creates an empty cache
+     * @param maximumSize The maximum number of compiled formulas to keep; 0 disables caching
+     * @throws IllegalArgumentException If the size is negative
+     */
+    public FormulaCache(int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Maximum size cannot be negative");
+        }
+        this.maximumSize = maximumSize;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Returns the compiled form of a formula, compiling it on a miss
+     * @param formula The formula text
+     * @return The compiled formula
+     * @throws IllegalArgumentException If the formula is null, empty or invalid
+     */
+    public CompiledFormula get(String formula) {
+        if (formula == null || maximumSize == 0) {
+            misses.increment();
+            return FormulaCalculator.compile(formula, Backend.TIERED);
+        }
+
+        int hash = formula.hashCode();
+        sketch.increment(hash);
+        Entry entry = entries.get(formula);
+        if (entry != null) {
+            hits.increment();
+            // Racy tick: a lost update only blurs the order of near-simultaneous hits.
+            // Repeated hits on the most recent entry leave the clock untouched.
+            int now = clock;
+            if (entry.lastAccess != now) {
+                entry.lastAccess = now + 1;
+                clock = now + 1;
+            }
+            return entry.value;
+        }
+
+        misses.increment();
+        CompiledFormula compiled = FormulaCalculator.compile(formula, Backend.TIERED);
+        admit(formula, hash, compiled);
+        return compiled;
+    }
+
+    private void admit(String formula, int hash, CompiledFormula compiled) {
+        evictionLock.lock();
+        try {
+            if (entries.containsKey(formula) || maximumSize == 0) {
+                return;
+            }
+            if (resident.size() >= maximumSize) {
+                Entry victim = sampleVictim();
+                if (sketch.frequency(hash) <= sketch.frequency(victim.key.hashCode())) {
+                    rejections.increment();
+                    return;
+                }
+                remove(victim);
+                evictions.increment();
+            }
+            Entry entry = new Entry(formula, compiled, resident.size(), ++clock);
+            resident.add(entry);
+            entries.put(formula, entry);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Picks the least valuable entry out of a random sample. Must hold the eviction lock.
+     */
+    private Entry sampleVictim() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Entry victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        int samples = Math.min(SAMPLE_SIZE, resident.size());
+        for (int i = 0; i < samples; i++) {
+            Entry candidate = resident.get(random.nextInt(resident.size()));
+            int frequency = sketch.frequency(candidate.key.hashCode());
+            if (frequency < victimFrequency
+                    || (frequency == victimFrequency && candidate.lastAccess - victim.lastAccess < 0)) {
+                victim = candidate;
+                victimFrequency = frequency;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Removes an entry from both the map and the resident list. Must hold the eviction lock.
+     */
+    private void remove(Entry entry) {
+        entries.remove(entry.key, entry);
+        Entry last = resident.remove(resident.size() - 1);
+        if (last != entry) {
+            resident.set(entry.index, last);
+            last.index = entry.index;
+        }
+    }
+
+    /**
+     * Changes the maximum number of cached formulas, evicting entries if the cache is now too large
+     * @param maximumSize The new maximum size; 0 disables caching and empties the cache
+     * @throws IllegalArgumentException If the size is negative
+     */
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Maximum size cannot be negative");
+        }
+        evictionLock.lock();
+        try {
+            this.maximumSize = maximumSize;
+            while (resident.size() > maximumSize) {
+                remove(sampleVictim());
+                evictions.increment();
+            }
+            sketch.ensureCapacity(maximumSize);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return The maximum number of cached formulas; 0 when caching is disabled
+     */
+    public int maximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return The number of formulas currently cached
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all cached formulas. Statistics are kept.
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            entries.clear();
+            resident.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return The logical time of the formula's last hit or admission, exposed for tests; -1 if it is not cached
+     */
+    int lastAccess(String formula) {
+        Entry entry = entries.get(formula);
+        return entry == null ? -1 : entry.lastAccess;
+    }
+
+    /**
+     * @return The number of lookups that found a cached formula
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to compile the formula
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of entries removed to make room for others
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of compiled formulas not admitted because they were requested less often than the eviction candidate
+     */
+    public long rejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * @return The fraction of lookups that were hits, or 0 if there were none
+     */
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    /**
+     * Resets the hit, miss, eviction and rejection counters to zero.
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        rejections.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "FormulaCache[size=" + size() + ", maximumSize=" + maximumSize + ", hits=" + hitCount()
+            + ", misses=" + missCount() + ", evictions=" + evictionCount() + ", rejections=" + rejectionCount() + "]";
+    }
+
+    /**
+     * Creates the shared cache, honouring the maximum size system property
+     */
+    static FormulaCache createShared() {
+        int maximumSize = DEFAULT_MAXIMUM_SIZE;
+        String configured = System.getProperty(MAXIMUM_SIZE_PROPERTY);
+        if (configured != null) {
+            try {
+                maximumSize = Math.max(0, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException e) {
+                // Keep the default for malformed values
+            }
+        }
+        return new FormulaCache(maximumSize);
+    }
+
+    private static final class Entry {
+        final String key;
+        final CompiledFormula value;
+        int index;
+        volatile int lastAccess;
+
+        Entry(String key, CompiledFormula value, int index, int lastAccess) {
+            this.key = key;
+            this.value = value;
+            this.index = index;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -1,12 +1,9 @@
 package com.formulacalculator;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Formula Calculator Module
@@ -17,95 +14,289 @@ import javax.script.ScriptException;
  */
 public class FormulaCalculator {
     
-    private static final ScriptEngine engine = new ScriptEngineManager().getEngineByName("nashorn");
+    /** System property setting the initial {@link #nonFinitePolicy()}, {@code THROW} or {@code RETURN_NAN} */
+    public static final String NON_FINITE_POLICY_PROPERTY = "formulacalculator.nonFinitePolicy";
+    
+    private static final FormulaCache CACHE = FormulaCache.createShared();
+    private static volatile NonFinitePolicy nonFinitePolicy = configuredNonFinitePolicy();
     
     /**
      * Calculates the result of a mathematical formula
      * @param formula The mathematical formula to evaluate
      * @param args Additional arguments that can be used in the formula
-     * @return The calculated result
-     * @throws IllegalArgumentException If the formula is invalid or cannot be evaluated
+     * @return The calculated result; NaN instead of an infinite or NaN result when
+     *     {@link #nonFinitePolicy()} is {@link NonFinitePolicy#RETURN_NAN}
+     * @throws FormulaException If the formula is invalid or cannot be evaluated
      */
     public static double calc(String formula, Object... args) {
-        if (formula == null) {
-            throw new IllegalArgumentException("Formula cannot be null");
-        }
+        CompiledFormula compiled = CACHE.get(formula);
         
-        if (formula.trim().isEmpty()) {
-            throw new IllegalArgumentException("Formula cannot be empty");
+        // Bind the arguments to their slots in order of first appearance
+        List<String> names = compiled.argumentNames();
+        double[] values = new double[names.size()];
+        int supplied = Math.min(args.length, values.length);
+        try {
+            for (int i = 0; i < supplied; i++) {
+                values[i] = toDouble(names.get(i), args[i]);
+            }
+        } catch (FormulaException e) {
+            if (FormulaMetrics.active) {
+                FormulaMetrics.rejected(compiled, ErrorCategory.INVALID_ARGUMENT);
+            }
+            throw e;
         }
-        
+        return compiled.evaluate(values, supplied, nonFinitePolicy);
+    }
+    
+    /**
+     * Calculates a formula without throwing. Invalid formulas, missing or
+     * non-numeric arguments and infinite or NaN results are reported through
+     * the holder, with the position of syntax errors
+     * @param result Receives the result or the reason for the failure
+     * @param formula The mathematical formula to evaluate
+     * @param args Additional arguments that can be used in the formula
+     * @return Whether the result is a finite number
+     */
+    public static boolean tryCalc(EvaluationResult result, String formula, Object... args) {
+        CompiledFormula compiled;
         try {
-            // Replace common mathematical symbols with JavaScript equivalents
-            String processedFormula = formula
-                .replaceAll("\\^", "**") // Replace ^ with ** for exponentiation
-                .replaceAll("(?i)\\bpi\\b", "Math.PI") // Replace pi with Math.PI
-                .replaceAll("(?i)\\be\\b", "Math.E"); // Replace e with Math.E
-            
-            // Handle all named arguments (both $arg0, $arg1, etc. and custom names)
-            Pattern namedArgPattern = Pattern.compile("\\$[a-zA-Z_][a-zA-Z0-9_]*");
-            Matcher matcher = namedArgPattern.matcher(processedFormula);
-            
-            // Replace named arguments with actual values
-            int argIndex = 0;
-            while (matcher.find() && argIndex < args.length) {
-                String namedArg = matcher.group();
-                String replacement = String.valueOf(args[argIndex]);
-                processedFormula = processedFormula.replace(namedArg, replacement);
-                argIndex++;
+            compiled = CACHE.get(formula);
+        } catch (FormulaException e) {
+            return result.fail(e);
+        }
+        double[] values = new double[compiled.argumentCount()];
+        int supplied = Math.min(args.length, values.length);
+        for (int i = 0; i < supplied; i++) {
+            if (args[i] instanceof Number) {
+                values[i] = ((Number) args[i]).doubleValue();
+                continue;
             }
-            
-            // Create a safe evaluation context with mathematical functions
-            Map<String, Object> context = new HashMap<>();
-            context.put("Math", Math.class);
-            context.put("PI", Math.PI);
-            context.put("E", Math.E);
-            context.put("abs", Math.abs(0.0));
-            context.put("ceil", Math.ceil(0.0));
-            context.put("floor", Math.floor(0.0));
-            context.put("round", Math.round(0.0));
-            context.put("max", Math.max(0.0, 0.0));
-            context.put("min", Math.min(0.0, 0.0));
-            context.put("pow", Math.pow(0.0, 0.0));
-            context.put("sqrt", Math.sqrt(0.0));
-            context.put("sin", Math.sin(0.0));
-            context.put("cos", Math.cos(0.0));
-            context.put("tan", Math.tan(0.0));
-            context.put("log", Math.log(0.0));
-            context.put("exp", Math.exp(0.0));
-            context.put("random", Math.random());
-            
-            // Add mathematical functions to the engine
-            engine.put("Math", Math.class);
-            engine.put("PI", Math.PI);
-            engine.put("E", Math.E);
-            
-            // Execute the formula
-            Object result = engine.eval(processedFormula);
-            
-            // Validate the result
-            if (result instanceof Number) {
-                double doubleResult = ((Number) result).doubleValue();
-                if (Double.isFinite(doubleResult)) {
-                    return doubleResult;
-                } else {
-                    throw new IllegalArgumentException("Formula evaluation resulted in an invalid number");
+            try {
+                values[i] = toDouble(compiled.argumentNames().get(i), args[i]);
+            } catch (FormulaException e) {
+                if (FormulaMetrics.active) {
+                    FormulaMetrics.rejected(compiled, ErrorCategory.INVALID_ARGUMENT);
                 }
-            } else {
-                throw new IllegalArgumentException("Formula evaluation did not return a number");
+                return result.fail(e);
             }
-            
-        } catch (ScriptException e) {
-            throw new IllegalArgumentException("Invalid formula: " + e.getMessage());
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Invalid formula: " + e.getMessage());
         }
+        return compiled.tryEvaluate(result, values, supplied);
+    }
+    
+    /**
+     * Checks that a formula can be compiled, without evaluating it or
+     * throwing. Syntax errors, unknown functions and constants and wrong
+     * function argument counts are reported with their position
+     * @param formula The formula to check
+     * @return The outcome, with the formula's argument names when it is valid
+     */
+    public static ValidationResult validate(String formula) {
+        return validate(formula, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Checks that a formula can be compiled and that a number of positional
+     * values is enough for its arguments. When it is not, the position is
+     * that of the first occurrence of the first argument left without a value
+     * @param formula The formula to check
+     * @param argumentCount The number of values that will be supplied
+     * @return The outcome, with the formula's argument names when it has no syntax error
+     */
+    public static ValidationResult validate(String formula, int argumentCount) {
+        if (formula == null || formula.trim().isEmpty()) {
+            return ValidationResult.invalid(emptyFormula(formula), List.of());
+        }
+        FormulaParser parser = new FormulaParser(formula).withoutStackTraces();
+        try {
+            parser.parse();
+        } catch (FormulaException e) {
+            return ValidationResult.invalid(e, List.of());
+        }
+        List<String> names = parser.argumentNames();
+        if (argumentCount < names.size()) {
+            String name = names.get(Math.max(argumentCount, 0));
+            int position = parser.positionOf(name);
+            return new ValidationResult(ErrorCategory.MISSING_ARGUMENT,
+                "Invalid formula: no value supplied for argument $" + name + " at position " + position, position, names);
+        }
+        return ValidationResult.valid(names);
+    }
+    
+    /**
+     * @return What {@link #calc(String, Object...)} does with an infinite or NaN result
+     */
+    public static NonFinitePolicy nonFinitePolicy() {
+        return nonFinitePolicy;
     }
     
     /**
-     * Main method for running examples
+     * Sets what {@link #calc(String, Object...)} does with an infinite or NaN result.
+     * Compiled formulas are configured with {@link CompiledFormula#withNonFinitePolicy}
+     * @param policy The policy
+     * @throws IllegalArgumentException If the policy is null
+     */
+    public static void setNonFinitePolicy(NonFinitePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Non-finite policy cannot be null");
+        }
+        nonFinitePolicy = policy;
+    }
+    
+    /**
+     * Returns the process-wide cache used by {@link #calc(String, Object...)}
+     * @return The shared formula cache, for statistics and tuning
+     */
+    public static FormulaCache cache() {
+        return CACHE;
+    }
+    
+    /**
+     * Parses a formula once so that it can be evaluated many times
+     * @param formula The mathematical formula to compile
+     * @return An immutable, thread-safe compiled formula
+     * @throws IllegalArgumentException If the formula is null, empty or invalid
+     */
+    public static CompiledFormula compile(String formula) {
+        return compile(formula, Backend.INTERPRETER);
+    }
+    
+    /**
+     * Parses a formula once and prepares it for the given backend
+     * @param formula The mathematical formula to compile
+     * @param backend How the compiled formula should be executed
+     * @return An immutable, thread-safe compiled formula
+     * @throws IllegalArgumentException If the formula is null, empty or invalid
+     */
+    public static CompiledFormula compile(String formula, Backend backend) {
+        if (FormulaMetrics.active) {
+            return FormulaMetrics.compile(formula, backend);
+        }
+        return parse(formula, backend);
+    }
+    
+    /**
+     * Compiles a formula without instrumentation
+     * @param formula The mathematical formula to compile
+     * @param backend How the compiled formula should be executed
+     * @return An immutable, thread-safe compiled formula
+     * @throws IllegalArgumentException If the formula is null, empty or invalid
+     */
+    static CompiledFormula parse(String formula, Backend backend) {
+        if (formula == null || formula.trim().isEmpty()) {
+            throw emptyFormula(formula);
+        }
+        
+        FormulaParser parser = new FormulaParser(formula);
+        Node root = parser.parse();
+        return new CompiledFormula(formula, root, parser.argumentNames(), backend);
+    }
+    
+    /**
+     * Compiles several formulas over one common argument schema
+     * @param formulas The formulas to compile, in output order
+     * @return An immutable, thread-safe group evaluating all formulas in one pass
+     * @throws IllegalArgumentException If the list is empty or any formula is null, empty or invalid
+     */
+    public static FormulaGroup compileGroup(List<String> formulas) {
+        return compileGroup(formulas, Backend.INTERPRETER);
+    }
+    
+    /**
+     * Compiles several formulas over one common argument schema for the given backend.
+     * Arguments are assigned slots in order of first appearance across all
+     * formulas, and subexpressions the formulas have in common are shared
+     * @param formulas The formulas to compile, in output order
+     * @param backend How the group should be executed
+     * @return An immutable, thread-safe group evaluating all formulas in one pass
+     * @throws IllegalArgumentException If the list is empty or any formula is null, empty or invalid
+     */
+    public static FormulaGroup compileGroup(List<String> formulas, Backend backend) {
+        if (formulas == null || formulas.isEmpty()) {
+            throw new IllegalArgumentException("Formula group cannot be empty");
+        }
+        
+        LinkedHashMap<String, Integer> slots = new LinkedHashMap<>();
+        List<Node> roots = new ArrayList<>(formulas.size());
+        for (String formula : formulas) {
+            if (formula == null || formula.trim().isEmpty()) {
+                throw emptyFormula(formula);
+            }
+            roots.add(new FormulaParser(formula, slots).parse());
+        }
+        return new FormulaGroup(new ArrayList<>(formulas), roots, new ArrayList<>(slots.keySet()), backend);
+    }
+    
+    /**
+     * Creates evenly spaced values, e.g. for an axis of {@link CompiledFormula#tabulate}
+     * @param first The first value
+     * @param last The last value
+     * @param count The number of values; with one value, only {@code first} is returned
+     * @return The values {@code first + i * (last - first) / (count - 1)}, ending exactly at {@code last}
+     * @throws IllegalArgumentException If the count is negative
+     */
+    public static double[] range(double first, double last, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count cannot be negative");
+        }
+        double[] values = new double[count];
+        double step = count > 1 ? (last - first) / (count - 1) : 0.0;
+        for (int i = 0; i < count; i++) {
+            values[i] = first + i * step;
+        }
+        if (count > 1) {
+            values[count - 1] = last;
+        }
+        return values;
+    }
+    
+    /**
+     * Converts an argument value to a double
+     * @param name The argument name, used in error messages
+     * @param value The value passed by the caller
+     * @return The numeric value
+     * @throws FormulaException If the value is not numeric
+     */
+    static double toDouble(String name, Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof CharSequence) {
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException e) {
+                // Fall through to the error below
+            }
+        }
+        throw new FormulaException("Invalid formula: argument $" + name + " is not a number: " + value,
+            ErrorCategory.INVALID_ARGUMENT, -1);
+    }
+    
+    private static FormulaException emptyFormula(String formula) {
+        return new FormulaException(formula == null ? "Formula cannot be null" : "Formula cannot be empty",
+            ErrorCategory.EMPTY_FORMULA, -1);
+    }
+    
+    private static NonFinitePolicy configuredNonFinitePolicy() {
+        String configured = System.getProperty(NON_FINITE_POLICY_PROPERTY);
+        if (configured != null) {
+            try {
+                return NonFinitePolicy.valueOf(configured.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // Keep the default for malformed values
+            }
+        }
+        return NonFinitePolicy.THROW;
+    }
+    
+    /**
+     * Main method. Without arguments it prints examples; with options it
+     * evaluates a formula over a CSV file, see {@link CsvCommand#USAGE}
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(CsvCommand.run(args, System.out, System.err));
+        }
+        
         System.out.println("=== Formula Calculator Examples ===\n");
         
         try {
@@ -0,0 +1,61 @@
+package com.formulacalculator;
+
+/**
+ * Thrown when a formula cannot be compiled or evaluated.
+ *
+ * A subclass of {@link IllegalArgumentException}, so existing handlers keep
+ * working, that also tells why the formula failed and where. Syntax errors
+ * carry the zero-based offset in the formula text at which the problem was
+ * found; the message ends with the same position.
+ */
+public final class FormulaException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+    private static final StackTraceElement[] NO_STACK_TRACE = new StackTraceElement[0];
+
+    private final ErrorCategory category;
+    private final int position;
+
+    FormulaException(String message, ErrorCategory category, int position) {
+        this(message, category, position, true);
+    }
+
+    /**
+     * @param stackTrace Whether to capture the stack trace; exceptions that
+     *     are caught internally and turned into a result skip it, as it
+     *     costs far more than the rest of the failure
+     */
+    FormulaException(String message, ErrorCategory category, int position, boolean stackTrace) {
+        super(message);
+        this.category = category;
+        this.position = position;
+        if (stackTrace) {
+            super.fillInStackTrace();
+        } else {
+            setStackTrace(NO_STACK_TRACE);
+        }
+    }
+
+    /**
+     * @return Why the formula failed
+     */
+    public ErrorCategory category() {
+        return category;
+    }
+
+    /**
+     * @return The zero-based offset in the formula text where the problem
+     *     was found, or -1 when the problem is not tied to a position
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Captures the stack trace only when the constructor asks for it.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
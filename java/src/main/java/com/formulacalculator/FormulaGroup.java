@@ -0,0 +1,208 @@
+package com.formulacalculator;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several formulas compiled together over one common argument schema.
+ *
+ * Instances are created with {@link FormulaCalculator#compileGroup(List)}.
+ * Every $name used by any of the formulas gets one slot, numbered in order
+ * of first appearance across the formulas, so a single argument row feeds
+ * them all. The formulas are optimized into one {@link Program}: a
+ * subexpression that occurs in several formulas, such as a discount factor
+ * shared by a set of risk measures, is computed once per row and its value
+ * reused by every formula that needs it.
+ * <pre>
+ * FormulaGroup group = FormulaCalculator.compileGroup(List.of(
+ *     "$qty * $price * (1 - $discount)",
+ *     "$qty * $price * (1 - $discount) * $tax"));
+ * double[] out = new double[group.size()];
+ * group.evaluate(new double[] {4, 6, 0.5, 0.2}, out);    // out = {12.0, 2.4}
+ * </pre>
+ * Results are written to caller-supplied arrays, one value or one column
+ * per formula. A non-finite result does not stop the others from being
+ * computed: it is stored as is and counted in the return value. Groups are
+ * immutable and safe to share between threads.
+ */
+public final class FormulaGroup {
+
+    private final List<String> formulas;
+    private final Program program;
+    private final Backend backend;
+    private final List<String> argumentNames;
+    private final Map<String, Integer> slots;
+
+    FormulaGroup(List<String> formulas, List<Node> roots, List<String> argumentNames, Backend backend) {
+        this.formulas = Collections.unmodifiableList(formulas);
+        this.program = Optimizer.optimize(roots, argumentNames.size());
+        this.backend = backend == Backend.VECTOR && BatchEvaluator.VECTOR_AVAILABLE ? Backend.VECTOR : Backend.INTERPRETER;
+        this.argumentNames = Collections.unmodifiableList(argumentNames);
+        Map<String, Integer> slots = new HashMap<>();
+        for (int i = 0; i < argumentNames.size(); i++) {
+            slots.put(argumentNames.get(i), i);
+        }
+        this.slots = slots;
+    }
+
+    /**
+     * @return The formula texts, in output order
+     */
+    public List<String> formulas() {
+        return formulas;
+    }
+
+    /**
+     * @return The number of formulas, which is the number of results per row
+     */
+    public int size() {
+        return formulas.size();
+    }
+
+    /**
+     * @return The backend that evaluates the group: {@link Backend#VECTOR}
+     *     when requested and available, otherwise the interpreter. Generated
+     *     bytecode computes a single result, so groups never use it
+     */
+    public Backend backend() {
+        return backend;
+    }
+
+    /**
+     * @return The optimized program with one output per formula
+     */
+    Program program() {
+        return program;
+    }
+
+    /**
+     * @return The argument names (without the leading $) in slot order
+     */
+    public List<String> argumentNames() {
+        return argumentNames;
+    }
+
+    /**
+     * @return The number of argument slots
+     */
+    public int argumentCount() {
+        return argumentNames.size();
+    }
+
+    /**
+     * Looks up the slot an argument is bound to
+     * @param name The argument name, with or without the leading $
+     * @return The zero-based slot index, or -1 if no formula of the group has such an argument
+     */
+    public int slotOf(String name) {
+        Integer slot = slots.get(name.startsWith("$") ? name.substring(1) : name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Evaluates every formula for one argument row without allocating.
+     * The arguments are bound once and shared subexpressions are computed once
+     * @param args The argument values in slot order; extra values are ignored
+     * @param out Receives the result of formula {@code i} at index {@code i}
+     * @return The number of results that are not finite numbers; those hold NaN or an infinity
+     * @throws IllegalArgumentException If too few arguments are supplied or the output is shorter than {@link #size()}
+     */
+    public int evaluate(double[] args, double[] out) {
+        if (args.length < argumentNames.size()) {
+            throw missingArgument(args.length);
+        }
+        checkOutputCount(out.length);
+        double[] registers = ProgramInterpreter.registers(program.registerCount());
+        program.execute(args, registers);
+        int invalid = 0;
+        int[] outputs = program.outputs;
+        for (int i = 0; i < outputs.length; i++) {
+            double result = registers[outputs[i]];
+            out[i] = result;
+            if (!Double.isFinite(result)) {
+                invalid++;
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Evaluates every formula with named arguments
+     * @param args The argument values keyed by name (without the leading $)
+     * @param out Receives the result of formula {@code i} at index {@code i}
+     * @return The number of results that are not finite numbers; those hold NaN or an infinity
+     * @throws IllegalArgumentException If an argument is missing or the output is shorter than {@link #size()}
+     */
+    public int evaluate(Map<String, ? extends Number> args, double[] out) {
+        double[] values = new double[argumentNames.size()];
+        for (int i = 0; i < values.length; i++) {
+            Number value = args.get(argumentNames.get(i));
+            if (value == null) {
+                throw missingArgument(i);
+            }
+            values[i] = value.doubleValue();
+        }
+        return evaluate(values, out);
+    }
+
+    /**
+     * Evaluates every formula for every row of a set of argument columns
+     * @param columns One column per argument slot, all of the same length
+     * @param out One result column per formula, each at least as long as the argument columns
+     * @return The number of results that are not finite numbers, over all formulas
+     * @throws IllegalArgumentException If a column is missing or too short
+     */
+    public int evaluateBatch(double[][] columns, double[][] out) {
+        int rows = columns.length == 0 ? (out.length == 0 ? 0 : out[0].length) : columns[0].length;
+        return evaluateBatch(columns, 0, rows, out, null);
+    }
+
+    /**
+     * Evaluates every formula for a range of rows of a set of argument columns.
+     *
+     * Each chunk of rows runs the shared program once, one tight loop per
+     * instruction as in {@link CompiledFormula#evaluateBatch(double[][], int, int, double[], long[])},
+     * and the result of every formula is then copied to its own output
+     * column. Non-finite results are stored as is and, when a bitmap is
+     * supplied for that formula, bit {@code row % 64} of {@code errors[i][row / 64]} is set.
+     * @param columns One column per argument slot, indexed by row
+     * @param offset The first row to evaluate
+     * @param length The number of rows to evaluate
+     * @param out One result column per formula; formula {@code i} of row {@code r} is stored at {@code out[i][r]}
+     * @param errors One bitmap of rows with non-finite results per formula; may be null, as may each bitmap
+     * @return The number of results in the range that are not finite numbers, over all formulas
+     * @throws IllegalArgumentException If a column, an output or a bitmap is too short for the range
+     */
+    public int evaluateBatch(double[][] columns, int offset, int length, double[][] out, long[][] errors) {
+        checkOutputCount(out.length);
+        if (errors != null && errors.length < formulas.size()) {
+            throw new IllegalArgumentException("Expected " + formulas.size() + " error bitmaps but got " + errors.length);
+        }
+        for (int i = 0; i < formulas.size(); i++) {
+            if (out[i] == null) {
+                throw new IllegalArgumentException("Missing output column for formula " + i);
+            }
+            BatchEvaluator.checkRange(argumentNames.size(), columns, offset, length, out[i].length,
+                errors == null ? null : errors[i]);
+        }
+        return new BatchEvaluator(program, length, backend == Backend.VECTOR).evaluateAll(columns, offset, offset + length, out, errors);
+    }
+
+    private void checkOutputCount(int count) {
+        if (count < formulas.size()) {
+            throw new IllegalArgumentException("Expected " + formulas.size() + " outputs but got " + count);
+        }
+    }
+
+    private FormulaException missingArgument(int slot) {
+        return new FormulaException("Invalid formula: no value supplied for argument $" + argumentNames.get(slot),
+            ErrorCategory.MISSING_ARGUMENT, -1);
+    }
+
+    @Override
+    public String toString() {
+        return String.join("; ", formulas);
+    }
+}
@@ -0,0 +1,18 @@
+package com.formulacalculator;
+
+/**
+ * Executable form of a compiled formula.
+ *
+ * Implementations are either the expression-tree interpreter or a class
+ * generated by {@link BytecodeCompiler}. They must be stateless so that a
+ * single instance can be shared by all threads.
+ */
+interface FormulaKernel {
+
+    /**
+     * Evaluates the formula.
+     * @param args The argument values, indexed by argument slot
+     * @return The raw, unvalidated result
+     */
+    double apply(double[] args);
+}
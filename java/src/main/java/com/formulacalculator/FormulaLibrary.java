@@ -0,0 +1,381 @@
+package com.formulacalculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * A file of parsed and optimized formulas that loads without parsing.
+ *
+ * {@link #write(Path, Collection)} compiles a set of formulas once, e.g. at
+ * deploy time, and stores each as its text plus its optimized program in a
+ * compact binary encoding: opcodes, a constant pool and the argument slot
+ * table. {@link #open(Path)} memory-maps the file and only checks the header
+ * and index, so opening a library of tens of thousands of formulas costs
+ * little more than the mapping itself. A formula is decoded the first time
+ * it is requested and kept for later requests:
+ * <pre>
+ * FormulaLibrary.write(path, storedFormulas);                 // deploy time
+ * FormulaLibrary library = FormulaLibrary.open(path);         // startup
+ * CompiledFormula total = library.get("$quantity * $price");  // decoded on first use
+ * </pre>
+ * Every record carries CRC32 checksums of its text and program, and the file
+ * records the version of the program encoding. A program whose checksum does
+ * not match, or that was written with a different encoding version, is not
+ * trusted: the formula is parsed from its text instead, exactly as
+ * {@link FormulaCalculator#compile(String, Backend)} would. Formulas that are
+ * not in the file are compiled the same way, so {@link #get(String)} can
+ * stand in for {@code compile}. Files are limited to 2 GB.
+ *
+ * File layout, little-endian:
+ * <pre>
+ * header   magic, format version, encoding version, formula count,
+ *          hash table size, CRC32 of header, index and table
+ * index    per formula: record offset, text length, program length,
+ *          text hash code, text CRC32, program CRC32
+ * table    open-addressing hash table of index positions + 1, 0 when empty
+ * records  per formula: UTF-8 text followed by the encoded program
+ * </pre>
+ * Libraries are safe to share between threads.
+ */
+public final class FormulaLibrary {
+
+    static final int MAGIC = 0x42494C46; // "FLIB"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 28;
+
+    private final ByteBuffer buffer;
+    private final Backend backend;
+    private final int count;
+    private final int tableSize;
+    private final int tableOffset;
+    private final boolean currentEncoding;
+    private final AtomicReferenceArray<CompiledFormula> formulas;
+
+    private final LongAdder decoded = new LongAdder();
+    private final LongAdder reparsed = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private FormulaLibrary(ByteBuffer buffer, Backend backend) throws IOException {
+        this.buffer = buffer;
+        this.backend = backend;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a formula library");
+        }
+        int version = buffer.getShort(4);
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported formula library format " + version + ", expected " + FORMAT_VERSION);
+        }
+        this.currentEncoding = buffer.getInt(8) == ProgramCodec.VERSION;
+        this.count = buffer.getInt(12);
+        this.tableSize = buffer.getInt(16);
+        this.tableOffset = HEADER_SIZE + count * ENTRY_SIZE;
+        if (count < 0 || count > (buffer.capacity() - HEADER_SIZE) / ENTRY_SIZE
+                || tableSize <= count || Integer.bitCount(tableSize) != 1
+                || (long) tableOffset + 4L * tableSize > buffer.capacity()) {
+            throw new IOException("Formula library is corrupt");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(0, 20));
+        crc.update(buffer.slice(HEADER_SIZE, tableOffset + 4 * tableSize - HEADER_SIZE));
+        if ((int) crc.getValue() != buffer.getInt(20)) {
+            throw new IOException("Formula library index checksum mismatch");
+        }
+        this.formulas = new AtomicReferenceArray<>(count);
+    }
+
+    /**
+     * Compiles formulas and writes them to a library file, replacing any existing file.
+     * Duplicate formulas are stored once
+     * @param file The file to write
+     * @param formulas The formulas to store
+     * @throws IOException If the file cannot be written
+     * @throws IllegalArgumentException If a formula is null, empty or invalid, or the library would exceed 2 GB
+     */
+    public static void write(Path file, Collection<String> formulas) throws IOException {
+        List<String> texts = new ArrayList<>(new LinkedHashSet<>(formulas));
+        int count = texts.size();
+        List<byte[]> textBytes = new ArrayList<>(count);
+        List<byte[]> programs = new ArrayList<>(count);
+        for (String text : texts) {
+            CompiledFormula compiled = FormulaCalculator.compile(text);
+            textBytes.add(text.getBytes(StandardCharsets.UTF_8));
+            programs.add(ProgramCodec.encode(compiled.argumentNames(), compiled.program()));
+        }
+
+        int tableSize = Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+        long size = HEADER_SIZE + (long) count * ENTRY_SIZE + 4L * tableSize;
+        for (int i = 0; i < count; i++) {
+            size += textBytes.get(i).length + programs.get(i).length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Formula library would exceed 2 GB");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(0, MAGIC);
+        out.putShort(4, (short) FORMAT_VERSION);
+        out.putInt(8, ProgramCodec.VERSION);
+        out.putInt(12, count);
+        out.putInt(16, tableSize);
+        int tableOffset = HEADER_SIZE + count * ENTRY_SIZE;
+        int record = tableOffset + 4 * tableSize;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < count; i++) {
+            byte[] text = textBytes.get(i);
+            byte[] program = programs.get(i);
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            out.putLong(entry, record);
+            out.putInt(entry + 8, text.length);
+            out.putInt(entry + 12, program.length);
+            out.putInt(entry + 16, texts.get(i).hashCode());
+            crc.reset();
+            crc.update(text);
+            out.putInt(entry + 20, (int) crc.getValue());
+            crc.reset();
+            crc.update(program);
+            out.putInt(entry + 24, (int) crc.getValue());
+            out.put(record, text);
+            out.put(record + text.length, program);
+            record += text.length + program.length;
+
+            int mask = tableSize - 1;
+            int slot = texts.get(i).hashCode() & mask;
+            while (out.getInt(tableOffset + 4 * slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            out.putInt(tableOffset + 4 * slot, i + 1);
+        }
+        crc.reset();
+        crc.update(out.slice(0, 20));
+        crc.update(out.slice(HEADER_SIZE, tableOffset + 4 * tableSize - HEADER_SIZE));
+        out.putInt(20, (int) crc.getValue());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+    }
+
+    /**
+     * Opens a library file, compiling its formulas for the interpreter
+     * @param file The library file
+     * @return The library
+     * @throws IOException If the file cannot be read, is not a library, has an unsupported format or a corrupt index
+     */
+    public static FormulaLibrary open(Path file) throws IOException {
+        return open(file, Backend.INTERPRETER);
+    }
+
+    /**
+     * Opens a library file by memory-mapping it. Only the header and index
+     * are read; formulas are decoded when first requested
+     * @param file The library file
+     * @param backend The backend of the formulas returned by this library
+     * @return The library
+     * @throws IOException If the file cannot be read, is not a library, has an unsupported format or a corrupt index
+     */
+    public static FormulaLibrary open(Path file, Backend backend) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Formula library exceeds 2 GB: " + file);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                return new FormulaLibrary(buffer, backend);
+            } catch (IOException e) {
+                throw new IOException(e.getMessage() + ": " + file, e);
+            }
+        }
+    }
+
+    /**
+     * @return The number of formulas in the library
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the text of a stored formula
+     * @param index The position of the formula, from 0 to {@link #size()} - 1
+     * @return The formula text
+     * @throws IndexOutOfBoundsException If the index is out of range
+     * @throws IllegalStateException If the stored text does not match its checksum
+     */
+    public String formula(int index) {
+        int entry = entry(index);
+        int offset = (int) buffer.getLong(entry);
+        int length = buffer.getInt(entry + 8);
+        if (checkRecord(offset, length, buffer.getInt(entry + 12)) && checksum(offset, length) == buffer.getInt(entry + 20)) {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        throw new IllegalStateException("Formula library record " + index + " is corrupt");
+    }
+
+    /**
+     * Looks up a stored formula
+     * @param formula The formula text
+     * @return The position of the formula, or -1 if it is not stored
+     */
+    public int indexOf(String formula) {
+        if (formula == null) {
+            return -1;
+        }
+        int hash = formula.hashCode();
+        byte[] bytes = null;
+        int mask = tableSize - 1;
+        for (int slot = hash & mask, probes = 0; probes < tableSize; slot = (slot + 1) & mask, probes++) {
+            int index = buffer.getInt(tableOffset + 4 * slot) - 1;
+            if (index < 0) {
+                return -1;
+            }
+            if (index >= count) {
+                continue;
+            }
+            int entry = entry(index);
+            if (buffer.getInt(entry + 16) != hash) {
+                continue;
+            }
+            if (bytes == null) {
+                bytes = formula.getBytes(StandardCharsets.UTF_8);
+            }
+            int offset = (int) buffer.getLong(entry);
+            int length = buffer.getInt(entry + 8);
+            if (length == bytes.length && checkRecord(offset, length, 0) && textEquals(offset, bytes)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a stored formula, decoding it on first use
+     * @param index The position of the formula, from 0 to {@link #size()} - 1
+     * @return The compiled formula; later calls return the same instance
+     * @throws IndexOutOfBoundsException If the index is out of range
+     * @throws IllegalStateException If the stored text does not match its checksum
+     */
+    public CompiledFormula get(int index) {
+        CompiledFormula compiled = formulas.get(index);
+        if (compiled == null) {
+            compiled = load(index, formula(index));
+            if (!formulas.compareAndSet(index, null, compiled)) {
+                compiled = formulas.get(index);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns a formula, from the library when it is stored there and
+     * compiled from the text otherwise
+     * @param formula The formula text
+     * @return The compiled formula
+     * @throws IllegalArgumentException If the formula is not stored and is null, empty or invalid
+     */
+    public CompiledFormula get(String formula) {
+        int index = indexOf(formula);
+        if (index < 0) {
+            misses.increment();
+            return FormulaCalculator.compile(formula, backend);
+        }
+        CompiledFormula compiled = formulas.get(index);
+        if (compiled == null) {
+            // The text was just matched byte for byte, so its checksum need not be checked
+            compiled = load(index, formula);
+            if (!formulas.compareAndSet(index, null, compiled)) {
+                compiled = formulas.get(index);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * @return The number of formulas decoded from their stored program
+     */
+    public long decodedCount() {
+        return decoded.sum();
+    }
+
+    /**
+     * @return The number of stored formulas that were parsed from their text
+     *     because of a checksum or encoding version mismatch
+     */
+    public long reparsedCount() {
+        return reparsed.sum();
+    }
+
+    /**
+     * @return The number of {@link #get(String)} calls for formulas not in the library
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Decodes a stored program, or parses the text when the program cannot be trusted.
+     */
+    private CompiledFormula load(int index, String text) {
+        int entry = entry(index);
+        int offset = (int) buffer.getLong(entry) + buffer.getInt(entry + 8);
+        int length = buffer.getInt(entry + 12);
+        if (currentEncoding && checksum(offset, length) == buffer.getInt(entry + 24)) {
+            try {
+                ProgramCodec.Decoded program = ProgramCodec.decode(buffer, offset, length);
+                if (program.program.outputs.length == 1) {
+                    decoded.increment();
+                    return new CompiledFormula(text, null, program.program, program.argumentNames, backend);
+                }
+            } catch (IllegalArgumentException e) {
+                // Fall back to parsing the text below
+            }
+        }
+        reparsed.increment();
+        return FormulaCalculator.compile(text, backend);
+    }
+
+    private int entry(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Formula index " + index + " out of range for " + count + " formulas");
+        }
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    private boolean checkRecord(int offset, int textLength, int programLength) {
+        return offset >= 0 && textLength >= 0 && programLength >= 0
+            && (long) offset + textLength + programLength <= buffer.capacity();
+    }
+
+    private int checksum(int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private boolean textEquals(int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,375 @@
+package com.formulacalculator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of compilation and single-row evaluation.
+ *
+ * Three independent consumers can observe {@link FormulaCalculator#compile}
+ * and the {@code evaluate} methods of {@link CompiledFormula}, including the
+ * calls made by {@link FormulaCalculator#calc(String, Object...)}:
+ * <ul>
+ * <li>Metrics, switched on with {@link #setEnabled(boolean)} or the
+ * {@code formulacalculator.metrics} system property: call and error counts
+ * by {@link ErrorCategory}, latency histograms and the formulas that take
+ * the most evaluation time.</li>
+ * <li>A {@link Listener}, e.g. to export the same data to a metrics system.</li>
+ * <li>JDK Flight Recorder: while a recording runs, compilations are recorded
+ * as {@code com.formulacalculator.Compile} events and evaluations slower than
+ * 20 microseconds as {@code com.formulacalculator.Evaluate} events, both
+ * carrying the hash of the formula text.</li>
+ * </ul>
+ * When none of them is active, compile and evaluate only read one volatile
+ * flag and take no timestamps. Counters are {@link LongAdder}s, so threads
+ * evaluating at the same time do not contend on them.
+ */
+public final class FormulaMetrics {
+
+    /** System property that enables metrics at startup when set to {@code true} */
+    public static final String ENABLED_PROPERTY = "formulacalculator.metrics";
+
+    /** The number of distinct formulas whose evaluation time is tracked */
+    static final int MAX_HOT_SPOTS = 1024;
+
+    private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+    private static volatile Listener listener;
+    private static volatile boolean recording;
+    /** Whether compile and evaluate need to be instrumented at all */
+    static volatile boolean active = enabled;
+
+    private static final LongAdder compilations = new LongAdder();
+    private static final LongAdder evaluations = new LongAdder();
+    private static final LongAdder[] errors = new LongAdder[ErrorCategory.values().length];
+    private static final LatencyHistogram compileLatency = new LatencyHistogram();
+    private static final LatencyHistogram evaluationLatency = new LatencyHistogram();
+    private static final ConcurrentHashMap<String, Counters> hotSpots = new ConcurrentHashMap<>();
+    /** Shared by formulas evaluated after {@link #MAX_HOT_SPOTS} others were tracked */
+    private static final Counters untracked = new Counters(null);
+
+    static {
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+        if (ModuleLayer.boot().findModule("jdk.jfr").isPresent()) {
+            try {
+                FlightRecorderEvents.register();
+            } catch (RuntimeException | LinkageError e) {
+                // Flight Recorder is unavailable or not permitted; events are simply not emitted
+            }
+        }
+    }
+
+    /**
+     * Receives every instrumented compilation and evaluation.
+     * Implementations should return quickly; exceptions are ignored.
+     */
+    public interface Listener {
+
+        /**
+         * Called after a formula was compiled or failed to compile
+         * @param formula The formula text; may be null when compilation failed
+         * @param nanos The time spent compiling, in nanoseconds
+         * @param error Why compilation failed, or null on success
+         */
+        default void compiled(String formula, long nanos, ErrorCategory error) {
+        }
+
+        /**
+         * Called after a single-row evaluation, including one that failed
+         * @param formula The formula
+         * @param tier The tier the evaluation ran in
+         * @param nanos The time spent evaluating, in nanoseconds; 0 when an
+         *     argument was rejected before evaluation
+         * @param error Why evaluation failed, or null on success
+         */
+        default void evaluated(CompiledFormula formula, Tier tier, long nanos, ErrorCategory error) {
+        }
+    }
+
+    /**
+     * Evaluation statistics of one formula.
+     */
+    public static final class HotSpot {
+        private final String formula;
+        private final long evaluations;
+        private final long errors;
+        private final long totalNanos;
+
+        HotSpot(String formula, long evaluations, long errors, long totalNanos) {
+            this.formula = formula;
+            this.evaluations = evaluations;
+            this.errors = errors;
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @return The formula text
+         */
+        public String formula() {
+            return formula;
+        }
+
+        /**
+         * @return The number of evaluations, including failed ones
+         */
+        public long evaluations() {
+            return evaluations;
+        }
+
+        /**
+         * @return The number of failed evaluations
+         */
+        public long errors() {
+            return errors;
+        }
+
+        /**
+         * @return The total evaluation time in nanoseconds
+         */
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * @return The mean evaluation time in nanoseconds, or 0 without evaluations
+         */
+        public double meanNanos() {
+            return evaluations == 0 ? 0.0 : (double) totalNanos / evaluations;
+        }
+
+        @Override
+        public String toString() {
+            return formula + ": " + evaluations + " evaluations, " + errors + " errors, " + totalNanos + "ns";
+        }
+    }
+
+    /**
+     * Live counters behind a {@link HotSpot}, cached by each compiled formula.
+     */
+    static final class Counters {
+        final String formula;
+        final LongAdder evaluations = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        Counters(String formula) {
+            this.formula = formula;
+        }
+    }
+
+    private FormulaMetrics() {
+    }
+
+    /**
+     * @return Whether metrics are being collected
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops collecting metrics. Collected values are kept when stopping
+     * @param enabled Whether to collect metrics
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        FormulaMetrics.enabled = enabled;
+        update();
+    }
+
+    /**
+     * Sets the listener notified of compilations and evaluations
+     * @param listener The listener, or null to remove it
+     */
+    public static synchronized void setListener(Listener listener) {
+        FormulaMetrics.listener = listener;
+        update();
+    }
+
+    static synchronized void setRecording(boolean recording) {
+        FormulaMetrics.recording = recording;
+        update();
+    }
+
+    private static void update() {
+        active = enabled || listener != null || recording;
+    }
+
+    /**
+     * @return The number of compilations, including failed ones
+     */
+    public static long compileCount() {
+        return compilations.sum();
+    }
+
+    /**
+     * @return The number of single-row evaluations, including failed ones
+     */
+    public static long evaluationCount() {
+        return evaluations.sum();
+    }
+
+    /**
+     * @param category The kind of failure
+     * @return The number of compilations and evaluations that failed for this reason
+     */
+    public static long errorCount(ErrorCategory category) {
+        return errors[category.ordinal()].sum();
+    }
+
+    /**
+     * @return The durations of compilations
+     */
+    public static LatencyHistogram compileLatency() {
+        return compileLatency;
+    }
+
+    /**
+     * @return The durations of single-row evaluations
+     */
+    public static LatencyHistogram evaluationLatency() {
+        return evaluationLatency;
+    }
+
+    /**
+     * Returns the formulas that took the most evaluation time. The first
+     * 1024 distinct formulas evaluated while metrics are enabled are tracked
+     * @param limit The maximum number of formulas to return
+     * @return Statistics per formula, by decreasing total evaluation time
+     */
+    public static List<HotSpot> hotSpots(int limit) {
+        List<HotSpot> snapshot = new ArrayList<>(hotSpots.size());
+        for (Counters counters : hotSpots.values()) {
+            snapshot.add(new HotSpot(counters.formula, counters.evaluations.sum(), counters.errors.sum(), counters.nanos.sum()));
+        }
+        snapshot.sort(Comparator.comparingLong(HotSpot::totalNanos).reversed());
+        return snapshot.subList(0, Math.min(Math.max(limit, 0), snapshot.size()));
+    }
+
+    /**
+     * Sets all counters and histograms back to zero. Tracked formulas stay tracked.
+     */
+    public static void reset() {
+        compilations.reset();
+        evaluations.reset();
+        for (LongAdder error : errors) {
+            error.reset();
+        }
+        compileLatency.reset();
+        evaluationLatency.reset();
+        for (Counters counters : hotSpots.values()) {
+            counters.evaluations.reset();
+            counters.errors.reset();
+            counters.nanos.reset();
+        }
+    }
+
+    /**
+     * Compiles a formula while recording it; called when {@link #active}.
+     */
+    static CompiledFormula compile(String formula, Backend backend) {
+        Object event = recording ? FlightRecorderEvents.beginCompile() : null;
+        long start = System.nanoTime();
+        ErrorCategory error = null;
+        try {
+            return FormulaCalculator.parse(formula, backend);
+        } catch (IllegalArgumentException e) {
+            error = e instanceof FormulaException ? ((FormulaException) e).category() : ErrorCategory.SYNTAX;
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (event != null) {
+                FlightRecorderEvents.endCompile(event, formula, backend, error);
+            }
+            if (enabled) {
+                compilations.increment();
+                compileLatency.record(nanos);
+                if (error != null) {
+                    errors[error.ordinal()].increment();
+                }
+            }
+            Listener listener = FormulaMetrics.listener;
+            if (listener != null) {
+                try {
+                    listener.compiled(formula, nanos, error);
+                } catch (RuntimeException e) {
+                    // A failing listener must not break compilation
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates a formula while recording it; called when {@link #active}.
+     */
+    static double evaluate(CompiledFormula formula, double[] args, int supplied, NonFinitePolicy policy) {
+        Tier tier = formula.tier();
+        Object event = recording ? FlightRecorderEvents.beginEvaluate() : null;
+        long start = System.nanoTime();
+        ErrorCategory error = null;
+        try {
+            double result = formula.run(args, supplied, policy);
+            if (Double.isNaN(result)) {
+                error = ErrorCategory.INVALID_RESULT;
+            }
+            return result;
+        } catch (IllegalArgumentException e) {
+            error = e instanceof FormulaException ? ((FormulaException) e).category() : ErrorCategory.INVALID_RESULT;
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (event != null) {
+                FlightRecorderEvents.endEvaluate(event, formula, tier, error);
+            }
+            evaluated(formula, tier, nanos, error);
+        }
+    }
+
+    /**
+     * Records a call rejected before evaluation, e.g. because an argument is not a number.
+     */
+    static void rejected(CompiledFormula formula, ErrorCategory error) {
+        evaluated(formula, formula.tier(), -1, error);
+    }
+
+    private static void evaluated(CompiledFormula formula, Tier tier, long nanos, ErrorCategory error) {
+        if (enabled) {
+            evaluations.increment();
+            Counters counters = counters(formula);
+            counters.evaluations.increment();
+            if (nanos >= 0) {
+                evaluationLatency.record(nanos);
+                counters.nanos.add(nanos);
+            }
+            if (error != null) {
+                errors[error.ordinal()].increment();
+                counters.errors.increment();
+            }
+        }
+        Listener listener = FormulaMetrics.listener;
+        if (listener != null) {
+            try {
+                listener.evaluated(formula, tier, Math.max(nanos, 0), error);
+            } catch (RuntimeException e) {
+                // A failing listener must not break evaluation
+            }
+        }
+    }
+
+    private static Counters counters(CompiledFormula formula) {
+        Counters counters = formula.counters();
+        if (counters == null) {
+            counters = hotSpots.get(formula.formula());
+            if (counters == null) {
+                counters = hotSpots.size() < MAX_HOT_SPOTS
+                    ? hotSpots.computeIfAbsent(formula.formula(), Counters::new)
+                    : untracked;
+            }
+            formula.counters(counters);
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,238 @@
+package com.formulacalculator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recursive-descent parser turning formula text into an expression tree.
+ *
+ * Grammar, from lowest to highest precedence:
+ * <pre>
+ * expression := term (('+' | '-') term)*
+ * term       := unary (('*' | '/') unary)*
+ * unary      := ('+' | '-') unary | power
+ * power      := primary (('^' | '**') unary)?
+ * primary    := number | $name | constant | function '(' arguments ')' | '(' expression ')'
+ * </pre>
+ * Exponentiation is right-associative and binds tighter than unary minus,
+ * so {@code -2 ^ 2} is -4. Arguments are assigned slots in order of first
+ * appearance, which is the order in which positional values are bound.
+ */
+final class FormulaParser {
+
+    private final FormulaTokenizer tokens;
+    private final Map<String, Integer> slots;
+    /** Offset of the first occurrence of each argument added by this parser */
+    private final Map<String, Integer> positions = new HashMap<>();
+
+    FormulaParser(String formula) {
+        this(formula, new LinkedHashMap<>());
+    }
+
+    /**
+     * Creates a parser that binds arguments against an existing slot table.
+     * Names already in the table keep their slot; new names are appended,
+     * so several formulas parsed with one table share a common argument schema.
+     * @param formula The formula text
+     * @param slots The slot of each argument name, extended in place
+     */
+    FormulaParser(String formula, LinkedHashMap<String, Integer> slots) {
+        this.tokens = new FormulaTokenizer(formula);
+        this.slots = slots;
+    }
+
+    /**
+     * Parses the whole formula.
+     * @return The root of the expression tree
+     * @throws FormulaException If the formula is not syntactically valid
+     */
+    Node parse() {
+        tokens.next();
+        Node root = expression();
+        if (tokens.type != FormulaTokenizer.Type.END) {
+            throw unexpected();
+        }
+        return root;
+    }
+
+    /**
+     * Makes syntax errors skip their stack trace, for callers that turn them
+     * into a diagnostic instead of letting them propagate.
+     * @return This parser
+     */
+    FormulaParser withoutStackTraces() {
+        tokens.stackTraces = false;
+        return this;
+    }
+
+    /**
+     * @param name An argument name, without the leading $
+     * @return The offset of its first occurrence, or -1 if this parser did not add it
+     */
+    int positionOf(String name) {
+        Integer position = positions.get(name);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * @return The argument names in slot order, available after {@link #parse()}
+     */
+    List<String> argumentNames() {
+        return new ArrayList<>(slots.keySet());
+    }
+
+    private Node expression() {
+        Node left = term();
+        while (true) {
+            if (tokens.type == FormulaTokenizer.Type.PLUS) {
+                tokens.next();
+                left = new Node.Apply(Operation.ADD, left, term());
+            } else if (tokens.type == FormulaTokenizer.Type.MINUS) {
+                tokens.next();
+                left = new Node.Apply(Operation.SUBTRACT, left, term());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Node term() {
+        Node left = unary();
+        while (true) {
+            if (tokens.type == FormulaTokenizer.Type.STAR) {
+                tokens.next();
+                left = new Node.Apply(Operation.MULTIPLY, left, unary());
+            } else if (tokens.type == FormulaTokenizer.Type.SLASH) {
+                tokens.next();
+                left = new Node.Apply(Operation.DIVIDE, left, unary());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Node unary() {
+        if (tokens.type == FormulaTokenizer.Type.MINUS) {
+            tokens.next();
+            return new Node.Apply(Operation.NEGATE, unary(), null);
+        }
+        if (tokens.type == FormulaTokenizer.Type.PLUS) {
+            tokens.next();
+            return unary();
+        }
+        return power();
+    }
+
+    private Node power() {
+        Node base = primary();
+        if (tokens.type == FormulaTokenizer.Type.POWER) {
+            tokens.next();
+            return new Node.Apply(Operation.POWER, base, unary());
+        }
+        return base;
+    }
+
+    private Node primary() {
+        switch (tokens.type) {
+            case NUMBER: {
+                Node node = new Node.Constant(tokens.number);
+                tokens.next();
+                return node;
+            }
+            case ARGUMENT: {
+                String name = tokens.text().substring(1);
+                Integer slot = slots.get(name);
+                if (slot == null) {
+                    slot = slots.size();
+                    slots.put(name, slot);
+                    positions.put(name, tokens.start);
+                }
+                tokens.next();
+                return new Node.Argument(name, slot);
+            }
+            case IDENTIFIER:
+                return identifier();
+            case LEFT_PAREN: {
+                tokens.next();
+                Node inner = expression();
+                expect(FormulaTokenizer.Type.RIGHT_PAREN, "')'");
+                return inner;
+            }
+            default:
+                throw unexpected();
+        }
+    }
+
+    private Node identifier() {
+        String name = tokens.text();
+        int position = tokens.start;
+        tokens.next();
+
+        if (tokens.type != FormulaTokenizer.Type.LEFT_PAREN) {
+            if (name.equalsIgnoreCase("pi")) {
+                return new Node.Constant(Math.PI);
+            }
+            if (name.equalsIgnoreCase("e")) {
+                return new Node.Constant(Math.E);
+            }
+            throw error("Unknown identifier '" + name + "'", position);
+        }
+
+        Operation function = Operation.function(name);
+        if (function == null) {
+            throw error("Unknown function '" + name + "'", position);
+        }
+        tokens.next();
+
+        List<Node> arguments = new ArrayList<>();
+        if (tokens.type != FormulaTokenizer.Type.RIGHT_PAREN) {
+            arguments.add(expression());
+            while (tokens.type == FormulaTokenizer.Type.COMMA) {
+                tokens.next();
+                arguments.add(expression());
+            }
+        }
+        expect(FormulaTokenizer.Type.RIGHT_PAREN, "')'");
+
+        if (function.isVariadic()) {
+            if (arguments.isEmpty()) {
+                throw error("Function '" + name + "' expects at least 1 argument", position);
+            }
+            Node result = arguments.get(0);
+            for (int i = 1; i < arguments.size(); i++) {
+                result = new Node.Apply(function, result, arguments.get(i));
+            }
+            return result;
+        }
+        if (arguments.size() != function.arity()) {
+            throw error("Function '" + name + "' expects " + function.arity() + " argument"
+                + (function.arity() == 1 ? "" : "s") + " but got " + arguments.size(), position);
+        }
+        return new Node.Apply(function,
+            arguments.size() > 0 ? arguments.get(0) : null,
+            arguments.size() > 1 ? arguments.get(1) : null);
+    }
+
+    private void expect(FormulaTokenizer.Type type, String description) {
+        if (tokens.type != type) {
+            throw tokens.type == FormulaTokenizer.Type.END
+                ? error("Expected " + description + " but reached end of formula", tokens.start)
+                : error("Expected " + description + " but found '" + tokens.text() + "'", tokens.start);
+        }
+        tokens.next();
+    }
+
+    private FormulaException unexpected() {
+        if (tokens.type == FormulaTokenizer.Type.END) {
+            return error("Unexpected end of formula", tokens.start);
+        }
+        return error("Unexpected token '" + tokens.text() + "'", tokens.start);
+    }
+
+    private FormulaException error(String message, int position) {
+        return tokens.error(message, position);
+    }
+}
@@ -0,0 +1,424 @@
+package com.formulacalculator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A spreadsheet-style set of named cells: inputs holding values and formulas
+ * whose $name placeholders refer to inputs or to other formulas.
+ * <pre>
+ * FormulaSheet sheet = new FormulaSheet();
+ * sheet.define("subtotal", "$quantity * $price");
+ * sheet.define("total", "$subtotal * (1 + $taxRate)");
+ * sheet.set("quantity", 4);
+ * sheet.set("price", 6);
+ * sheet.set("taxRate", 0.25);
+ * sheet.get("total");                                    // 30.0
+ * </pre>
+ * References form a dependency graph that must stay acyclic; a definition
+ * that would close a cycle is rejected and leaves the sheet unchanged.
+ * Every cell has a level one above its highest dependency, so cells of the
+ * same level never depend on each other. When an input changes only the
+ * cells downstream of it are recomputed, level by level, and a cell whose
+ * value did not change does not trigger its dependents. The cost of a
+ * change therefore depends on how many cells it affects, not on the size
+ * of the sheet.
+ *
+ * A sheet created with a {@link ForkJoinPool} evaluates the cells of one
+ * level in parallel when there is enough work to be worth it. All methods
+ * are synchronized, so a sheet may be shared between threads.
+ */
+public final class FormulaSheet {
+
+    /** Estimated cost of a level's cells below which they are evaluated in the calling thread */
+    static final long PARALLEL_THRESHOLD = 1 << 12;
+
+    private final Map<String, Cell> cells = new HashMap<>();
+    private final ForkJoinPool pool;
+    private final PriorityQueue<Cell> queue = new PriorityQueue<>(Comparator.comparingInt((Cell cell) -> cell.level));
+    private final List<Cell> group = new ArrayList<>();
+    private long evaluationCount;
+
+    /**
+     * A cell: an input when it has no formula
+     */
+    private static final class Cell {
+        final String name;
+        CompiledFormula formula;
+        Cell[] arguments;
+        double[] slots;
+        long cost;
+        final Set<Cell> dependents = new LinkedHashSet<>();
+        int level;
+        double value = Double.NaN;
+        boolean assigned;
+        /** An input without a value that this cell is or depends on, or null when every input it reads is set */
+        Cell unset = this;
+        boolean queued;
+        boolean changed;
+
+        Cell(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Recomputes the value and the unset input from the arguments, which
+         * are on lower levels and therefore up to date. A cell that depends on
+         * an unset input is not evaluated, as the optimizer may have removed
+         * the reference and produced a value.
+         */
+        void evaluate() {
+            Cell missing = null;
+            for (int i = 0; i < slots.length && missing == null; i++) {
+                missing = arguments[i].unset;
+                slots[i] = arguments[i].value;
+            }
+            double result = missing == null ? formula.kernel().apply(slots) : Double.NaN;
+            changed = Double.doubleToLongBits(result) != Double.doubleToLongBits(value) || missing != unset;
+            value = result;
+            unset = missing;
+        }
+
+        int computeLevel() {
+            int level = 0;
+            if (arguments != null) {
+                for (Cell argument : arguments) {
+                    level = Math.max(level, argument.level + 1);
+                }
+            }
+            return level;
+        }
+    }
+
+    /**
+     * Evaluates a slice of one level's cells, splitting it while it is expensive enough.
+     */
+    private static final class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Cell> cells;
+        private final int from;
+        private final int to;
+
+        LevelTask(List<Cell> cells, int from, int to) {
+            this.cells = cells;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && cost(cells, from, to) >= PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LevelTask(cells, from, middle), new LevelTask(cells, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                cells.get(i).evaluate();
+            }
+        }
+    }
+
+    /**
+     * Creates a sheet that evaluates in the calling thread
+     */
+    public FormulaSheet() {
+        this(null);
+    }
+
+    /**
+     * Creates a sheet that evaluates independent cells in parallel
+     * @param pool The pool to evaluate in, or null to evaluate in the calling thread
+     */
+    public FormulaSheet(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Defines or replaces a formula cell and computes it and every cell that depends on it.
+     * Names referenced by the formula that are not yet cells become inputs without a value.
+     * An existing input of the same name becomes a formula.
+     * @param name The cell name, with or without the leading $
+     * @param formula The formula, which may reference other cells as $name
+     * @throws IllegalArgumentException If the name or formula is invalid or the formula would create a circular reference
+     */
+    public synchronized void define(String name, String formula) {
+        String key = key(name);
+        CompiledFormula compiled = FormulaCalculator.compile(formula);
+        List<String> names = compiled.argumentNames();
+        Cell cell = cells.get(key);
+        if (names.contains(key)) {
+            throw circular(List.of(key, key));
+        }
+        if (cell != null) {
+            List<String> path = pathToArgument(cell, names);
+            if (path != null) {
+                throw circular(path);
+            }
+        } else {
+            cell = new Cell(key);
+            cells.put(key, cell);
+        }
+
+        if (cell.arguments != null) {
+            for (Cell argument : cell.arguments) {
+                argument.dependents.remove(cell);
+            }
+        }
+        Cell[] arguments = new Cell[names.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = cells.computeIfAbsent(names.get(i), Cell::new);
+            arguments[i].dependents.add(cell);
+        }
+        cell.formula = compiled;
+        cell.arguments = arguments;
+        cell.slots = new double[arguments.length];
+        cell.cost = ParallelBatch.cost(compiled.program());
+        cell.assigned = false;
+        updateLevels(cell);
+        enqueue(cell);
+        recalculate();
+    }
+
+    /**
+     * Sets an input and recomputes the cells that depend on it
+     * @param name The input name, with or without the leading $
+     * @param value The new value
+     * @throws IllegalArgumentException If the name is invalid or belongs to a formula
+     */
+    public synchronized void set(String name, double value) {
+        if (assign(name, value)) {
+            recalculate();
+        }
+    }
+
+    /**
+     * Sets several inputs at once. Cells depending on more than one of them
+     * are recomputed only once.
+     * @param values The new values keyed by input name
+     * @throws IllegalArgumentException If a name is invalid or belongs to a formula
+     */
+    public synchronized void set(Map<String, ? extends Number> values) {
+        try {
+            for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+                assign(entry.getKey(), entry.getValue().doubleValue());
+            }
+        } finally {
+            // Keep the sheet consistent with the inputs assigned before a failure
+            recalculate();
+        }
+    }
+
+    /**
+     * Returns the current value of an input or formula
+     * @param name The cell name, with or without the leading $
+     * @return The value
+     * @throws IllegalArgumentException If there is no such cell, the input or an input the formula
+     *     depends on has no value, or the formula's result is not a finite number
+     */
+    public synchronized double get(String name) {
+        Cell cell = cell(name);
+        if (cell.unset != null) {
+            throw new IllegalArgumentException("Invalid formula: no value set for input $" + cell.unset.name);
+        }
+        return CompiledFormula.checkResult(cell.value);
+    }
+
+    /**
+     * Removes a cell that no formula references
+     * @param name The cell name, with or without the leading $
+     * @throws IllegalArgumentException If there is no such cell or a formula references it
+     */
+    public synchronized void remove(String name) {
+        Cell cell = cell(name);
+        if (!cell.dependents.isEmpty()) {
+            throw new IllegalArgumentException("Invalid formula: $" + cell.name + " is referenced by $"
+                + cell.dependents.iterator().next().name);
+        }
+        if (cell.arguments != null) {
+            for (Cell argument : cell.arguments) {
+                argument.dependents.remove(cell);
+            }
+        }
+        cells.remove(cell.name);
+    }
+
+    /**
+     * @param name A cell name, with or without the leading $
+     * @return Whether the sheet has an input or formula of that name
+     */
+    public synchronized boolean contains(String name) {
+        return cells.containsKey(name.startsWith("$") ? name.substring(1) : name);
+    }
+
+    /**
+     * @param name A cell name, with or without the leading $
+     * @return The formula text, or null if the cell is an input
+     * @throws IllegalArgumentException If there is no such cell
+     */
+    public synchronized String formula(String name) {
+        CompiledFormula formula = cell(name).formula;
+        return formula == null ? null : formula.formula();
+    }
+
+    /**
+     * @return The names of all cells, inputs and formulas, in no particular order
+     */
+    public synchronized Set<String> names() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(cells.keySet()));
+    }
+
+    /**
+     * @return The number of formula evaluations performed so far, for monitoring how much work changes cause
+     */
+    public synchronized long evaluationCount() {
+        return evaluationCount;
+    }
+
+    private boolean assign(String name, double value) {
+        String key = key(name);
+        Cell cell = cells.computeIfAbsent(key, Cell::new);
+        if (cell.formula != null) {
+            throw new IllegalArgumentException("Invalid formula: $" + key + " is a formula and cannot be set");
+        }
+        boolean changed = !cell.assigned || Double.doubleToLongBits(value) != Double.doubleToLongBits(cell.value);
+        cell.value = value;
+        cell.assigned = true;
+        cell.unset = null;
+        if (changed) {
+            for (Cell dependent : cell.dependents) {
+                enqueue(dependent);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Evaluates the queued cells one level at a time; cells whose value
+     * changed queue their dependents, which always sit on a higher level.
+     */
+    private void recalculate() {
+        while (!queue.isEmpty()) {
+            int level = queue.peek().level;
+            group.clear();
+            while (!queue.isEmpty() && queue.peek().level == level) {
+                Cell cell = queue.poll();
+                cell.queued = false;
+                group.add(cell);
+            }
+            if (pool != null && group.size() > 1 && cost(group, 0, group.size()) >= PARALLEL_THRESHOLD) {
+                pool.invoke(new LevelTask(group, 0, group.size()));
+            } else {
+                for (Cell cell : group) {
+                    cell.evaluate();
+                }
+            }
+            evaluationCount += group.size();
+            for (Cell cell : group) {
+                if (cell.changed) {
+                    for (Cell dependent : cell.dependents) {
+                        enqueue(dependent);
+                    }
+                }
+            }
+        }
+        group.clear();
+    }
+
+    private void enqueue(Cell cell) {
+        if (!cell.queued) {
+            cell.queued = true;
+            queue.add(cell);
+        }
+    }
+
+    private static long cost(List<Cell> cells, int from, int to) {
+        long cost = 0;
+        for (int i = from; i < to; i++) {
+            cost += cells.get(i).cost;
+        }
+        return cost;
+    }
+
+    /**
+     * Recomputes the level of a redefined cell and of every cell whose level depends on it.
+     */
+    private static void updateLevels(Cell cell) {
+        Deque<Cell> work = new ArrayDeque<>();
+        work.add(cell);
+        while (!work.isEmpty()) {
+            Cell next = work.poll();
+            int level = next.computeLevel();
+            if (level != next.level || next == cell) {
+                next.level = level;
+                work.addAll(next.dependents);
+            }
+        }
+    }
+
+    /**
+     * Searches the cells downstream of a cell for one of the given names.
+     * @return The chain of references from the cell to the first match, or null if there is none
+     */
+    private static List<String> pathToArgument(Cell cell, List<String> names) {
+        Map<Cell, Cell> parents = new HashMap<>();
+        Deque<Cell> work = new ArrayDeque<>();
+        parents.put(cell, null);
+        work.add(cell);
+        while (!work.isEmpty()) {
+            Cell next = work.poll();
+            for (Cell dependent : next.dependents) {
+                if (parents.containsKey(dependent)) {
+                    continue;
+                }
+                parents.put(dependent, next);
+                if (names.contains(dependent.name)) {
+                    // dependent references ... references cell, and cell is about to reference dependent
+                    List<String> path = new ArrayList<>();
+                    path.add(cell.name);
+                    for (Cell step = dependent; step != null; step = parents.get(step)) {
+                        path.add(step.name);
+                    }
+                    return path;
+                }
+                work.add(dependent);
+            }
+        }
+        return null;
+    }
+
+    private static IllegalArgumentException circular(List<String> path) {
+        return new IllegalArgumentException("Invalid formula: circular reference $" + String.join(" -> $", path));
+    }
+
+    private Cell cell(String name) {
+        String key = name.startsWith("$") ? name.substring(1) : name;
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            throw new IllegalArgumentException("Invalid formula: unknown cell $" + key);
+        }
+        return cell;
+    }
+
+    private static String key(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Cell name cannot be null");
+        }
+        String key = name.startsWith("$") ? name.substring(1) : name;
+        if (!FormulaTokenizer.isArgumentName(key)) {
+            throw new IllegalArgumentException("Invalid formula: " + name + " is not a valid cell name");
+        }
+        return key;
+    }
+}
@@ -0,0 +1,170 @@
+package com.formulacalculator;
+
+/**
+ * Splits formula text into tokens.
+ *
+ * The tokenizer is a simple cursor over the formula string; the parser
+ * pulls one token at a time and inspects the fields of the tokenizer
+ * directly instead of allocating token objects.
+ */
+final class FormulaTokenizer {
+
+    /**
+     * Kinds of token produced by the tokenizer.
+     */
+    enum Type {
+        NUMBER, IDENTIFIER, ARGUMENT, PLUS, MINUS, STAR, SLASH, POWER, LEFT_PAREN, RIGHT_PAREN, COMMA, END
+    }
+
+    private final String formula;
+    private int cursor;
+
+    /** Type of the current token */
+    Type type;
+    /** Position of the first character of the current token */
+    int start;
+    /** Position just past the last character of the current token */
+    int end;
+    /** Value of the current token when it is a number */
+    double number;
+    /** Whether syntax errors capture a stack trace; off when they are only turned into a diagnostic */
+    boolean stackTraces = true;
+
+    FormulaTokenizer(String formula) {
+        this.formula = formula;
+    }
+
+    /**
+     * @return The text of the current token as written in the formula
+     */
+    String text() {
+        return formula.substring(start, end);
+    }
+
+    /**
+     * Advances to the next token.
+     * @throws FormulaException If the formula contains a character that cannot start a token
+     */
+    void next() {
+        int length = formula.length();
+        while (cursor < length && Character.isWhitespace(formula.charAt(cursor))) {
+            cursor++;
+        }
+        start = cursor;
+        if (cursor >= length) {
+            type = Type.END;
+            end = cursor;
+            return;
+        }
+
+        char c = formula.charAt(cursor);
+        if (isDigit(c) || (c == '.' && cursor + 1 < length && isDigit(formula.charAt(cursor + 1)))) {
+            scanNumber();
+        } else if (isIdentifierStart(c)) {
+            cursor = scanIdentifier(cursor);
+            type = Type.IDENTIFIER;
+        } else if (c == '$') {
+            if (cursor + 1 >= length || !isIdentifierStart(formula.charAt(cursor + 1))) {
+                throw error("Expected an argument name after '$'", cursor);
+            }
+            cursor = scanIdentifier(cursor + 1);
+            type = Type.ARGUMENT;
+        } else {
+            cursor++;
+            switch (c) {
+                case '+': type = Type.PLUS; break;
+                case '-': type = Type.MINUS; break;
+                case '/': type = Type.SLASH; break;
+                case '^': type = Type.POWER; break;
+                case '(': type = Type.LEFT_PAREN; break;
+                case ')': type = Type.RIGHT_PAREN; break;
+                case ',': type = Type.COMMA; break;
+                case '*':
+                    if (cursor < length && formula.charAt(cursor) == '*') {
+                        cursor++;
+                        type = Type.POWER;
+                    } else {
+                        type = Type.STAR;
+                    }
+                    break;
+                default:
+                    throw error("Unexpected character '" + c + "'", start);
+            }
+        }
+        end = cursor;
+    }
+
+    /**
+     * Creates the exception reported for a syntax error.
+     * @param message Description of the problem
+     * @param position Zero-based offset in the formula where the problem was found
+     * @return The exception to throw
+     */
+    FormulaException error(String message, int position) {
+        return new FormulaException("Invalid formula: " + message + " at position " + position,
+            ErrorCategory.SYNTAX, position, stackTraces);
+    }
+
+    private void scanNumber() {
+        int length = formula.length();
+        while (cursor < length && isDigit(formula.charAt(cursor))) {
+            cursor++;
+        }
+        if (cursor < length && formula.charAt(cursor) == '.') {
+            cursor++;
+            while (cursor < length && isDigit(formula.charAt(cursor))) {
+                cursor++;
+            }
+        }
+        if (cursor < length && (formula.charAt(cursor) == 'e' || formula.charAt(cursor) == 'E')) {
+            int exponent = cursor + 1;
+            if (exponent < length && (formula.charAt(exponent) == '+' || formula.charAt(exponent) == '-')) {
+                exponent++;
+            }
+            if (exponent < length && isDigit(formula.charAt(exponent))) {
+                cursor = exponent;
+                while (cursor < length && isDigit(formula.charAt(cursor))) {
+                    cursor++;
+                }
+            }
+        }
+        type = Type.NUMBER;
+        number = Double.parseDouble(formula.substring(start, cursor));
+    }
+
+    private int scanIdentifier(int from) {
+        int position = from;
+        while (position < formula.length() && isIdentifierPart(formula.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @param name A candidate argument name, without the leading $
+     * @return Whether {@code $name} would be read as one argument
+     */
+    static boolean isArgumentName(String name) {
+        if (name.isEmpty() || !isIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!isIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+}
@@ -0,0 +1,117 @@
+package com.formulacalculator;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Approximate access-frequency counter used by {@link FormulaCache}.
+ *
+ * A count-min sketch of 4-bit counters packed sixteen to a {@code long}.
+ * Each key maps to four counters and its estimated frequency is the
+ * smallest of them. Once the number of recorded increments reaches ten
+ * times the cache size all counters are halved, so old popularity fades.
+ *
+ * Updates are deliberately unsynchronized: a lost increment only makes the
+ * estimate slightly less accurate. A counter is incremented by writing back
+ * the word it was checked in, so a race can lose updates to that word but
+ * never push a counter past 15 and carry into its neighbour. A counter that
+ * has saturated at 15 is never written again, so hot keys read the table
+ * without dirtying the cache line other threads are reading. Every operation works on one
+ * snapshot of the table and derives the index mask from its length, so a
+ * concurrent {@link #ensureCapacity} can never pair a mask with a table it
+ * does not fit. Halving is claimed with a compare-and-set, so threads that
+ * cross the sample size together halve the counters only once.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private volatile long[] table;
+    private int sampleSize;
+    private int additions;
+    private final AtomicBoolean resetting = new AtomicBoolean();
+
+    FrequencySketch(int maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * Resizes the sketch for a new cache size, discarding all counts.
+     * @param maximumSize The maximum number of cached entries
+     */
+    void ensureCapacity(int maximumSize) {
+        int length = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+        table = new long[length];
+        sampleSize = 10 * Math.max(maximumSize, 16);
+        additions = 0;
+    }
+
+    /**
+     * @param hash The key's hash code
+     * @return The estimated number of recent accesses, between 0 and 15
+     */
+    int frequency(int hash) {
+        long[] table = this.table;
+        int mask = table.length - 1;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            long mixed = mix(hash, i);
+            int index = (int) (mixed >>> 32) & mask;
+            int shift = ((int) mixed & 15) << 2;
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 15L));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access unless all of the key's counters are saturated.
+     * @param hash The key's hash code
+     */
+    void increment(int hash) {
+        long[] table = this.table;
+        int mask = table.length - 1;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long mixed = mix(hash, i);
+            int index = (int) (mixed >>> 32) & mask;
+            int shift = ((int) mixed & 15) << 2;
+            long word = table[index];
+            if (((word >>> shift) & 15L) != 15L) {
+                table[index] = word + (1L << shift);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves all counters, unless another thread is already doing so or has
+     * just done so.
+     */
+    private void reset() {
+        if (!resetting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (additions < sampleSize) {
+                return;
+            }
+            long[] table = this.table;
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        } finally {
+            resetting.set(false);
+        }
+    }
+
+    private static long mix(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[(i + 1) & 3];
+        return h ^ (h >>> 29);
+    }
+}
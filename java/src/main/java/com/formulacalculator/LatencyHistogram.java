@@ -0,0 +1,150 @@
+package com.formulacalculator;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of durations in nanoseconds with bounded relative error.
+ *
+ * Buckets follow the layout of HDR histograms: values below 32 have a
+ * bucket each, and every power of two above that is split into 32 equal
+ * buckets, so a recorded value is known to within about 3% whatever its
+ * magnitude. Values of 2<sup>40</sup> ns (about 18 minutes) and more share
+ * the last bucket. Each bucket is a {@link LongAdder}, so threads recording
+ * at the same time do not contend on a shared counter. Reads are not atomic
+ * with respect to concurrent recording.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration
+     * @param nanos The duration in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)].increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return The number of recorded durations
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The mean duration in nanoseconds, or 0 when nothing was recorded
+     */
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0.0 : (double) total.sum() / count;
+    }
+
+    /**
+     * @return The longest recorded duration in nanoseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile from the buckets
+     * @param percentile The percentile, from 0 to 100
+     * @return The highest value of the bucket holding the percentile, at most {@link #max()};
+     *     0 when nothing was recorded
+     * @throws IllegalArgumentException If the percentile is out of range
+     */
+    public long percentile(double percentile) {
+        if (!(percentile >= 0.0 && percentile <= 100.0)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Discards all recorded durations.
+     */
+    public void reset() {
+        for (LongAdder bucket : counts) {
+            bucket.reset();
+        }
+        total.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count() + ", mean=" + Math.round(mean()) + "ns, p50=" + percentile(50)
+            + "ns, p99=" + percentile(99) + "ns, max=" + max() + "ns";
+    }
+
+    /**
+     * @param value A non-negative duration
+     * @return The index of the bucket holding it
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @param bucket A bucket index
+     * @return The smallest value the bucket holds
+     */
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    private static long highestValue(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+}
@@ -0,0 +1,73 @@
+package com.formulacalculator;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps regions of binary files holding little-endian {@code double} values
+ * as columns for {@link CompiledFormula#evaluateBatch(DoubleBuffer[], int, int, DoubleBuffer, long[])}.
+ *
+ * The returned buffers are views of the file's pages, so no column data is
+ * copied to the heap: a file of several columns written one after another
+ * can be evaluated by mapping each column's region, and files larger than a
+ * single mapping (2^28 doubles) can be processed region by region.
+ * <pre>
+ * try (FileChannel in = FileChannel.open(input, READ);
+ *      FileChannel out = FileChannel.open(output, CREATE, READ, WRITE)) {
+ *     DoubleBuffer quantity = MappedColumns.read(in, 0, rows);
+ *     DoubleBuffer price = MappedColumns.read(in, 8L * rows, rows);
+ *     total.evaluateBatch(new DoubleBuffer[] {quantity, price}, MappedColumns.write(out, 0, rows));
+ * }
+ * </pre>
+ */
+public final class MappedColumns {
+
+    /** The largest number of doubles in one mapping */
+    public static final int MAX_ROWS = Integer.MAX_VALUE / Double.BYTES;
+
+    private MappedColumns() {
+    }
+
+    /**
+     * Maps a column of a file for reading
+     * @param channel A channel opened for reading
+     * @param position The byte offset of the column's first value
+     * @param rows The number of values
+     * @return A read-only little-endian view of the column
+     * @throws IOException If the region cannot be mapped
+     * @throws IllegalArgumentException If the region is negative or larger than {@link #MAX_ROWS}
+     */
+    public static DoubleBuffer read(FileChannel channel, long position, int rows) throws IOException {
+        checkRegion(position, rows);
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, (long) rows * Double.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .asDoubleBuffer();
+    }
+
+    /**
+     * Maps a column of a file for writing, growing the file if needed
+     * @param channel A channel opened for reading and writing
+     * @param position The byte offset of the column's first value
+     * @param rows The number of values
+     * @return A writable little-endian view of the column
+     * @throws IOException If the region cannot be mapped
+     * @throws IllegalArgumentException If the region is negative or larger than {@link #MAX_ROWS}
+     */
+    public static DoubleBuffer write(FileChannel channel, long position, int rows) throws IOException {
+        checkRegion(position, rows);
+        return channel.map(FileChannel.MapMode.READ_WRITE, position, (long) rows * Double.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .asDoubleBuffer();
+    }
+
+    private static void checkRegion(long position, int rows) {
+        if (position < 0 || rows < 0) {
+            throw new IllegalArgumentException("Position and rows cannot be negative");
+        }
+        if (rows > MAX_ROWS) {
+            throw new IllegalArgumentException("A mapped column can hold at most " + MAX_ROWS + " rows");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.formulacalculator;
+
+/**
+ * Node of a parsed formula's expression tree.
+ *
+ * Trees are immutable once built and evaluate against an array of argument
+ * values indexed by argument slot, so the same tree can be evaluated from
+ * any number of threads at once.
+ */
+abstract class Node {
+
+    /**
+     * Evaluates the subtree rooted at this node.
+     * @param args The argument values, indexed by argument slot
+     * @return The value of the subtree
+     */
+    abstract double eval(double[] args);
+
+    /**
+     * A numeric literal or named constant.
+     */
+    static final class Constant extends Node {
+        final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double eval(double[] args) {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return Double.toString(value);
+        }
+    }
+
+    /**
+     * A reference to a $name argument, resolved to a fixed slot.
+     */
+    static final class Argument extends Node {
+        final String name;
+        final int slot;
+
+        Argument(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        double eval(double[] args) {
+            return args[slot];
+        }
+
+        @Override
+        public String toString() {
+            return "$" + name;
+        }
+    }
+
+    /**
+     * An operator or function applied to up to two operands.
+     */
+    static final class Apply extends Node {
+        final Operation operation;
+        final Node left;
+        final Node right;
+
+        Apply(Operation operation, Node left, Node right) {
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(double[] args) {
+            double a = left == null ? 0.0 : left.eval(args);
+            double b = right == null ? 0.0 : right.eval(args);
+            return operation.apply(a, b);
+        }
+
+        @Override
+        public String toString() {
+            switch (operation.arity()) {
+                case 0:
+                    return operation.symbol() + "()";
+                case 1:
+                    return operation.isFunction()
+                        ? operation.symbol() + "(" + left + ")"
+                        : "(" + operation.symbol() + left + ")";
+                default:
+                    return operation.isFunction()
+                        ? operation.symbol() + "(" + left + ", " + right + ")"
+                        : "(" + left + " " + operation.symbol() + " " + right + ")";
+            }
+        }
+    }
+}
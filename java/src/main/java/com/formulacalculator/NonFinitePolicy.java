@@ -0,0 +1,14 @@
+package com.formulacalculator;
+
+/**
+ * What single-row evaluation does when a formula produces an infinite or NaN result.
+ *
+ * Batch evaluation never throws for such rows; it reports them in its
+ * return value and error bitmaps instead.
+ */
+public enum NonFinitePolicy {
+    /** Throw a {@link FormulaException} of category {@link ErrorCategory#INVALID_RESULT} */
+    THROW,
+    /** Return NaN, which costs no more than a finite result */
+    RETURN_NAN
+}
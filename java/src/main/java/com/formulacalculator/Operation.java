@@ -0,0 +1,139 @@
+package com.formulacalculator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Operations understood by the formula evaluator.
+ *
+ * Every operator and built-in function of the formula language maps to one
+ * of these constants. Variadic functions such as min and max are reduced to
+ * chains of their binary form by the parser, so an operation never takes
+ * more than two operands.
+ */
+enum Operation {
+    ADD("+", 2),
+    SUBTRACT("-", 2),
+    MULTIPLY("*", 2),
+    DIVIDE("/", 2),
+    POWER("^", 2),
+    NEGATE("-", 1),
+    SQRT("sqrt", 1),
+    ABS("abs", 1),
+    ROUND("round", 1),
+    FLOOR("floor", 1),
+    CEIL("ceil", 1),
+    MIN("min", 2),
+    MAX("max", 2),
+    POW("pow", 2),
+    SIN("sin", 1),
+    COS("cos", 1),
+    TAN("tan", 1),
+    LOG("log", 1),
+    EXP("exp", 1),
+    RANDOM("random", 0);
+
+    private final String symbol;
+    private final int arity;
+
+    Operation(String symbol, int arity) {
+        this.symbol = symbol;
+        this.arity = arity;
+    }
+
+    /**
+     * @return The operator symbol or function name used in formulas
+     */
+    String symbol() {
+        return symbol;
+    }
+
+    /**
+     * @return The number of operands consumed by this operation
+     */
+    int arity() {
+        return arity;
+    }
+
+    /**
+     * @return Whether the operation is one of the named built-in functions
+     */
+    boolean isFunction() {
+        return ordinal() >= SQRT.ordinal();
+    }
+
+    /**
+     * @return Whether min and max style variadic calls are reduced to this operation
+     */
+    boolean isVariadic() {
+        return this == MIN || this == MAX;
+    }
+
+    /**
+     * Applies the operation to its operands. Unused operands are ignored.
+     * @param a The first operand
+     * @param b The second operand
+     * @return The result of the operation
+     */
+    double apply(double a, double b) {
+        switch (this) {
+            case ADD: return a + b;
+            case SUBTRACT: return a - b;
+            case MULTIPLY: return a * b;
+            case DIVIDE: return a / b;
+            case POWER:
+            case POW: return Math.pow(a, b);
+            case NEGATE: return -a;
+            case SQRT: return Math.sqrt(a);
+            case ABS: return Math.abs(a);
+            case ROUND: return round(a);
+            case FLOOR: return Math.floor(a);
+            case CEIL: return Math.ceil(a);
+            case MIN: return Math.min(a, b);
+            case MAX: return Math.max(a, b);
+            case SIN: return Math.sin(a);
+            case COS: return Math.cos(a);
+            case TAN: return Math.tan(a);
+            case LOG: return Math.log(a);
+            case EXP: return Math.exp(a);
+            case RANDOM: return random();
+            default: throw new AssertionError(this);
+        }
+    }
+
+    /**
+     * Rounds half-way cases towards positive infinity, keeping the sign of
+     * negative values that round to zero (the JavaScript Math.round rules
+     * the calculator has always followed).
+     * @param value The value to round
+     * @return The rounded value
+     */
+    static double round(double value) {
+        double floor = Math.floor(value);
+        double result = value - floor >= 0.5 ? floor + 1.0 : floor;
+        return result == 0.0 ? Math.copySign(0.0, value) : result;
+    }
+
+    /**
+     * Returns a uniformly distributed value in [0, 1). Uses the calling
+     * thread's generator rather than the single shared one behind
+     * {@link Math#random()}, so concurrent evaluations do not contend on it.
+     * @return The random value
+     */
+    static double random() {
+        return ThreadLocalRandom.current().nextDouble();
+    }
+
+    /**
+     * Looks up a built-in function by name.
+     * @param name The function name as written in the formula
+     * @return The matching operation, or null if there is no such function
+     */
+    static Operation function(String name) {
+        for (Operation operation : values()) {
+            if (operation.isFunction() && operation.symbol.equals(name)) {
+                return operation;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,287 @@
+package com.formulacalculator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lowers expression trees into optimized {@link Program}s.
+ *
+ * The trees are walked bottom-up and every value is interned (hash-consed)
+ * on the way, so identical subexpressions become a single instruction no
+ * matter how often they are written. Before an instruction is interned:
+ * <ul>
+ * <li>operations whose operands are all constants are evaluated once and
+ *     replaced by the result; {@code random()} is never folded;</li>
+ * <li>{@code x ^ 2} and {@code pow(x, 2)} become {@code x * x}, and identities
+ *     such as {@code x ^ 1}, {@code x * 1}, {@code x / 1} and {@code x - 0}
+ *     are dropped;</li>
+ * <li>operands of commutative operations are put in a canonical order so
+ *     that {@code $a * $b} and {@code $b * $a} share one instruction.</li>
+ * </ul>
+ * Each rewrite produces bit-for-bit the same result as the original
+ * expression for every input, including NaN, infinities and signed zeros.
+ * The one rewrite that rests on the runtime rather than the language is
+ * {@code x ^ 2}: {@link Math#pow} is only specified to within one ulp,
+ * while {@code x * x} is correctly rounded, so identical squares rely on
+ * the JDK computing {@code pow(x, 2)} as a multiplication, as HotSpot does;
+ * {@code OptimizerTest} checks this at subnormal and near-overflow values.
+ * Folding uses the same {@link Operation#apply} the interpreter uses, so
+ * optimized and unoptimized formulas agree exactly.
+ */
+final class Optimizer {
+
+    private static final int ARGUMENT = 0;
+    private static final int CONSTANT = 1;
+    private static final int INSTRUCTION = 2;
+
+    private final int argumentCount;
+    private final boolean fold;
+    private final List<Integer> kinds = new ArrayList<>();
+    private final List<Double> constants = new ArrayList<>();
+    private final List<Operation> operations = new ArrayList<>();
+    private final List<Integer> lefts = new ArrayList<>();
+    private final List<Integer> rights = new ArrayList<>();
+    private final Map<Long, Integer> constantIds = new HashMap<>();
+    private final Map<List<Object>, Integer> instructionIds = new HashMap<>();
+
+    private Optimizer(int argumentCount, boolean fold) {
+        this.argumentCount = argumentCount;
+        this.fold = fold;
+        for (int i = 0; i < argumentCount; i++) {
+            add(ARGUMENT, 0.0, null, 0, 0);
+        }
+    }
+
+    /**
+     * Optimizes a single formula.
+     * @param root The root of the formula's expression tree
+     * @param argumentCount The number of argument slots
+     * @return The optimized program with one output
+     */
+    static Program optimize(Node root, int argumentCount) {
+        return optimize(List.of(root), argumentCount);
+    }
+
+    /**
+     * Optimizes several formulas over the same argument slots into one
+     * program, sharing common subexpressions between them.
+     * @param roots The roots of the formulas' expression trees
+     * @param argumentCount The number of argument slots
+     * @return The optimized program with one output per formula, in order
+     */
+    static Program optimize(List<Node> roots, int argumentCount) {
+        return lower(roots, argumentCount, true);
+    }
+
+    /**
+     * Lowers a formula without constant folding, for evaluation in another
+     * number system such as {@link DecimalFormula}: every constant keeps the
+     * value written in the formula instead of a result rounded to a double.
+     * The remaining rewrites are exact in any number system.
+     * @param root The root of the formula's expression tree
+     * @param argumentCount The number of argument slots
+     * @return The program with one output
+     */
+    static Program lowerExact(Node root, int argumentCount) {
+        return lower(List.of(root), argumentCount, false);
+    }
+
+    private static Program lower(List<Node> roots, int argumentCount, boolean fold) {
+        Optimizer optimizer = new Optimizer(argumentCount, fold);
+        int[] outputs = new int[roots.size()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = optimizer.lower(roots.get(i));
+        }
+        return optimizer.build(outputs);
+    }
+
+    private int lower(Node node) {
+        if (node instanceof Node.Constant) {
+            return constant(((Node.Constant) node).value);
+        }
+        if (node instanceof Node.Argument) {
+            return ((Node.Argument) node).slot;
+        }
+        Node.Apply apply = (Node.Apply) node;
+        int a = apply.left == null ? -1 : lower(apply.left);
+        int b = apply.right == null ? -1 : lower(apply.right);
+        return instruction(apply.operation, a, b);
+    }
+
+    private int instruction(Operation operation, int a, int b) {
+        int arity = operation.arity();
+
+        // Constant folding
+        if (fold && operation != Operation.RANDOM
+                && (arity < 1 || isConstant(a))
+                && (arity < 2 || isConstant(b))) {
+            return constant(operation.apply(arity >= 1 ? value(a) : 0.0, arity == 2 ? value(b) : 0.0));
+        }
+
+        // Strength reduction and identities
+        switch (operation) {
+            case POWER:
+            case POW:
+                if (isConstant(b, 2.0)) {
+                    return instruction(Operation.MULTIPLY, a, a);
+                }
+                if (isConstant(b, 1.0)) {
+                    return a;
+                }
+                if (isConstant(b, 0.0) || isConstant(b, -0.0)) {
+                    return constant(1.0);
+                }
+                operation = Operation.POWER;
+                break;
+            case MULTIPLY:
+                if (isConstant(b, 1.0)) {
+                    return a;
+                }
+                if (isConstant(a, 1.0)) {
+                    return b;
+                }
+                break;
+            case DIVIDE:
+                if (isConstant(b, 1.0)) {
+                    return a;
+                }
+                break;
+            case SUBTRACT:
+                if (isConstant(b, 0.0)) {
+                    return a;
+                }
+                break;
+            case NEGATE:
+                if (kinds.get(a) == INSTRUCTION && operations.get(a) == Operation.NEGATE) {
+                    return lefts.get(a);
+                }
+                break;
+            default:
+                break;
+        }
+
+        // Canonical operand order for commutative operations
+        if ((operation == Operation.ADD || operation == Operation.MULTIPLY
+                || operation == Operation.MIN || operation == Operation.MAX) && b < a) {
+            int swap = a;
+            a = b;
+            b = swap;
+        }
+
+        if (arity < 1) {
+            a = 0;
+        }
+        if (arity < 2) {
+            b = 0;
+        }
+        if (operation == Operation.RANDOM) {
+            // Every random() call must produce its own value
+            return add(INSTRUCTION, 0.0, operation, a, b);
+        }
+        List<Object> key = List.of(operation, a, b);
+        Integer existing = instructionIds.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int id = add(INSTRUCTION, 0.0, operation, a, b);
+        instructionIds.put(key, id);
+        return id;
+    }
+
+    private int constant(double value) {
+        Long bits = Double.doubleToRawLongBits(value);
+        Integer existing = constantIds.get(bits);
+        if (existing != null) {
+            return existing;
+        }
+        int id = add(CONSTANT, value, null, 0, 0);
+        constantIds.put(bits, id);
+        return id;
+    }
+
+    private int add(int kind, double value, Operation operation, int a, int b) {
+        kinds.add(kind);
+        constants.add(value);
+        operations.add(operation);
+        lefts.add(a);
+        rights.add(b);
+        return kinds.size() - 1;
+    }
+
+    private boolean isConstant(int id) {
+        return kinds.get(id) == CONSTANT;
+    }
+
+    private boolean isConstant(int id, double expected) {
+        return isConstant(id) && Double.doubleToRawLongBits(value(id)) == Double.doubleToRawLongBits(expected);
+    }
+
+    private double value(int id) {
+        return constants.get(id);
+    }
+
+    /**
+     * Drops values that no output depends on and assigns final register numbers.
+     */
+    private Program build(int[] outputIds) {
+        int count = kinds.size();
+        boolean[] live = new boolean[count];
+        for (int output : outputIds) {
+            live[output] = true;
+        }
+        for (int id = count - 1; id >= 0; id--) {
+            if (live[id] && kinds.get(id) == INSTRUCTION) {
+                int arity = operations.get(id).arity();
+                if (arity >= 1) {
+                    live[lefts.get(id)] = true;
+                }
+                if (arity == 2) {
+                    live[rights.get(id)] = true;
+                }
+            }
+        }
+
+        int[] register = new int[count];
+        int constantCount = 0;
+        int instructionCount = 0;
+        for (int id = argumentCount; id < count; id++) {
+            if (live[id]) {
+                if (kinds.get(id) == CONSTANT) {
+                    constantCount++;
+                } else {
+                    instructionCount++;
+                }
+            }
+        }
+
+        double[] pool = new double[constantCount];
+        Operation[] ops = new Operation[instructionCount];
+        int[] left = new int[instructionCount];
+        int[] right = new int[instructionCount];
+        int nextConstant = 0;
+        int nextInstruction = 0;
+        int firstInstruction = argumentCount + constantCount;
+        for (int id = 0; id < count; id++) {
+            if (kinds.get(id) == ARGUMENT) {
+                register[id] = id;
+            } else if (live[id] && kinds.get(id) == CONSTANT) {
+                pool[nextConstant] = constants.get(id);
+                register[id] = argumentCount + nextConstant++;
+            } else if (live[id]) {
+                Operation operation = operations.get(id);
+                ops[nextInstruction] = operation;
+                left[nextInstruction] = operation.arity() >= 1 ? register[lefts.get(id)] : 0;
+                right[nextInstruction] = operation.arity() == 2 ? register[rights.get(id)] : 0;
+                register[id] = firstInstruction + nextInstruction++;
+            }
+        }
+
+        int[] outputs = new int[outputIds.length];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = register[outputIds[i]];
+        }
+        return new Program(argumentCount, pool, ops, left, right, outputs);
+    }
+}
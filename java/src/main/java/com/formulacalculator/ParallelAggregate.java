@@ -0,0 +1,51 @@
+package com.formulacalculator;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join task that aggregates the results of a range of rows of a columnar batch.
+ *
+ * The range is split like a {@link ParallelBatch}. Every leaf folds its
+ * rows into an empty copy of the caller's aggregate with the sequential
+ * {@link BatchEvaluator}, and partial aggregates are combined on the way
+ * back up, so each task holds one chunk of scratch space and one aggregate
+ * whatever the number of rows.
+ */
+final class ParallelAggregate extends RecursiveTask<Aggregate> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Program program;
+    private final boolean vectorized;
+    private final double[][] columns;
+    private final int start;
+    private final int end;
+    private final Aggregate template;
+    private final int leafSize;
+
+    ParallelAggregate(Program program, boolean vectorized, double[][] columns, int start, int end,
+            Aggregate template, int leafSize) {
+        this.program = program;
+        this.vectorized = vectorized;
+        this.columns = columns;
+        this.start = start;
+        this.end = end;
+        this.template = template;
+        this.leafSize = leafSize;
+    }
+
+    @Override
+    protected Aggregate compute() {
+        if (end - start <= leafSize) {
+            Aggregate partial = template.emptyCopy();
+            new BatchEvaluator(program, end - start, vectorized).aggregate(columns, start, end, partial);
+            return partial;
+        }
+        int middle = (start + (end - start) / 2) & ~63;
+        ParallelAggregate left = new ParallelAggregate(program, vectorized, columns, start, middle, template, leafSize);
+        ParallelAggregate right = new ParallelAggregate(program, vectorized, columns, middle, end, template, leafSize);
+        left.fork();
+        Aggregate partial = right.compute();
+        return left.join().combine(partial);
+    }
+}
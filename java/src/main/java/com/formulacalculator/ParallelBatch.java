@@ -0,0 +1,106 @@
+package com.formulacalculator;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join task that evaluates a range of rows of a columnar batch.
+ *
+ * The range is halved until it is no larger than the leaf size, and every
+ * leaf runs the sequential {@link BatchEvaluator} with its own scratch
+ * columns. Split points fall on multiples of 64 rows, so each word of the
+ * error bitmap is written by exactly one leaf and no synchronization is
+ * needed. Every row is computed by the same code as in a sequential call,
+ * so the output does not depend on the pool or on how the work was split.
+ */
+final class ParallelBatch extends RecursiveTask<Integer> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Smallest amount of work worth a task, in instructions times rows */
+    static final long MIN_LEAF_WORK = 1 << 16;
+    /** Leaves per worker thread, so that work stealing can even out imbalances */
+    static final int LEAVES_PER_WORKER = 4;
+
+    private final Program program;
+    private final boolean vectorized;
+    private final double[][] columns;
+    private final int start;
+    private final int end;
+    private final double[] out;
+    private final long[] errors;
+    private final int leafSize;
+
+    ParallelBatch(Program program, boolean vectorized, double[][] columns, int start, int end,
+            double[] out, long[] errors, int leafSize) {
+        this.program = program;
+        this.vectorized = vectorized;
+        this.columns = columns;
+        this.start = start;
+        this.end = end;
+        this.out = out;
+        this.errors = errors;
+        this.leafSize = leafSize;
+    }
+
+    @Override
+    protected Integer compute() {
+        if (end - start <= leafSize) {
+            return new BatchEvaluator(program, end - start, vectorized).evaluate(columns, start, end, out, errors);
+        }
+        int middle = (start + (end - start) / 2) & ~63;
+        ParallelBatch left = new ParallelBatch(program, vectorized, columns, start, middle, out, errors, leafSize);
+        ParallelBatch right = new ParallelBatch(program, vectorized, columns, middle, end, out, errors, leafSize);
+        left.fork();
+        int invalid = right.compute();
+        return invalid + left.join();
+    }
+
+    /**
+     * Chooses how many rows one task evaluates. Leaves are large enough that
+     * task overhead is negligible next to the work, which depends on the
+     * formula's cost, and small enough that every worker gets several.
+     * @param program The program to evaluate
+     * @param rows The total number of rows
+     * @param parallelism The number of worker threads
+     * @return The leaf size, a multiple of 64 rows
+     */
+    static int leafSize(Program program, int rows, int parallelism) {
+        long minimum = Math.max(BatchEvaluator.CHUNK_SIZE, MIN_LEAF_WORK / cost(program));
+        long balanced = ((long) rows + (long) LEAVES_PER_WORKER * parallelism - 1) / ((long) LEAVES_PER_WORKER * parallelism);
+        long leaf = (Math.max(minimum, balanced) + 63) & ~63L;
+        return (int) Math.min(leaf, Integer.MAX_VALUE & ~63);
+    }
+
+    /**
+     * Estimates the cost of one row: one unit per simple instruction and
+     * more for functions that take tens of cycles.
+     * @param program The program to evaluate
+     * @return The estimated cost, at least 1
+     */
+    static long cost(Program program) {
+        long cost = 1;
+        for (Operation operation : program.operations) {
+            switch (operation) {
+                case POWER:
+                case POW:
+                case SIN:
+                case COS:
+                case TAN:
+                case LOG:
+                case EXP:
+                    cost += 16;
+                    break;
+                case DIVIDE:
+                case SQRT:
+                case ROUND:
+                case RANDOM:
+                    cost += 4;
+                    break;
+                default:
+                    cost += 1;
+                    break;
+            }
+        }
+        return cost;
+    }
+}
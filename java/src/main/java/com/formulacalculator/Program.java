@@ -0,0 +1,130 @@
+package com.formulacalculator;
+
+/**
+ * Optimized, linear form of one or more formulas.
+ *
+ * A program is a list of instructions in static single assignment form.
+ * Every value lives in a numbered register: the first registers hold the
+ * arguments, the next ones the constant pool, and each instruction writes
+ * the register following those. Instructions only read registers written
+ * before them, so executing them in order computes every shared
+ * subexpression exactly once. Programs are produced by {@link Optimizer}
+ * and are immutable.
+ */
+final class Program {
+
+    /** Number of argument registers */
+    final int argumentCount;
+    /** Constant pool, loaded into the registers following the arguments */
+    final double[] constants;
+    /** Operation of each instruction */
+    final Operation[] operations;
+    /** First operand register of each instruction; 0 when unused */
+    final int[] left;
+    /** Second operand register of each instruction; 0 when unused */
+    final int[] right;
+    /** Registers holding the results, one per formula */
+    final int[] outputs;
+
+    Program(int argumentCount, double[] constants, Operation[] operations, int[] left, int[] right, int[] outputs) {
+        this.argumentCount = argumentCount;
+        this.constants = constants;
+        this.operations = operations;
+        this.left = left;
+        this.right = right;
+        this.outputs = outputs;
+    }
+
+    /**
+     * @return The total number of registers
+     */
+    int registerCount() {
+        return firstInstructionRegister() + operations.length;
+    }
+
+    /**
+     * @return The register written by the first instruction
+     */
+    int firstInstructionRegister() {
+        return argumentCount + constants.length;
+    }
+
+    /**
+     * @return The number of instructions
+     */
+    int size() {
+        return operations.length;
+    }
+
+    /**
+     * Evaluates the program and returns the value of its first output.
+     * @param args The argument values, indexed by argument slot
+     * @param registers Scratch space of at least {@link #registerCount()} values
+     * @return The raw, unvalidated result
+     */
+    double run(double[] args, double[] registers) {
+        execute(args, registers);
+        return registers[outputs[0]];
+    }
+
+    /**
+     * Evaluates every instruction, leaving all register values in the scratch space.
+     * @param args The argument values, indexed by argument slot
+     * @param registers Scratch space of at least {@link #registerCount()} values
+     */
+    void execute(double[] args, double[] registers) {
+        System.arraycopy(args, 0, registers, 0, argumentCount);
+        System.arraycopy(constants, 0, registers, argumentCount, constants.length);
+        Operation[] operations = this.operations;
+        int[] left = this.left;
+        int[] right = this.right;
+        int target = firstInstructionRegister();
+        for (int i = 0; i < operations.length; i++) {
+            registers[target + i] = operations[i].apply(registers[left[i]], registers[right[i]]);
+        }
+    }
+
+    /**
+     * Counts how often each register is read by instructions and outputs.
+     * @return The read count indexed by register
+     */
+    int[] useCounts() {
+        int[] uses = new int[registerCount()];
+        for (int i = 0; i < operations.length; i++) {
+            int arity = operations[i].arity();
+            if (arity >= 1) {
+                uses[left[i]]++;
+            }
+            if (arity == 2) {
+                uses[right[i]]++;
+            }
+        }
+        for (int output : outputs) {
+            uses[output]++;
+        }
+        return uses;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < constants.length; i++) {
+            text.append('r').append(argumentCount + i).append(" = ").append(constants[i]).append('\n');
+        }
+        int target = firstInstructionRegister();
+        for (int i = 0; i < operations.length; i++) {
+            text.append('r').append(target + i).append(" = ").append(operations[i].name().toLowerCase());
+            if (operations[i].arity() >= 1) {
+                text.append(" r").append(left[i]);
+            }
+            if (operations[i].arity() == 2) {
+                text.append(", r").append(right[i]);
+            }
+            text.append('\n');
+        }
+        for (int output : outputs) {
+            text.append("return r").append(output).append('\n');
+        }
+        return text.toString();
+    }
+}
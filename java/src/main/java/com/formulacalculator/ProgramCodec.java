@@ -0,0 +1,240 @@
+package com.formulacalculator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of an optimized {@link Program} and its argument names.
+ *
+ * Layout, with every count and register written as an unsigned LEB128
+ * varint and constants as little-endian IEEE doubles:
+ * <pre>
+ * argumentCount, then per argument: byteLength, UTF-8 name
+ * constantCount, then the constants
+ * instructionCount, then per instruction: opcode byte, and for each
+ *     operand, the distance from the instruction's own register back to it
+ * outputCount, then the output registers
+ * </pre>
+ * Operands are stored as backward distances because most instructions read
+ * recent registers, which keeps them to one byte. Opcodes are
+ * {@link Operation} ordinals, so the encoding depends on the order of that
+ * enum; {@link #VERSION} changes whenever it does.
+ */
+final class ProgramCodec {
+
+    /** Revision of the layout above; bump on any change to it */
+    private static final int LAYOUT = 1;
+
+    /**
+     * Version of the encoding: the layout revision combined with the name
+     * and arity of every operation in opcode order, so adding, removing or
+     * reordering operations makes older data unreadable instead of wrong.
+     */
+    static final int VERSION = version();
+
+    private ProgramCodec() {
+    }
+
+    private static int version() {
+        int version = LAYOUT;
+        for (Operation operation : Operation.values()) {
+            version = 31 * version + operation.name().hashCode();
+            version = 31 * version + operation.arity();
+        }
+        return version;
+    }
+
+    /**
+     * A decoded program together with its argument names.
+     */
+    static final class Decoded {
+        final List<String> argumentNames;
+        final Program program;
+
+        Decoded(List<String> argumentNames, Program program) {
+            this.argumentNames = argumentNames;
+            this.program = program;
+        }
+    }
+
+    /**
+     * Encodes a program.
+     * @param argumentNames The argument names in slot order
+     * @param program The optimized program
+     * @return The encoded bytes
+     */
+    static byte[] encode(List<String> argumentNames, Program program) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, argumentNames.size());
+        for (String name : argumentNames) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        writeVarint(out, program.constants.length);
+        for (double constant : program.constants) {
+            long bits = Double.doubleToRawLongBits(constant);
+            for (int shift = 0; shift < 64; shift += 8) {
+                out.write((int) (bits >>> shift));
+            }
+        }
+        int first = program.firstInstructionRegister();
+        writeVarint(out, program.operations.length);
+        for (int i = 0; i < program.operations.length; i++) {
+            Operation operation = program.operations[i];
+            out.write(operation.ordinal());
+            if (operation.arity() >= 1) {
+                writeVarint(out, first + i - program.left[i]);
+            }
+            if (operation.arity() == 2) {
+                writeVarint(out, first + i - program.right[i]);
+            }
+        }
+        writeVarint(out, program.outputs.length);
+        for (int output : program.outputs) {
+            writeVarint(out, output);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a program, checking that it is well formed: every opcode is
+     * known and every operand refers to an earlier register.
+     * @param buffer The buffer holding the encoding; read with absolute gets only
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return The argument names and program
+     * @throws IllegalArgumentException If the bytes are not a well-formed program
+     */
+    static Decoded decode(ByteBuffer buffer, int offset, int length) {
+        Reader in = new Reader(buffer, offset, offset + length);
+        int argumentCount = in.count();
+        List<String> names = new ArrayList<>(argumentCount);
+        for (int i = 0; i < argumentCount; i++) {
+            byte[] bytes = new byte[in.count()];
+            in.bytes(bytes);
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        double[] constants = new double[in.count()];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = Double.longBitsToDouble(in.longValue());
+        }
+        int first = argumentCount + constants.length;
+        int instructionCount = in.count();
+        Operation[] operations = new Operation[instructionCount];
+        int[] left = new int[instructionCount];
+        int[] right = new int[instructionCount];
+        Operation[] all = Operation.values();
+        for (int i = 0; i < instructionCount; i++) {
+            int opcode = in.byteValue();
+            if (opcode >= all.length) {
+                throw new IllegalArgumentException("Unknown opcode " + opcode);
+            }
+            operations[i] = all[opcode];
+            if (operations[i].arity() >= 1) {
+                left[i] = in.operand(first + i);
+            }
+            if (operations[i].arity() == 2) {
+                right[i] = in.operand(first + i);
+            }
+        }
+        int registerCount = first + instructionCount;
+        int[] outputs = new int[in.count()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = in.varint();
+            if (outputs[i] >= registerCount) {
+                throw new IllegalArgumentException("Output register " + outputs[i] + " out of range");
+            }
+        }
+        if (outputs.length == 0 || in.position != in.end) {
+            throw new IllegalArgumentException("Malformed program encoding");
+        }
+        return new Decoded(names, new Program(argumentCount, constants, operations, left, right, outputs));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Bounds-checked sequential reader over a region of a buffer.
+     */
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private final int end;
+        private int position;
+
+        Reader(ByteBuffer buffer, int position, int end) {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+
+        int byteValue() {
+            if (position >= end) {
+                throw new IllegalArgumentException("Truncated program encoding");
+            }
+            return buffer.get(position++) & 0xFF;
+        }
+
+        int varint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = byteValue();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IllegalArgumentException("Malformed varint");
+                    }
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        /**
+         * Reads a count, which cannot exceed the bytes left since every counted item takes at least one.
+         */
+        int count() {
+            int value = varint();
+            if (value > end - position) {
+                throw new IllegalArgumentException("Invalid count " + value);
+            }
+            return value;
+        }
+
+        int operand(int register) {
+            int distance = varint();
+            if (distance < 1 || distance > register) {
+                throw new IllegalArgumentException("Operand out of range");
+            }
+            return register - distance;
+        }
+
+        long longValue() {
+            if (end - position < 8) {
+                throw new IllegalArgumentException("Truncated program encoding");
+            }
+            long bits = 0;
+            for (int shift = 0; shift < 64; shift += 8) {
+                bits |= (long) (buffer.get(position++) & 0xFF) << shift;
+            }
+            return bits;
+        }
+
+        void bytes(byte[] target) {
+            if (end - position < target.length) {
+                throw new IllegalArgumentException("Truncated program encoding");
+            }
+            buffer.get(position, target);
+            position += target.length;
+        }
+    }
+}
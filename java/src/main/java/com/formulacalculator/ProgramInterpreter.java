@@ -0,0 +1,37 @@
+package com.formulacalculator;
+
+/**
+ * Kernel that interprets an optimized {@link Program}.
+ *
+ * Register values are kept in a per-thread scratch array that grows to the
+ * largest program the thread has run, so evaluation does not allocate once
+ * the thread has warmed up.
+ */
+final class ProgramInterpreter implements FormulaKernel {
+
+    private static final ThreadLocal<double[][]> REGISTERS = ThreadLocal.withInitial(() -> new double[][] {new double[16]});
+
+    private final Program program;
+
+    ProgramInterpreter(Program program) {
+        this.program = program;
+    }
+
+    @Override
+    public double apply(double[] args) {
+        return program.run(args, registers(program.registerCount()));
+    }
+
+    /**
+     * Returns the calling thread's register scratch space.
+     * @param size The minimum number of registers needed
+     * @return A scratch array of at least the requested size
+     */
+    static double[] registers(int size) {
+        double[][] holder = REGISTERS.get();
+        if (holder[0].length < size) {
+            holder[0] = new double[Math.max(size, holder[0].length * 2)];
+        }
+        return holder[0];
+    }
+}
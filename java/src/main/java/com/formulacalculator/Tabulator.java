@@ -0,0 +1,305 @@
+package com.formulacalculator;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates a {@link Program} over the Cartesian product of one array of
+ * values per argument.
+ *
+ * The grid is stored row-major: the last argument slot varies fastest, and
+ * a grid row is one run of cells over the values of that slot for a fixed
+ * combination of all other arguments. Every instruction is assigned the
+ * highest argument slot it depends on, its level. Instructions below the
+ * last slot are loop invariant within a row and are computed once per row as
+ * scalars; when moving to the next row only the levels whose argument
+ * actually changed are recomputed, so a subexpression of the first argument
+ * alone is evaluated once per value of that argument. Instructions of the
+ * last slot run as column loops over the row, a chunk at a time, exactly as
+ * in {@link BatchEvaluator}, with invariant operands broadcast into columns.
+ * Each cell gets the same value as evaluating the formula for its arguments.
+ *
+ * A tabulator holds no scratch space and may be shared; {@link #tabulate}
+ * allocates its own per call.
+ */
+final class Tabulator {
+
+    private final Program program;
+    private final boolean vectorized;
+    private final double[][] axes;
+    /** The argument slot varying along a grid row, or -1 without arguments */
+    private final int inner;
+    /** Number of cells per grid row */
+    private final int rowLength;
+    /** Number of grid rows */
+    private final int rows;
+    /** Highest argument slot each register depends on; -1 for none */
+    private final int[] levels;
+
+    /**
+     * @param program The program to evaluate
+     * @param vectorized Whether to use SIMD loops where available
+     * @param axes The values of each argument slot; must have been validated with {@link #cellCount}
+     */
+    Tabulator(Program program, boolean vectorized, double[][] axes) {
+        this.program = program;
+        this.vectorized = vectorized && BatchEvaluator.VECTOR_AVAILABLE;
+        this.axes = axes;
+        this.inner = program.argumentCount - 1;
+        this.rowLength = inner < 0 ? 1 : axes[inner].length;
+        long rows = 1;
+        for (int slot = 0; slot < inner; slot++) {
+            rows *= axes[slot].length;
+        }
+        this.rows = (int) rows;
+        this.levels = levels(program);
+    }
+
+    /**
+     * Assigns every register the highest argument slot it depends on.
+     * {@code random()} is placed in the innermost level so that every cell
+     * draws its own value.
+     */
+    private static int[] levels(Program program) {
+        int[] levels = new int[program.registerCount()];
+        int first = program.firstInstructionRegister();
+        for (int slot = 0; slot < program.argumentCount; slot++) {
+            levels[slot] = slot;
+        }
+        Arrays.fill(levels, program.argumentCount, first, -1);
+        for (int i = 0; i < program.operations.length; i++) {
+            Operation operation = program.operations[i];
+            int level = -1;
+            if (operation == Operation.RANDOM) {
+                level = program.argumentCount - 1;
+            }
+            if (operation.arity() >= 1) {
+                level = Math.max(level, levels[program.left[i]]);
+            }
+            if (operation.arity() == 2) {
+                level = Math.max(level, levels[program.right[i]]);
+            }
+            levels[first + i] = level;
+        }
+        return levels;
+    }
+
+    /**
+     * @return The number of grid rows
+     */
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of cells per grid row
+     */
+    int rowLength() {
+        return rowLength;
+    }
+
+    /**
+     * Evaluates a range of grid rows.
+     * @param start The first grid row
+     * @param end The row after the last one
+     * @param out Receives cell {@code c} of row {@code r} at index {@code r * rowLength() + c}
+     * @return The number of cells with a non-finite result
+     */
+    int tabulate(int start, int end, double[] out) {
+        if (start >= end || rowLength == 0) {
+            return 0;
+        }
+        int registerCount = program.registerCount();
+        int first = program.firstInstructionRegister();
+        double[] scalars = new double[registerCount];
+        System.arraycopy(program.constants, 0, scalars, program.argumentCount, program.constants.length);
+        if (inner < 0) {
+            program.execute(scalars, scalars);
+            out[0] = scalars[program.outputs[0]];
+            return Double.isFinite(out[0]) ? 0 : 1;
+        }
+
+        // Column registers: the inner argument, instructions of the inner level
+        // and invariant values they read, broadcast once per grid row
+        int chunkSize = Math.min(BatchEvaluator.CHUNK_SIZE, rowLength);
+        double[][] columns = new double[registerCount][];
+        int[] bases = new int[registerCount];
+        boolean[] broadcast = new boolean[registerCount];
+        for (int i = 0; i < program.operations.length; i++) {
+            if (levels[first + i] == inner) {
+                columns[first + i] = new double[chunkSize];
+                Operation operation = program.operations[i];
+                if (operation.arity() >= 1) {
+                    broadcast[program.left[i]] = levels[program.left[i]] < inner;
+                }
+                if (operation.arity() == 2) {
+                    broadcast[program.right[i]] = levels[program.right[i]] < inner;
+                }
+            }
+        }
+        for (int register = 0; register < registerCount; register++) {
+            if (broadcast[register]) {
+                columns[register] = new double[chunkSize];
+            }
+        }
+
+        int[] index = new int[inner];
+        int remainder = start;
+        for (int slot = inner - 1; slot >= 0; slot--) {
+            index[slot] = remainder % axes[slot].length;
+            remainder /= axes[slot].length;
+        }
+        int changed = -1;
+        int output = program.outputs[0];
+        int invalid = 0;
+        for (int row = start; row < end; row++) {
+            if (row > start) {
+                changed = inner - 1;
+                while (++index[changed] == axes[changed].length) {
+                    index[changed--] = 0;
+                }
+            }
+            for (int slot = Math.max(changed, 0); slot < inner; slot++) {
+                scalars[slot] = axes[slot][index[slot]];
+            }
+            updateScalars(scalars, changed);
+
+            int offset = row * rowLength;
+            if (levels[output] < inner) {
+                double value = scalars[output];
+                Arrays.fill(out, offset, offset + rowLength, value);
+                invalid += Double.isFinite(value) ? 0 : rowLength;
+                continue;
+            }
+            for (int register = 0; register < registerCount; register++) {
+                if (broadcast[register]) {
+                    Arrays.fill(columns[register], scalars[register]);
+                }
+            }
+            columns[inner] = axes[inner];
+            for (int cell = 0; cell < rowLength; cell += chunkSize) {
+                int count = Math.min(chunkSize, rowLength - cell);
+                bases[inner] = cell;
+                runColumns(columns, bases, count);
+                double[] source = columns[output];
+                int base = bases[output];
+                for (int i = 0; i < count; i++) {
+                    double value = source[base + i];
+                    out[offset + cell + i] = value;
+                    if (!Double.isFinite(value)) {
+                        invalid++;
+                    }
+                }
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Recomputes the invariant instructions whose level is at least {@code from}.
+     * Program order is a valid evaluation order for any subset of levels.
+     */
+    private void updateScalars(double[] scalars, int from) {
+        int first = program.firstInstructionRegister();
+        for (int i = 0; i < program.operations.length; i++) {
+            int level = levels[first + i];
+            if (level >= from && level < inner) {
+                scalars[first + i] = program.operations[i].apply(scalars[program.left[i]], scalars[program.right[i]]);
+            }
+        }
+    }
+
+    private void runColumns(double[][] columns, int[] bases, int count) {
+        int first = program.firstInstructionRegister();
+        for (int i = 0; i < program.operations.length; i++) {
+            if (levels[first + i] != inner) {
+                continue;
+            }
+            Operation operation = program.operations[i];
+            double[] target = columns[first + i];
+            // Unused operands point at the target, as register 0 may not be a column here
+            int l = operation.arity() >= 1 ? program.left[i] : first + i;
+            int r = operation.arity() == 2 ? program.right[i] : first + i;
+            if (vectorized && VectorKernels.supports(operation)) {
+                VectorKernels.execute(operation, columns[l], bases[l], columns[r], bases[r], target, count);
+            } else {
+                BatchEvaluator.execute(operation, columns[l], bases[l], columns[r], bases[r], target, count);
+            }
+        }
+    }
+
+    /**
+     * Checks the axes of a grid and computes its size.
+     * @param argumentCount The number of argument slots
+     * @param axes The values of each argument slot
+     * @return The number of cells
+     * @throws IllegalArgumentException If an axis is missing or the grid has more than {@code Integer.MAX_VALUE} cells
+     */
+    static int cellCount(int argumentCount, double[][] axes) {
+        if (axes.length < argumentCount) {
+            throw new IllegalArgumentException("Expected " + argumentCount + " axes but got " + axes.length);
+        }
+        long cells = 1;
+        for (int slot = 0; slot < argumentCount; slot++) {
+            if (axes[slot] == null) {
+                throw new IllegalArgumentException("Missing axis for argument slot " + slot);
+            }
+            cells *= axes[slot].length;
+            if (cells > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Grid has more than " + Integer.MAX_VALUE + " cells");
+            }
+        }
+        return (int) cells;
+    }
+
+    /**
+     * Fork-join task that tabulates a range of grid rows. Rows are independent,
+     * so leaves write disjoint parts of the output without synchronization.
+     */
+    static final class Task extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Tabulator tabulator;
+        private final int start;
+        private final int end;
+        private final double[] out;
+        private final int leafRows;
+
+        Task(Tabulator tabulator, int start, int end, double[] out, int leafRows) {
+            this.tabulator = tabulator;
+            this.start = start;
+            this.end = end;
+            this.out = out;
+            this.leafRows = leafRows;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (end - start <= leafRows) {
+                return tabulator.tabulate(start, end, out);
+            }
+            int middle = start + (end - start) / 2;
+            Task left = new Task(tabulator, start, middle, out, leafRows);
+            Task right = new Task(tabulator, middle, end, out, leafRows);
+            left.fork();
+            int invalid = right.compute();
+            return invalid + left.join();
+        }
+    }
+
+    /**
+     * Chooses how many grid rows one task evaluates, by the same rule as
+     * {@link ParallelBatch#leafSize}: enough work to outweigh the task
+     * overhead, and several leaves per worker.
+     * @param parallelism The number of worker threads
+     * @return The number of rows per leaf, at least 1
+     */
+    int leafRows(int parallelism) {
+        long rowWork = Math.max(1, ParallelBatch.cost(program) * rowLength);
+        long minimum = (ParallelBatch.MIN_LEAF_WORK + rowWork - 1) / rowWork;
+        long workers = (long) ParallelBatch.LEAVES_PER_WORKER * parallelism;
+        long balanced = (rows + workers - 1) / workers;
+        return (int) Math.max(1, Math.min(Math.max(minimum, balanced), Integer.MAX_VALUE));
+    }
+}
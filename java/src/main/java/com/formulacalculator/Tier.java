@@ -0,0 +1,18 @@
+package com.formulacalculator;
+
+/**
+ * Execution tiers of a compiled formula.
+ *
+ * Formulas compiled for {@link Backend#TIERED} start {@link #INTERPRETED}
+ * and move to {@link #COMPILING} and then {@link #COMPILED} once they have
+ * been evaluated often enough; see {@link TieredCompilation}. Formulas of
+ * the other backends stay in the tier they were created in.
+ */
+public enum Tier {
+    /** Evaluated by the program interpreter */
+    INTERPRETED,
+    /** Still interpreted while generated code is built in the background */
+    COMPILING,
+    /** Evaluated by generated bytecode */
+    COMPILED
+}
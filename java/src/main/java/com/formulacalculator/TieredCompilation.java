@@ -0,0 +1,133 @@
+package com.formulacalculator;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Configuration and statistics of tiered execution.
+ *
+ * Formulas compiled for {@link Backend#TIERED}, which includes every formula
+ * cached by {@link FormulaCalculator#calc(String, Object...)}, are first run
+ * by the interpreter, which costs nothing to set up. Each single-row
+ * evaluation in that tier increments a per-formula counter; when the
+ * counter reaches the threshold the formula is handed to a background
+ * thread that generates bytecode for it, and the generated kernel is
+ * swapped in atomically once it is loaded. Evaluations never wait for the
+ * compiler, and a formula that is too large for generated code stays
+ * interpreted. Rarely used formulas therefore never spend time or metaspace
+ * on code generation, while hot ones get it after a short warm-up.
+ *
+ * The default threshold of 10000 evaluations can be set with the
+ * {@code formulacalculator.tiered.threshold} system property or with
+ * {@link #setThreshold(int)}, which applies to formulas compiled afterwards.
+ */
+public final class TieredCompilation {
+
+    /** System property overriding the default threshold */
+    public static final String THRESHOLD_PROPERTY = "formulacalculator.tiered.threshold";
+
+    static final int DEFAULT_THRESHOLD = 10_000;
+
+    private static volatile int threshold = configuredThreshold();
+    private static volatile Listener listener;
+
+    private static final LongAdder promotions = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder compilationNanos = new LongAdder();
+
+    /**
+     * Receives the tier transitions of tiered formulas.
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Called after a formula changed tier. The move to {@link Tier#COMPILING}
+         * is reported on the evaluating thread, the others on the compiler
+         * thread. Implementations should return quickly; exceptions are ignored.
+         * @param formula The formula
+         * @param from The previous tier
+         * @param to The new tier
+         */
+        void transition(CompiledFormula formula, Tier from, Tier to);
+    }
+
+    private TieredCompilation() {
+    }
+
+    /**
+     * @return The number of interpreted evaluations after which new formulas are compiled
+     */
+    public static int threshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the number of interpreted evaluations after which formulas compiled
+     * from now on are promoted to generated code
+     * @param threshold The threshold; 0 compiles every tiered formula on its first evaluation
+     * @throws IllegalArgumentException If the threshold is negative
+     */
+    public static void setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold cannot be negative");
+        }
+        TieredCompilation.threshold = threshold;
+    }
+
+    /**
+     * Sets the listener notified of tier transitions
+     * @param listener The listener, or null to remove it
+     */
+    public static void setListener(Listener listener) {
+        TieredCompilation.listener = listener;
+    }
+
+    /**
+     * @return The number of formulas that have been promoted to generated code
+     */
+    public static long promotionCount() {
+        return promotions.sum();
+    }
+
+    /**
+     * @return The number of formulas that reached the threshold but were too large for generated code
+     */
+    public static long failureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return The total time spent generating and loading code, in nanoseconds
+     */
+    public static long compilationNanos() {
+        return compilationNanos.sum();
+    }
+
+    static void compiled(boolean success, long nanos) {
+        (success ? promotions : failures).increment();
+        compilationNanos.add(nanos);
+    }
+
+    static void notify(CompiledFormula formula, Tier from, Tier to) {
+        Listener listener = TieredCompilation.listener;
+        if (listener != null && formula != null) {
+            try {
+                listener.transition(formula, from, to);
+            } catch (RuntimeException e) {
+                // A failing listener must not break evaluation or compilation
+            }
+        }
+    }
+
+    private static int configuredThreshold() {
+        String configured = System.getProperty(THRESHOLD_PROPERTY);
+        if (configured != null) {
+            try {
+                return Math.max(0, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException e) {
+                // Keep the default for malformed values
+            }
+        }
+        return DEFAULT_THRESHOLD;
+    }
+}
@@ -0,0 +1,117 @@
+package com.formulacalculator;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Kernel that interprets a program until it has been evaluated often enough
+ * and then switches to generated bytecode.
+ *
+ * The invocation counter is a plain field: concurrent increments may be
+ * lost, which only delays promotion a little, and each increment is at most
+ * one above a value the counter has held, so exactly reaching the threshold
+ * cannot be skipped. The compare-and-set on the tier makes sure a formula
+ * is queued once, and a kernel whose code generation failed is never queued
+ * again, even if lost increments bring the counter back to the threshold.
+ * Generated code is published through a volatile field, so a thread sees
+ * either the interpreter or a fully loaded class; once it is set,
+ * evaluations no longer touch the counter and threads do not contend on a
+ * shared cache line.
+ */
+final class TieredKernel implements FormulaKernel {
+
+    /**
+     * Generates code off the evaluating threads; the thread is only started
+     * when first needed. Code generation recurses along the expression, so the
+     * thread gets a stack as deep as a typical main thread's.
+     */
+    private static final ExecutorService COMPILER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(null, task, "formula-compiler", 8L << 20);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Program program;
+    private final ProgramInterpreter interpreter;
+    private final long threshold;
+    private final CompiledFormula owner;
+    private final AtomicReference<Tier> tier = new AtomicReference<>(Tier.INTERPRETED);
+    private volatile FormulaKernel compiled;
+    private volatile boolean failed;
+    private long invocations;
+
+    /**
+     * @param program The program to evaluate
+     * @param threshold The number of interpreted evaluations before compilation; 0 is treated as 1
+     * @param owner The formula reported to the {@link TieredCompilation.Listener}
+     */
+    TieredKernel(Program program, int threshold, CompiledFormula owner) {
+        this.program = program;
+        this.interpreter = new ProgramInterpreter(program);
+        this.threshold = Math.max(1, threshold);
+        this.owner = owner;
+    }
+
+    @Override
+    public double apply(double[] args) {
+        FormulaKernel compiled = this.compiled;
+        if (compiled != null) {
+            return compiled.apply(args);
+        }
+        if (++invocations == threshold) {
+            promote();
+        }
+        return interpreter.apply(args);
+    }
+
+    /**
+     * @return The current tier
+     */
+    Tier tier() {
+        return tier.get();
+    }
+
+    /**
+     * @return Whether code generation failed and the kernel stays interpreted, exposed for tests
+     */
+    boolean failed() {
+        return failed;
+    }
+
+    /**
+     * @return The number of evaluations run by the interpreter, approximate under contention
+     */
+    long invocations() {
+        return invocations;
+    }
+
+    private void promote() {
+        if (failed || !tier.compareAndSet(Tier.INTERPRETED, Tier.COMPILING)) {
+            return;
+        }
+        TieredCompilation.notify(owner, Tier.INTERPRETED, Tier.COMPILING);
+        COMPILER.execute(this::compile);
+    }
+
+    private void compile() {
+        long start = System.nanoTime();
+        FormulaKernel generated = null;
+        try {
+            generated = BytecodeCompiler.compile(program);
+        } catch (RuntimeException | LinkageError | StackOverflowError e) {
+            // Keep interpreting; a formula that cannot be compiled is still correct
+        }
+        TieredCompilation.compiled(generated != null, System.nanoTime() - start);
+        if (generated == null) {
+            // Too large for one method: stay interpreted for good
+            failed = true;
+            tier.set(Tier.INTERPRETED);
+            TieredCompilation.notify(owner, Tier.COMPILING, Tier.INTERPRETED);
+            return;
+        }
+        compiled = generated;
+        tier.set(Tier.COMPILED);
+        TieredCompilation.notify(owner, Tier.COMPILING, Tier.COMPILED);
+    }
+}
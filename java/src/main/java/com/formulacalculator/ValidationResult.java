@@ -0,0 +1,73 @@
+package com.formulacalculator;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of {@link FormulaCalculator#validate(String)}: whether a
+ * formula can be compiled and, if not, why and where.
+ */
+public final class ValidationResult {
+
+    private final ErrorCategory error;
+    private final String message;
+    private final int position;
+    private final List<String> argumentNames;
+
+    ValidationResult(ErrorCategory error, String message, int position, List<String> argumentNames) {
+        this.error = error;
+        this.message = message;
+        this.position = position;
+        this.argumentNames = Collections.unmodifiableList(argumentNames);
+    }
+
+    static ValidationResult valid(List<String> argumentNames) {
+        return new ValidationResult(null, null, -1, argumentNames);
+    }
+
+    static ValidationResult invalid(FormulaException e, List<String> argumentNames) {
+        return new ValidationResult(e.category(), e.getMessage(), e.position(), argumentNames);
+    }
+
+    /**
+     * @return Whether the formula is valid
+     */
+    public boolean isValid() {
+        return error == null;
+    }
+
+    /**
+     * @return Why the formula is invalid, or null if it is valid
+     */
+    public ErrorCategory error() {
+        return error;
+    }
+
+    /**
+     * @return The message {@link FormulaCalculator#compile(String)} or
+     *     evaluation would have thrown, or null if the formula is valid
+     */
+    public String message() {
+        return message;
+    }
+
+    /**
+     * @return The zero-based offset in the formula where the problem was
+     *     found, or -1 if the formula is valid or the problem has no position
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * @return The argument names in slot order; empty if the formula has a syntax error
+     */
+    public List<String> argumentNames() {
+        return argumentNames;
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? "valid" : message;
+    }
+}
@@ -0,0 +1,240 @@
+package com.formulacalculator;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD loops for {@link BatchEvaluator} built on the incubating Vector API.
+ *
+ * This class links against {@code jdk.incubator.vector} and must only be
+ * loaded after {@link BatchEvaluator#VECTOR_AVAILABLE} has confirmed the
+ * module is present. Every loop processes full vectors of the platform's
+ * preferred width and finishes the remaining rows with the scalar
+ * {@link Operation#apply}. Only operations whose vector form is exactly
+ * equal to the scalar {@code Math} method are supported: the vector
+ * transcendental functions may differ from {@code Math} in the last bit, so
+ * {@code sin}, {@code pow} and the like are left to the scalar loops.
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final long SIGN_BIT = 0x8000_0000_0000_0000L;
+    /** Doubles at or above this magnitude are already integers */
+    private static final double TWO_POW_52 = 0x1p52;
+
+    private VectorKernels() {
+    }
+
+    /**
+     * @return The number of doubles processed per vector
+     */
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    /**
+     * @param operation An instruction's operation
+     * @return Whether {@link #execute} has a vector loop for it
+     */
+    static boolean supports(Operation operation) {
+        switch (operation) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case NEGATE:
+            case SQRT:
+            case ABS:
+            case MIN:
+            case MAX:
+            case FLOOR:
+            case CEIL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Runs one supported instruction over a chunk; same contract as
+     * {@link BatchEvaluator#execute}. Each operation has its own loop method:
+     * vector operations are only compiled to SIMD instructions when the JIT
+     * inlines them completely, which one large method would prevent.
+     */
+    static void execute(Operation operation, double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        int i;
+        switch (operation) {
+            case ADD:
+                i = add(a, ai, b, bi, out, count);
+                break;
+            case SUBTRACT:
+                i = subtract(a, ai, b, bi, out, count);
+                break;
+            case MULTIPLY:
+                i = multiply(a, ai, b, bi, out, count);
+                break;
+            case DIVIDE:
+                i = divide(a, ai, b, bi, out, count);
+                break;
+            case NEGATE:
+                i = negate(a, ai, out, count);
+                break;
+            case SQRT:
+                i = sqrt(a, ai, out, count);
+                break;
+            case ABS:
+                i = abs(a, ai, out, count);
+                break;
+            case MIN:
+                i = min(a, ai, b, bi, out, count);
+                break;
+            case MAX:
+                i = max(a, ai, b, bi, out, count);
+                break;
+            case FLOOR:
+                i = floor(a, ai, out, count);
+                break;
+            case CEIL:
+                i = ceil(a, ai, out, count);
+                break;
+            default:
+                throw new IllegalStateException("No vector form for " + operation);
+        }
+        for (; i < count; i++) {
+            out[i] = operation.apply(a[ai + i], b[bi + i]);
+        }
+    }
+
+    /**
+     * @return The number of rows processed; the remaining tail is left to the caller
+     */
+    private static int add(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).add(load(b, bi + i)).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int subtract(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).sub(load(b, bi + i)).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int multiply(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).mul(load(b, bi + i)).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int divide(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).div(load(b, bi + i)).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int negate(double[] a, int ai, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).neg().intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int sqrt(double[] a, int ai, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).lanewise(VectorOperators.SQRT).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int abs(double[] a, int ai, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).abs().intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int min(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).min(load(b, bi + i)).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int max(double[] a, int ai, double[] b, int bi, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, ai + i).max(load(b, bi + i)).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int floor(double[] a, int ai, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            round(load(a, ai + i), false).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static int ceil(double[] a, int ai, double[] out, int count) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            round(load(a, ai + i), true).intoArray(out, i);
+        }
+        return i;
+    }
+
+    private static DoubleVector load(double[] column, int index) {
+        return DoubleVector.fromArray(SPECIES, column, index);
+    }
+
+    /**
+     * Computes {@code Math.floor} or {@code Math.ceil} lane by lane. The
+     * Vector API has no rounding operators, so below 2^52 the magnitude is
+     * rounded to the nearest integer by adding and subtracting 2^52, where
+     * the spacing of doubles is exactly one, and the result is moved by one
+     * where it went the wrong way. Larger values, infinities and NaN are
+     * returned as is. The sign of the input is kept so that e.g.
+     * {@code ceil(-0.5)} is {@code -0.0} like in {@code Math}.
+     */
+    private static DoubleVector round(DoubleVector x, boolean up) {
+        DoubleVector magnitude = x.abs();
+        DoubleVector nearest = withSign(magnitude.add(TWO_POW_52).sub(TWO_POW_52), x);
+        DoubleVector rounded = up
+            ? nearest.blend(nearest.add(1.0), nearest.compare(VectorOperators.LT, x))
+            : nearest.blend(nearest.sub(1.0), nearest.compare(VectorOperators.GT, x));
+        VectorMask<Double> fractional = magnitude.compare(VectorOperators.LT, TWO_POW_52);
+        return withSign(x.blend(rounded, fractional), x);
+    }
+
+    private static DoubleVector withSign(DoubleVector magnitude, DoubleVector sign) {
+        LongVector bits = magnitude.reinterpretAsLongs().and(~SIGN_BIT);
+        return bits.or(sign.reinterpretAsLongs().and(SIGN_BIT)).reinterpretAsDoubles();
+    }
+}
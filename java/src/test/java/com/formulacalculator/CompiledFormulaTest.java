@@ -0,0 +1,723 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Test suite for CompiledFormula
+ */
+@DisplayName("Compiled Formula Tests")
+class CompiledFormulaTest {
+
+    @Nested
+    @DisplayName("Compilation")
+    class Compilation {
+
+        @Test
+        @DisplayName("Argument slots follow order of first appearance")
+        void testArgumentSlots() {
+            CompiledFormula formula = FormulaCalculator.compile("($quantity + $existing) * $price + $quantity");
+            assertEquals(Arrays.asList("quantity", "existing", "price"), formula.argumentNames());
+            assertEquals(3, formula.argumentCount());
+            assertEquals(0, formula.slotOf("quantity"));
+            assertEquals(2, formula.slotOf("$price"));
+            assertEquals(-1, formula.slotOf("missing"));
+        }
+
+        @Test
+        @DisplayName("Invalid formulas are rejected at compile time")
+        void testInvalidFormulas() {
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile(null));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile(" "));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile("2 +"));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile("invalid(5)"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Evaluation")
+    class Evaluation {
+
+        @Test
+        @DisplayName("Positional arguments")
+        void testPositionalArguments() {
+            CompiledFormula formula = FormulaCalculator.compile("$quantity * $price");
+            assertEquals(24.0, formula.evaluate(4, 6));
+            assertEquals(10.0, formula.evaluate(2, 5));
+            assertEquals(54.0, FormulaCalculator.compile("($quantity + $existing) * $price").evaluate(4, 5, 6));
+        }
+
+        @Test
+        @DisplayName("Named arguments")
+        void testNamedArguments() {
+            CompiledFormula formula = FormulaCalculator.compile("sqrt(pow($base, 2) + pow($height, 2))");
+            assertEquals(5.0, formula.evaluate(Map.of("base", 3, "height", 4)));
+            assertEquals(5.0, formula.evaluate(Map.of("height", 3.0, "base", 4.0)));
+        }
+
+        @Test
+        @DisplayName("Same results as calc")
+        void testMatchesCalc() {
+            String[] formulas = {"2 + 3 * 4", "sqrt($base^2 + $height^2)", "($x + $y) * $z / $w", "min(5, 3, 8) + PI"};
+            for (String text : formulas) {
+                CompiledFormula formula = FormulaCalculator.compile(text);
+                assertEquals(FormulaCalculator.calc(text, 3, 4, 5, 6), formula.evaluate(3, 4, 5, 6), text);
+            }
+        }
+
+        @Test
+        @DisplayName("Errors")
+        void testErrors() {
+            CompiledFormula formula = FormulaCalculator.compile("$a / $b");
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluate(1));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluate(1, 0));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluate(Map.of("a", 1)));
+        }
+    }
+
+    @Nested
+    @DisplayName("Allocation")
+    class Allocation {
+
+        @Test
+        @DisplayName("Primitive evaluation does not allocate per call")
+        void testPrimitiveEvaluationDoesNotAllocate() {
+            assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+            CompiledFormula two = FormulaCalculator.compile("sqrt(pow($base, 2) + pow($height, 2))");
+            CompiledFormula four = FormulaCalculator.compile("($x + $y) * $z / $w");
+            double[] slots = new double[4];
+            int iterations = 200_000;
+
+            double sum = 0;
+            for (int round = 0; round < 2; round++) {
+                // The first round warms up the JIT and the per-thread scratch array
+                long before = threads.getCurrentThreadAllocatedBytes();
+                for (int i = 0; i < iterations; i++) {
+                    sum += two.evaluate(i, 4.0);
+                    slots[0] = i;
+                    slots[1] = 3;
+                    slots[2] = 4;
+                    slots[3] = 2;
+                    sum += four.evaluate(slots);
+                }
+                long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+                if (round == 1) {
+                    assertTrue(allocated < 1024, "Allocated " + allocated + " bytes for " + iterations + " evaluations");
+                }
+            }
+            assertTrue(sum > 0);
+        }
+    }
+
+    @Nested
+    @DisplayName("Bytecode backend")
+    class BytecodeBackend {
+
+        @Test
+        @DisplayName("Generated classes match the interpreter")
+        void testMatchesInterpreter() {
+            String[] formulas = {
+                "2 + 3 * 4", "sqrt(pow($base, 2) + pow($height, 2))", "sqrt($base^2 + $height^2)",
+                "($x + $y) * $z / $w", "min(5, $a, 8) + max($b, 3) - PI", "abs(sin($angle) * $radius)",
+                "round($a / 3) + floor($b) * ceil($a) - -$b", "log($a) + exp($b / 10) + tan($a) + cos($b)",
+                "$a0 + $a1 + $a2 + $a3 + $a4 + $a5 + $a6 + $a7 + $a8", "1e300 * 1e-300 + e ^ 2"
+            };
+            double[] args = {3.5, 4.25, 1.5, 2, 7, 11, 13, 17, 19};
+            for (String text : formulas) {
+                CompiledFormula interpreted = FormulaCalculator.compile(text, Backend.INTERPRETER);
+                CompiledFormula generated = FormulaCalculator.compile(text, Backend.BYTECODE);
+                assertEquals(Backend.BYTECODE, generated.backend(), text);
+                assertEquals(interpreted.evaluate(args), generated.evaluate(args), text);
+            }
+        }
+
+        @Test
+        @DisplayName("Errors behave like the interpreter")
+        void testErrors() {
+            CompiledFormula formula = FormulaCalculator.compile("$a / $b", Backend.BYTECODE);
+            assertEquals(2.5, formula.evaluate(5, 2));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluate(1, 0));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluate(1));
+        }
+
+        @Test
+        @DisplayName("Generated classes are unloaded when the formula is dropped")
+        void testClassUnloading() throws InterruptedException {
+            WeakReference<Class<?>> generated = new WeakReference<>(
+                FormulaCalculator.compile("$a * 2 + 1", Backend.BYTECODE).kernel().getClass());
+            assertTrue(generated.get().isHidden());
+            for (int i = 0; i < 20 && generated.get() != null; i++) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            assertNull(generated.get(), "Generated formula class was not unloaded");
+        }
+    }
+
+    @Nested
+    @DisplayName("Batch evaluation")
+    class BatchEvaluation {
+
+        @Test
+        @DisplayName("Columns give the same results as row-by-row evaluation")
+        void testMatchesScalar() {
+            String[] formulas = {
+                "sqrt(pow($base, 2) + pow($height, 2))", "abs(sin($angle) * $radius) + min($angle, 3, $radius)",
+                "round($a / 3) + floor($b) * ceil($a) - -$b ^ 2", "log($a + 1) + exp($b / 1000) + tan($a) + cos($b)", "42"
+            };
+            int rows = 1500;
+            double[][] columns = new double[2][rows];
+            for (int i = 0; i < rows; i++) {
+                columns[0][i] = i * 0.75;
+                columns[1][i] = 1000 - i * 1.5;
+            }
+            for (String text : formulas) {
+                CompiledFormula formula = FormulaCalculator.compile(text);
+                double[] out = new double[rows];
+                assertEquals(0, formula.evaluateBatch(columns, out), text);
+                for (int i = 0; i < rows; i++) {
+                    assertEquals(formula.kernel().apply(new double[] {columns[0][i], columns[1][i]}), out[i], text + " row " + i);
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Offset and length select a range of rows")
+        void testRange() {
+            CompiledFormula formula = FormulaCalculator.compile("$quantity * $price");
+            double[][] columns = {{1, 2, 3, 4, 5}, {10, 20, 30, 40, 50}};
+            double[] out = new double[5];
+            assertEquals(0, formula.evaluateBatch(columns, 1, 3, out, null));
+            assertArrayEquals(new double[] {0, 40, 90, 160, 0}, out);
+        }
+
+        @Test
+        @DisplayName("Non-finite rows are reported without aborting the batch")
+        void testErrorBitmap() {
+            CompiledFormula formula = FormulaCalculator.compile("$a / $b");
+            int rows = 200;
+            double[][] columns = new double[2][rows];
+            for (int i = 0; i < rows; i++) {
+                columns[0][i] = i;
+                columns[1][i] = i % 70 == 0 ? 0 : 2;
+            }
+            double[] out = new double[rows];
+            long[] errors = new long[4];
+            assertEquals(3, formula.evaluateBatch(columns, 0, rows, out, errors));
+            assertTrue(Double.isNaN(out[0]));
+            assertEquals(Double.POSITIVE_INFINITY, out[70]);
+            assertEquals(Double.POSITIVE_INFINITY, out[140]);
+            assertEquals(50.0, out[100]);
+            assertEquals(1L, errors[0]);
+            assertEquals(1L << (70 - 64), errors[1]);
+            assertEquals(1L << (140 - 128), errors[2]);
+            assertEquals(0L, errors[3]);
+        }
+
+        @Test
+        @DisplayName("Short columns are rejected")
+        void testShortColumns() {
+            CompiledFormula formula = FormulaCalculator.compile("$a + $b");
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(new double[][] {{1, 2}}, new double[2]));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(new double[][] {{1, 2}, {1}}, new double[2]));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(new double[][] {{1, 2}, {1, 2}}, new double[1]));
+        }
+
+        @Test
+        @DisplayName("Row ranges whose end overflows are rejected")
+        void testOverflowingRange() {
+            CompiledFormula formula = FormulaCalculator.compile("$a + $b");
+            double[][] columns = {{1, 2}, {1, 2}};
+            double[] out = new double[2];
+            DoubleBuffer[] buffers = {DoubleBuffer.wrap(columns[0]), DoubleBuffer.wrap(columns[1])};
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(columns, 1, Integer.MAX_VALUE, out, null));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(buffers, 1, Integer.MAX_VALUE, DoubleBuffer.wrap(out), null));
+            assertThrows(IllegalArgumentException.class, () -> formula.aggregate(buffers, 1, Integer.MAX_VALUE, new Aggregate()));
+            assertThrows(IllegalArgumentException.class, () -> formula.spliterator(columns, Integer.MAX_VALUE, 1));
+        }
+    }
+
+    @Nested
+    @DisplayName("Vector backend")
+    class VectorBackend {
+
+        @Test
+        @DisplayName("The Vector API is used when its module is present")
+        void testBackend() {
+            assertTrue(BatchEvaluator.VECTOR_AVAILABLE, "Tests run with --add-modules jdk.incubator.vector");
+            CompiledFormula formula = FormulaCalculator.compile("$quantity * $price", Backend.VECTOR);
+            assertEquals(Backend.VECTOR, formula.backend());
+            assertEquals(24.0, formula.evaluate(4, 6));
+            double[] out = new double[3];
+            assertEquals(0, formula.evaluateBatch(new double[][] {{1, 2, 3}, {10, 20, 30}}, out));
+            assertArrayEquals(new double[] {10, 40, 90}, out);
+        }
+
+        @Test
+        @DisplayName("Vector and scalar loops give bit-identical results")
+        void testBitIdentical() {
+            String[] formulas = {
+                "($a + $b) * ($a - $b) / $b", "-sqrt(abs($a)) + min($a, $b) - max($b, $a)",
+                "floor($a) + ceil($b) * floor($b) - ceil($a)", "floor($a / $b) + sin($a) * ($a + 1)", "min($a, 0.5) + 1"
+            };
+            double[] specials = {0.0, -0.0, 0.5, -0.5, 1.0, -1.0, 2.5, -2.5, 1e300, -1e-300, 0x1p52 - 0.5, -0x1p52 - 1,
+                1e17 + 3, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, 0.1, -3.7};
+            int rows = specials.length * specials.length;
+            double[][] columns = new double[2][rows];
+            for (int i = 0; i < rows; i++) {
+                columns[0][i] = specials[i / specials.length];
+                columns[1][i] = specials[i % specials.length];
+            }
+            for (String text : formulas) {
+                Program program = FormulaCalculator.compile(text).program();
+                BatchEvaluator scalar = new BatchEvaluator(program, rows, false);
+                BatchEvaluator vector = new BatchEvaluator(program, rows, true);
+                assertTrue(vector.vectorized());
+                double[] expected = new double[rows];
+                double[] actual = new double[rows];
+                // Enough repetitions for the JIT to compile the vector loops
+                for (int round = 0; round < 200; round++) {
+                    for (int start = 0; start < rows; start += scalar.chunkSize()) {
+                        int count = Math.min(scalar.chunkSize(), rows - start);
+                        scalar.run(columns, start, count);
+                        scalar.copyOutput(0, expected, start, count, null);
+                        vector.run(columns, start, count);
+                        vector.copyOutput(0, actual, start, count, null);
+                    }
+                }
+                for (int i = 0; i < rows; i++) {
+                    assertEquals(Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]),
+                        text + " at " + columns[0][i] + ", " + columns[1][i]);
+                }
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Parallel batch evaluation")
+    class ParallelBatchEvaluation {
+
+        private double[][] columns(int rows) {
+            double[][] columns = new double[2][rows];
+            for (int i = 0; i < rows; i++) {
+                columns[0][i] = i * 0.5 - 1000;
+                columns[1][i] = i % 97 == 0 ? 0 : i % 13 - 6;
+            }
+            return columns;
+        }
+
+        @Test
+        @DisplayName("Parallel results and error bitmaps equal the sequential ones")
+        void testMatchesSequential() {
+            CompiledFormula formula = FormulaCalculator.compile("sqrt(abs($a)) / $b + sin($a) * $b");
+            int rows = 300_000;
+            double[][] columns = columns(rows);
+            double[] expected = new double[rows];
+            long[] expectedErrors = new long[(rows + 63) / 64];
+            int expectedInvalid = formula.evaluateBatch(columns, 37, rows - 100, expected, expectedErrors);
+            assertTrue(expectedInvalid > 0);
+
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                for (ForkJoinPool target : new ForkJoinPool[] {pool, ForkJoinPool.commonPool()}) {
+                    double[] out = new double[rows];
+                    long[] errors = new long[expectedErrors.length];
+                    assertEquals(expectedInvalid, formula.evaluateBatchParallel(columns, 37, rows - 100, out, errors, target));
+                    assertArrayEquals(expected, out);
+                    assertArrayEquals(expectedErrors, errors);
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        @Test
+        @DisplayName("Task size adapts to row count and formula cost")
+        void testLeafSize() {
+            Program cheap = FormulaCalculator.compile("$a + $b").program();
+            Program costly = FormulaCalculator.compile("sin($a) * cos($b) + exp($a / $b)").program();
+            assertTrue(ParallelBatch.leafSize(costly, 10_000, 8) < ParallelBatch.leafSize(cheap, 10_000, 8));
+            assertTrue(ParallelBatch.leafSize(cheap, 100_000_000, 32) <= 100_000_000 / 32);
+            assertTrue(ParallelBatch.leafSize(cheap, 100, 32) >= BatchEvaluator.CHUNK_SIZE);
+            assertEquals(0, ParallelBatch.leafSize(costly, 1_234_567, 6) % 64);
+        }
+
+        @Test
+        @DisplayName("Streams give the batch results in row order")
+        void testStream() {
+            CompiledFormula formula = FormulaCalculator.compile("$a * 2 + $b", Backend.VECTOR);
+            int rows = 50_000;
+            double[][] columns = columns(rows);
+            double[] expected = new double[rows];
+            formula.evaluateBatch(columns, expected);
+            assertArrayEquals(expected, formula.stream(columns).toArray());
+            assertArrayEquals(expected, formula.stream(columns).parallel().toArray());
+            assertEquals(rows, formula.stream(columns).parallel().count());
+        }
+
+        @Test
+        @DisplayName("Spliterators split into disjoint row ranges")
+        void testSpliterator() {
+            CompiledFormula formula = FormulaCalculator.compile("$a - $b");
+            double[][] columns = columns(4000);
+            Spliterator.OfDouble suffix = formula.spliterator(columns, 1000, 3000);
+            Spliterator.OfDouble prefix = suffix.trySplit();
+            assertNotNull(prefix);
+            assertEquals(3000, prefix.estimateSize() + suffix.estimateSize());
+            double[] first = new double[1];
+            assertTrue(prefix.tryAdvance((double value) -> first[0] = value));
+            assertEquals(columns[0][1000] - columns[1][1000], first[0]);
+            assertNull(prefix.trySplit());
+            assertThrows(IllegalArgumentException.class, () -> formula.spliterator(columns, 1000, 3001));
+        }
+    }
+
+    @Nested
+    @DisplayName("Aggregation")
+    class Aggregation {
+
+        private double[][] columns(int rows) {
+            double[][] columns = new double[2][rows];
+            for (int i = 0; i < rows; i++) {
+                columns[0][i] = (i % 1000) * 0.01 + 0.1;
+                columns[1][i] = i % 101 == 0 ? 0 : (i % 7) * 1.1 - 3.3;
+            }
+            return columns;
+        }
+
+        private BigDecimal exactSum(double[] values) {
+            BigDecimal sum = BigDecimal.ZERO;
+            for (double value : values) {
+                if (Double.isFinite(value)) {
+                    sum = sum.add(new BigDecimal(value));
+                }
+            }
+            return sum;
+        }
+
+        @Test
+        @DisplayName("Aggregates equal statistics of the materialized results")
+        void testMatchesBatch() {
+            CompiledFormula formula = FormulaCalculator.compile("$a / $b + 0.1");
+            int rows = 5 * BatchEvaluator.CHUNK_SIZE + 3;
+            double[][] columns = columns(rows);
+            double[] results = new double[rows];
+            int invalid = formula.evaluateBatch(columns, results);
+            Aggregate aggregate = formula.aggregate(columns);
+            assertEquals(invalid, aggregate.invalidCount());
+            assertEquals(rows - invalid, aggregate.count());
+            double[] finite = Arrays.stream(results).filter(Double::isFinite).toArray();
+            assertEquals(Arrays.stream(finite).min().getAsDouble(), aggregate.min());
+            assertEquals(Arrays.stream(finite).max().getAsDouble(), aggregate.max());
+            assertEquals(exactSum(results).doubleValue(), aggregate.sum());
+            assertEquals(aggregate.sum() / aggregate.count(), aggregate.mean());
+        }
+
+        @Test
+        @DisplayName("Compensated summation keeps low-order terms")
+        void testCompensation() {
+            Aggregate aggregate = new Aggregate();
+            aggregate.accept(1e100);
+            aggregate.accept(1.0);
+            aggregate.accept(-1e100);
+            assertEquals(1.0, aggregate.sum());
+            CompiledFormula formula = FormulaCalculator.compile("$x * 0.1");
+            double[] x = new double[1_000_000];
+            Arrays.fill(x, 1.0);
+            double naive = 0;
+            for (double value : x) {
+                naive += value * 0.1;
+            }
+            double sum = formula.aggregate(new double[][] {x}).sum();
+            BigDecimal exact = new BigDecimal(0.1).multiply(BigDecimal.valueOf(x.length));
+            assertEquals(exact.doubleValue(), sum);
+            assertNotEquals(exact.doubleValue(), naive);
+        }
+
+        @Test
+        @DisplayName("Parallel aggregation combines partial aggregates")
+        void testParallel() {
+            CompiledFormula formula = FormulaCalculator.compile("sqrt($a) * $b");
+            int rows = 400_000;
+            double[][] columns = columns(rows);
+            Aggregate sequential = formula.aggregate(columns, 11, rows - 11, new Aggregate(-10, 10, 40));
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                Aggregate parallel = formula.aggregateParallel(columns, 11, rows - 11, new Aggregate(-10, 10, 40), pool);
+                assertEquals(sequential.count(), parallel.count());
+                assertEquals(sequential.invalidCount(), parallel.invalidCount());
+                assertEquals(sequential.min(), parallel.min());
+                assertEquals(sequential.max(), parallel.max());
+                assertEquals(sequential.sum(), parallel.sum(), Math.ulp(sequential.sum()) * 2);
+                for (int bin = 0; bin < sequential.binCount(); bin++) {
+                    assertEquals(sequential.frequency(bin), parallel.frequency(bin));
+                }
+            } finally {
+                pool.shutdown();
+            }
+            assertEquals(formula.aggregate(columns).count(), formula.aggregateParallel(columns).count());
+        }
+
+        @Test
+        @DisplayName("Histograms count results per bin")
+        void testHistogram() {
+            Aggregate aggregate = new Aggregate(0, 10, 5);
+            for (double value : new double[] {-1, 0, 1.99, 2, 5, 9.999, 10, 42, Double.NaN}) {
+                aggregate.accept(value);
+            }
+            assertEquals(5, aggregate.binCount());
+            assertEquals(2, aggregate.frequency(0));
+            assertEquals(1, aggregate.frequency(1));
+            assertEquals(1, aggregate.frequency(2));
+            assertEquals(0, aggregate.frequency(3));
+            assertEquals(1, aggregate.frequency(4));
+            assertEquals(1, aggregate.underflowCount());
+            assertEquals(2, aggregate.overflowCount());
+            assertEquals(1, aggregate.invalidCount());
+            assertEquals(4.0, aggregate.binLowerBound(2));
+            assertEquals(10.0, aggregate.binLowerBound(5));
+            assertThrows(IllegalArgumentException.class, () -> aggregate.combine(new Aggregate()));
+            assertThrows(IllegalArgumentException.class, () -> new Aggregate(1, 1, 4));
+            assertThrows(IllegalArgumentException.class, () -> new Aggregate(0, 1, 0));
+        }
+
+        @Test
+        @DisplayName("Input read in pieces and from buffers aggregates like one batch")
+        void testPieces() {
+            CompiledFormula formula = FormulaCalculator.compile("$a * $b");
+            int rows = 3000;
+            double[][] columns = columns(rows);
+            Aggregate whole = formula.aggregate(columns);
+            DoubleBuffer[] buffers = {DoubleBuffer.wrap(columns[0]), DoubleBuffer.wrap(columns[1])};
+            Aggregate pieces = new Aggregate();
+            for (int offset = 0; offset < rows; offset += 700) {
+                formula.aggregate(buffers, offset, Math.min(700, rows - offset), pieces);
+            }
+            assertEquals(whole.count(), pieces.count());
+            assertEquals(whole.sum(), pieces.sum());
+            assertEquals(whole.min(), pieces.min());
+            assertThrows(IllegalArgumentException.class, () -> formula.aggregate(buffers, 0, rows + 1, new Aggregate()));
+        }
+
+        @Test
+        @DisplayName("An empty aggregate has no mean")
+        void testEmpty() {
+            Aggregate aggregate = FormulaCalculator.compile("$x").aggregate(new double[][] {{}});
+            assertEquals(0, aggregate.count());
+            assertEquals(0.0, aggregate.sum());
+            assertTrue(Double.isNaN(aggregate.mean()));
+            assertEquals(Double.POSITIVE_INFINITY, aggregate.min());
+        }
+    }
+
+    @Nested
+    @DisplayName("Tabulation")
+    class Tabulation {
+
+        private void assertGrid(CompiledFormula formula, double[][] axes, double[] grid) {
+            int[] index = new int[axes.length];
+            double[] args = new double[axes.length];
+            for (int cell = 0; cell < grid.length; cell++) {
+                int remainder = cell;
+                for (int slot = axes.length - 1; slot >= 0; slot--) {
+                    index[slot] = remainder % axes[slot].length;
+                    remainder /= axes[slot].length;
+                    args[slot] = axes[slot][index[slot]];
+                }
+                assertEquals(Double.doubleToLongBits(formula.kernel().apply(args)), Double.doubleToLongBits(grid[cell]),
+                    formula + " at " + Arrays.toString(index));
+            }
+        }
+
+        @Test
+        @DisplayName("Grids are row-major in slot order and match single evaluations")
+        void testLayout() {
+            CompiledFormula formula = FormulaCalculator.compile("abs(sin($angle) * $radius)");
+            double[] angles = FormulaCalculator.range(0, Math.PI, 100);
+            double[] radii = FormulaCalculator.range(1, 10, 1000);
+            double[] grid = new double[100 * 1000];
+            assertEquals(0, formula.tabulate(new double[][] {angles, radii}, grid));
+            assertEquals(Math.abs(Math.sin(angles[3]) * radii[7]), grid[3 * 1000 + 7]);
+            assertGrid(formula, new double[][] {angles, radii}, grid);
+        }
+
+        @Test
+        @DisplayName("Invariant subexpressions of every level give exact results on every backend and pool")
+        void testHoisting() {
+            double[][] axes = {
+                FormulaCalculator.range(-2, 3, 41),
+                FormulaCalculator.range(0.5, 4, 23),
+                FormulaCalculator.range(-100, 100, 700)};
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                for (Backend backend : Backend.values()) {
+                    CompiledFormula formula = FormulaCalculator.compile(
+                        "$a * $c + sin($b) * exp($a) - $b / ($a + 1) + floor($c / $b) + sqrt($a * $a + 1)", backend);
+                    double[] sequential = new double[41 * 23 * 700];
+                    double[] parallel = new double[sequential.length];
+                    int invalid = formula.tabulate(axes, sequential, new ForkJoinPool(1));
+                    assertEquals(invalid, formula.tabulate(axes, parallel, pool));
+                    assertEquals(23 * 700, invalid);
+                    assertArrayEquals(sequential, parallel);
+                    assertGrid(formula, axes, sequential);
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        @Test
+        @DisplayName("Random values are drawn per cell")
+        void testRandom() {
+            CompiledFormula formula = FormulaCalculator.compile("$a + random()");
+            double[] grid = new double[1000];
+            formula.tabulate(new double[][] {new double[1000]}, grid);
+            assertTrue(Arrays.stream(grid).distinct().count() > 990);
+            CompiledFormula nested = FormulaCalculator.compile("$a * 0 + $b + random()");
+            double[] cells = new double[20];
+            nested.tabulate(new double[][] {new double[10], new double[2]}, cells);
+            assertTrue(Arrays.stream(cells).distinct().count() > 18);
+        }
+
+        @Test
+        @DisplayName("Axes bind by name and degenerate grids are handled")
+        void testShapes() {
+            CompiledFormula formula = FormulaCalculator.compile("$quantity * $price");
+            double[] grid = new double[6];
+            formula.tabulate(Map.of("price", new double[] {1, 2}, "quantity", new double[] {1, 10, 100}), grid);
+            assertArrayEquals(new double[] {1, 2, 10, 20, 100, 200}, grid);
+            assertEquals(0, formula.tabulate(new double[][] {new double[0], new double[5]}, new double[0]));
+            double[] constant = new double[1];
+            assertEquals(0, FormulaCalculator.compile("2 + 3").tabulate(new double[0][], constant));
+            assertEquals(5.0, constant[0]);
+            assertThrows(IllegalArgumentException.class, () -> formula.tabulate(new double[][] {{1, 2}}, grid));
+            assertThrows(IllegalArgumentException.class, () -> formula.tabulate(new double[][] {{1, 2}, {1, 2, 3, 4}}, grid));
+            assertThrows(IllegalArgumentException.class, () -> formula.tabulate(Map.of("price", new double[1]), grid));
+            assertArrayEquals(new double[] {0, 0.25, 0.5, 0.75, 1}, FormulaCalculator.range(0, 1, 5));
+            assertArrayEquals(new double[] {3}, FormulaCalculator.range(3, 7, 1));
+        }
+    }
+
+    @Nested
+    @DisplayName("Differentiation")
+    class Differentiation {
+
+        private final String[] formulas = {
+            "$x * $y + $x / $y - $y",
+            "$x ^ $y + pow($y, $x)",
+            "sqrt($x * $y) + -$x",
+            "sin($x) * cos($y) + tan($x * $y)",
+            "log($x) * exp($y) + exp($x) * exp($x)",
+            "abs($x - $y) + abs($y - 2 * $x)",
+            "min($x, $y) * max($x, $y * 2) + min($x * 3, 1)",
+            "round($x) * $y + floor($y) * $x + ceil($x - $y)"};
+
+        @Test
+        @DisplayName("Gradients of every built-in function agree with finite differences")
+        void testFiniteDifferences() {
+            double[][] points = {{1.3, 0.7}, {0.4, 2.2}, {2.9, 1.1}};
+            for (String text : formulas) {
+                CompiledFormula formula = FormulaCalculator.compile(text);
+                for (double[] point : points) {
+                    double[] gradient = new double[2];
+                    assertEquals(formula.evaluate(point), formula.gradient(point, gradient));
+                    for (int slot = 0; slot < 2; slot++) {
+                        double h = 1e-6;
+                        double[] up = point.clone();
+                        double[] down = point.clone();
+                        up[slot] += h;
+                        down[slot] -= h;
+                        double estimate = (formula.evaluate(up) - formula.evaluate(down)) / (2 * h);
+                        String where = text + " d/d" + formula.argumentNames().get(slot) + " at " + Arrays.toString(point);
+                        assertEquals(estimate, gradient[slot], 1e-5 * Math.max(1, Math.abs(estimate)), where);
+                        assertEquals(gradient[slot], formula.derivative(formula.argumentNames().get(slot), point),
+                            1e-12 * Math.max(1, Math.abs(gradient[slot])), where);
+                    }
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Derivatives are exact and use subgradients at kinks")
+        void testExactValues() {
+            assertEquals(12.0, FormulaCalculator.compile("$x ^ 3").derivative("x", 2));
+            assertEquals(12.0, FormulaCalculator.compile("$x ^ 3").derivative("$x", -2));
+            assertEquals(0.25, FormulaCalculator.compile("pow($x, 0.5)").derivative("x", 4));
+            assertEquals(8 * Math.log(2), FormulaCalculator.compile("pow(2, $x)").derivative("x", 3), 1e-15);
+            assertEquals(0.0, FormulaCalculator.compile("abs($x)").derivative("x", 0));
+            assertEquals(-1.0, FormulaCalculator.compile("abs($x)").derivative("x", -3));
+            double[] gradient = new double[3];
+            assertEquals(2.0, FormulaCalculator.compile("max($a, $b) + 0 * $c").gradient(new double[] {2, 2, 5}, gradient));
+            assertArrayEquals(new double[] {0.5, 0.5, 0.0}, gradient);
+            FormulaCalculator.compile("min($a, $b, $c)").gradient(new double[] {3, 1, 2}, gradient);
+            assertArrayEquals(new double[] {0, 1, 0}, gradient);
+            assertEquals(0.0, FormulaCalculator.compile("floor($x) + round($x)").derivative("x", 1.5));
+            assertEquals(Double.POSITIVE_INFINITY, FormulaCalculator.compile("sqrt($x)").derivative("x", 0));
+        }
+
+        @Test
+        @DisplayName("Invalid calls are rejected")
+        void testInvalid() {
+            CompiledFormula formula = FormulaCalculator.compile("log($x) + $y");
+            assertThrows(IllegalArgumentException.class, () -> formula.derivative("z", 1, 2));
+            assertThrows(IllegalArgumentException.class, () -> formula.derivative("x", 1));
+            assertThrows(IllegalArgumentException.class, () -> formula.derivative("x", -1, 2));
+            assertThrows(IllegalArgumentException.class, () -> formula.gradient(new double[] {1, 2}, new double[1]));
+            assertThrows(IllegalArgumentException.class, () -> formula.gradient(new double[] {0, 2}, new double[2]));
+            double[] gradient = new double[1];
+            assertEquals(3.0, FormulaCalculator.compile("$x").gradient(new double[] {3}, gradient));
+            assertEquals(1.0, gradient[0]);
+            assertEquals(7.0, FormulaCalculator.compile("7").gradient(new double[0], new double[0]));
+        }
+
+        @Test
+        @DisplayName("Batch gradients equal single-row gradients")
+        void testBatch() {
+            int rows = 2 * BatchEvaluator.CHUNK_SIZE + 5;
+            double[][] columns = new double[2][rows];
+            for (int row = 0; row < rows; row++) {
+                columns[0][row] = (row % 37) / 7.0 - 1;
+                columns[1][row] = (row % 11) / 3.0 + 0.1;
+            }
+            for (Backend backend : Backend.values()) {
+                for (String text : formulas) {
+                    CompiledFormula formula = FormulaCalculator.compile(text, backend);
+                    double[] values = new double[rows];
+                    double[][] gradients = new double[2][rows];
+                    long[] errors = new long[(rows + 63) / 64];
+                    double[] expected = new double[rows];
+                    int invalid = formula.gradientBatch(columns, 0, rows, values, gradients, errors);
+                    assertEquals(formula.evaluateBatch(columns, expected), invalid, text);
+                    assertArrayEquals(expected, values, text);
+                    double[] gradient = new double[2];
+                    for (int row = 0; row < rows; row++) {
+                        if ((errors[row >>> 6] & 1L << row) != 0) {
+                            continue;
+                        }
+                        formula.gradient(new double[] {columns[0][row], columns[1][row]}, gradient);
+                        assertEquals(gradient[0], gradients[0][row], text + " row " + row);
+                        assertEquals(gradient[1], gradients[1][row], text + " row " + row);
+                    }
+                }
+            }
+            CompiledFormula formula = FormulaCalculator.compile("$x * $y");
+            assertThrows(IllegalArgumentException.class, () -> formula.gradientBatch(columns, new double[rows], new double[1][rows]));
+            assertThrows(IllegalArgumentException.class,
+                () -> formula.gradientBatch(columns, new double[rows], new double[][] {new double[rows], new double[rows - 1]}));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the CSV command line mode
+ */
+@DisplayName("CSV Command Tests")
+class CsvCommandTest {
+
+    @TempDir
+    Path directory;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    private int run(String... args) {
+        return CsvCommand.run(args, new PrintStream(out, true), new PrintStream(err, true));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(directory.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<String> lines(Path path) throws IOException {
+        return Files.readAllLines(path, StandardCharsets.UTF_8);
+    }
+
+    @Nested
+    @DisplayName("Command line")
+    class CommandLine {
+
+        @Test
+        @DisplayName("Columns are mapped by number")
+        void testMapByNumber() throws IOException {
+            Path input = write("data.csv", "a,b,4,x,6\nc,d,2.5,y,-2\n");
+            Path output = directory.resolve("result.csv");
+            assertEquals(0, run("--formula", "$qty * $price", "--in", input.toString(), "--out", output.toString(),
+                "--map", "qty=col3,price=col5"));
+            assertEquals(List.of("24.0", "-5.0"), lines(output));
+            assertTrue(out.toString().startsWith("Evaluated 2 rows in "), out.toString());
+            assertTrue(out.toString().contains("rows/s"));
+        }
+
+        @Test
+        @DisplayName("Columns are mapped by header name")
+        void testMapByHeader() throws IOException {
+            Path input = write("data.csv", "\"id\",qty,unit price\r\n1,4,6\r\n2,3,\"1.5\"\r\n\r\n");
+            Path output = directory.resolve("result.csv");
+            assertEquals(0, run("--formula", "$qty * $price", "--in", input.toString(), "--out", output.toString(),
+                "--map", "price=unit price", "--header", "--backend", "bytecode"));
+            assertEquals(List.of("result", "24.0", "4.5"), lines(output));
+        }
+
+        @Test
+        @DisplayName("Invalid rows give empty lines without stopping")
+        void testInvalidRows() throws IOException {
+            Path input = write("data.csv", "1;2\n1;0\nx;2\n5\n8;4");
+            Path output = directory.resolve("result.csv");
+            assertEquals(0, run("--formula", "$a / $b", "--in", input.toString(), "--out", output.toString(),
+                "--map", "a=col1,b=col2", "--delimiter", ";"));
+            assertEquals(List.of("0.5", "", "", "", "2.0"), lines(output));
+            assertTrue(out.toString().contains(", 3 invalid"), out.toString());
+        }
+
+        @Test
+        @DisplayName("Invalid options are reported with usage")
+        void testUsage() throws IOException {
+            Path input = write("data.csv", "1\n");
+            String output = directory.resolve("result.csv").toString();
+            assertEquals(2, run("--formula", "$a"));
+            assertEquals(2, run("--formula", "$a", "--in", input.toString(), "--out", output, "--verbose"));
+            assertEquals(2, run("--formula", "$a + $b", "--in", input.toString(), "--out", output, "--map", "a=col1"));
+            assertEquals(2, run("--formula", "$a", "--in", input.toString(), "--out", output, "--map", "a=price"));
+            assertEquals(2, run("--formula", "$a +", "--in", input.toString(), "--out", output, "--map", "a=col1"));
+            assertTrue(err.toString().contains("Usage:"));
+            assertEquals(1, run("--formula", "$a", "--in", directory.resolve("missing.csv").toString(), "--out", output,
+                "--map", "a=col1"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Evaluator")
+    class Evaluator {
+
+        @Test
+        @DisplayName("Lines crossing mapping windows and batches are evaluated once each")
+        void testWindows() throws IOException {
+            int rows = 3 * CsvEvaluator.BATCH_SIZE + 17;
+            StringBuilder text = new StringBuilder("x,y\n");
+            for (int i = 0; i < rows; i++) {
+                text.append(i).append(",\"").append(i % 7 - 3).append(".25\"\n");
+            }
+            Path input = write("data.csv", text.toString());
+            Path output = directory.resolve("result.csv");
+            CompiledFormula formula = FormulaCalculator.compile("$x * $y + $x");
+            CsvEvaluator evaluator = new CsvEvaluator(formula, new int[] {0, 1}, (byte) ',', true, 61);
+            evaluator.run(input, output);
+            assertEquals(rows, evaluator.rows());
+            assertEquals(0, evaluator.invalidRows());
+            List<String> lines = lines(output);
+            assertEquals(rows + 1, lines.size());
+            for (int i = 0; i < rows; i++) {
+                assertEquals(Double.toString(formula.evaluate(i, Double.parseDouble((i % 7 - 3) + ".25"))), lines.get(i + 1));
+            }
+        }
+
+        @Test
+        @DisplayName("Lines longer than the mapping window are rejected")
+        void testLongLine() throws IOException {
+            Path input = write("data.csv", "1,2\n" + "3".repeat(100) + ",4\n");
+            CsvEvaluator evaluator = new CsvEvaluator(FormulaCalculator.compile("$a"), new int[] {0}, (byte) ',', false, 64);
+            assertThrows(IOException.class, () -> evaluator.run(input, directory.resolve("result.csv")));
+        }
+
+        @Test
+        @DisplayName("Numbers parse exactly like Double.parseDouble")
+        void testParseNumber() {
+            String[] texts = {"0", "-0", "+1", "12.5", ".5", "5.", "1e3", "-1.5E-3", "007", "0.000123", " 42 ", "\"3.25\"",
+                "123456789012345", "1234567890123456789", "0.1", "9007199254740993", "1e-30", "4.9e-324", "1.7976931348623157e308",
+                "1e400", "0.30000000000000004", "123456789012345678901234567890"};
+            for (String text : texts) {
+                assertEquals(Double.parseDouble(text.replace("\"", "")), parse(text), text);
+            }
+            Random random = new Random(7);
+            for (int i = 0; i < 10_000; i++) {
+                double value = Double.longBitsToDouble(random.nextLong());
+                if (Double.isFinite(value)) {
+                    assertEquals(value, parse(Double.toString(value)));
+                }
+                double decimal = Math.round(random.nextDouble() * 1e8) / 100.0;
+                assertEquals(decimal, parse(Double.toString(decimal)));
+            }
+            for (String text : new String[] {"", " ", "-", ".", "1e", "1.2.3", "abc", "1,5", "0x10", "NaN", "1e5x"}) {
+                assertTrue(Double.isNaN(parse(text)), text);
+            }
+        }
+
+        private double parse(String text) {
+            ByteBuffer buffer = ByteBuffer.wrap(("#" + text + "#").getBytes(StandardCharsets.US_ASCII));
+            return CsvEvaluator.parseNumber(buffer, 1, text.length() + 1);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for DecimalFormula
+ */
+@DisplayName("Decimal Formula Tests")
+class DecimalFormulaTest {
+
+    private static DecimalFormula decimal(String formula, int scale, RoundingMode mode) {
+        return FormulaCalculator.compile(formula).decimal(scale, mode);
+    }
+
+    private static BigDecimal big(String value) {
+        return new BigDecimal(value);
+    }
+
+    @Nested
+    @DisplayName("Arithmetic")
+    class Arithmetic {
+
+        @Test
+        @DisplayName("Decimal literals and money stay exact")
+        void testExact() {
+            assertEquals(big("0.30"), decimal("0.1 + 0.2", 2, RoundingMode.HALF_UP).evaluate());
+            DecimalFormula total = decimal("$quantity * $price", 2, RoundingMode.HALF_UP);
+            assertEquals(big("59.97"), total.evaluate(big("3"), big("19.99")));
+            assertEquals(5997, total.evaluateUnscaled(300, 1999));
+            assertNotEquals(0.3, FormulaCalculator.compile("$a + $b").evaluate(0.1, 0.2));
+        }
+
+        @Test
+        @DisplayName("Products and quotients are rounded with the rounding mode")
+        void testRoundingModes() {
+            for (RoundingMode mode : new RoundingMode[] {RoundingMode.DOWN, RoundingMode.UP, RoundingMode.FLOOR,
+                    RoundingMode.CEILING, RoundingMode.HALF_UP, RoundingMode.HALF_DOWN, RoundingMode.HALF_EVEN}) {
+                DecimalFormula quotient = decimal("$a / $b", 2, mode);
+                DecimalFormula product = decimal("$a * $b", 2, mode);
+                for (String a : new String[] {"2", "-2", "0.25", "-0.25", "1.05", "-1.05"}) {
+                    for (String b : new String[] {"3", "-3", "0.5", "0.1", "-0.5"}) {
+                        assertEquals(big(a).divide(big(b), 2, mode), quotient.evaluate(big(a), big(b)), a + " / " + b + " " + mode);
+                        assertEquals(big(a).multiply(big(b)).setScale(2, mode), product.evaluate(big(a), big(b)), a + " * " + b + " " + mode);
+                    }
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Rounding functions, abs, min and max agree with double mode")
+        void testFunctions() {
+            String[] formulas = {"round($x)", "floor($x)", "ceil($x)", "abs($x)", "min($x, 1.25)", "max($x, -1.25)", "-$x"};
+            String[] values = {"2.5", "-2.5", "2.49", "-2.51", "0", "3", "-3", "0.01", "-0.01"};
+            for (String formula : formulas) {
+                CompiledFormula compiled = FormulaCalculator.compile(formula);
+                DecimalFormula decimal = compiled.decimal(2, RoundingMode.HALF_EVEN);
+                for (String value : values) {
+                    double expected = compiled.evaluate(Double.parseDouble(value));
+                    assertEquals(0, BigDecimal.valueOf(expected).compareTo(decimal.evaluate(big(value))), formula + " at " + value);
+                }
+            }
+            assertEquals(big("3"), decimal("round($x)", 0, RoundingMode.HALF_UP).evaluate(big("2.6")));
+        }
+
+        @Test
+        @DisplayName("Long arithmetic matches BigDecimal on random values")
+        void testMatchesBigDecimal() {
+            DecimalFormula formula = decimal("($a * $b - $c) / $d + round($a / 3)", 4, RoundingMode.HALF_EVEN);
+            Random random = new Random(22);
+            for (int i = 0; i < 10_000; i++) {
+                BigDecimal a = BigDecimal.valueOf(random.nextInt(2_000_000) - 1_000_000, 4);
+                BigDecimal b = BigDecimal.valueOf(random.nextInt(2_000_000) - 1_000_000, 4);
+                BigDecimal c = BigDecimal.valueOf(random.nextInt(2_000_000) - 1_000_000, 4);
+                BigDecimal d = BigDecimal.valueOf(random.nextInt(2_000_000) + 1, 4);
+                BigDecimal expected = a.multiply(b).setScale(4, RoundingMode.HALF_EVEN).subtract(c)
+                    .divide(d, 4, RoundingMode.HALF_EVEN)
+                    .add(a.divide(BigDecimal.valueOf(3), 4, RoundingMode.HALF_EVEN)
+                        .add(big("0.5")).setScale(0, RoundingMode.FLOOR).setScale(4));
+                assertEquals(expected, formula.evaluate(a, b, c, d));
+                assertEquals(expected.unscaledValue().longValueExact(), formula.evaluateUnscaled(
+                    formula.unscaled(a), formula.unscaled(b), formula.unscaled(c), formula.unscaled(d)));
+            }
+        }
+
+        @Test
+        @DisplayName("Arguments and constants are rounded to the scale")
+        void testArgumentScale() {
+            DecimalFormula formula = decimal("$x + PI", 2, RoundingMode.HALF_UP);
+            assertEquals(big("4.15"), formula.evaluate(big("1.005")));
+            assertEquals(101, formula.unscaled(big("1.005")));
+            assertEquals(big("1.01"), formula.decimal(101));
+        }
+    }
+
+    @Nested
+    @DisplayName("Overflow")
+    class Overflow {
+
+        @Test
+        @DisplayName("Intermediate overflow is promoted and the exact result returned")
+        void testPromotion() {
+            DecimalFormula formula = decimal("$a * $b / $c", 2, RoundingMode.HALF_UP);
+            long large = Long.MAX_VALUE / 1000;
+            assertEquals(large, formula.evaluateUnscaled(large, 100_000, 100_000));
+            BigDecimal a = BigDecimal.valueOf(large, 2);
+            assertEquals(a, formula.evaluate(a, big("1000"), big("1000")));
+        }
+
+        @Test
+        @DisplayName("Results out of range are returned as BigDecimal or reported")
+        void testOutOfRange() {
+            DecimalFormula formula = decimal("$a * $b", 2, RoundingMode.HALF_UP);
+            BigDecimal a = BigDecimal.valueOf(Long.MAX_VALUE, 2);
+            assertEquals(a.multiply(big("10")).setScale(2), formula.evaluate(a, big("10")));
+            FormulaException e = assertThrows(FormulaException.class, () -> formula.evaluateUnscaled(Long.MAX_VALUE, 1000));
+            assertEquals(ErrorCategory.INVALID_RESULT, e.category());
+            assertEquals(Long.MIN_VALUE, decimal("$a - 1", 0, RoundingMode.HALF_UP).evaluateUnscaled(Long.MIN_VALUE + 1));
+        }
+
+        @Test
+        @DisplayName("Constants beyond the long range evaluate exactly")
+        void testLargeConstant() {
+            DecimalFormula formula = decimal("$x * 100000000000000000000 / 100000000000000000000", 2, RoundingMode.HALF_UP);
+            assertEquals(1234, formula.evaluateUnscaled(1234));
+            long[] out = new long[3];
+            assertEquals(0, formula.evaluateBatch(new long[][] {{1, 2, 3}}, out));
+            assertArrayEquals(new long[] {1, 2, 3}, out);
+        }
+    }
+
+    @Nested
+    @DisplayName("Errors")
+    class Errors {
+
+        @Test
+        @DisplayName("Division by zero is an invalid result")
+        void testDivisionByZero() {
+            DecimalFormula formula = decimal("$a / $b", 2, RoundingMode.HALF_UP);
+            FormulaException e = assertThrows(FormulaException.class, () -> formula.evaluateUnscaled(100, 0));
+            assertEquals(ErrorCategory.INVALID_RESULT, e.category());
+            assertThrows(FormulaException.class, () -> formula.evaluate(big("1"), BigDecimal.ZERO));
+        }
+
+        @Test
+        @DisplayName("Functions without an exact decimal result are rejected")
+        void testUnsupported() {
+            CompiledFormula sqrt = FormulaCalculator.compile("sqrt($x)");
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> sqrt.decimal(2, RoundingMode.HALF_UP));
+            assertEquals("Invalid formula: function 'sqrt' is not supported in decimal mode", e.getMessage());
+            assertThrows(IllegalArgumentException.class, () -> decimal("$x ^ 3", 2, RoundingMode.HALF_UP));
+            assertThrows(IllegalArgumentException.class, () -> decimal("random()", 2, RoundingMode.HALF_UP));
+            assertEquals(big("2.25"), decimal("$x ^ 2", 2, RoundingMode.HALF_UP).evaluate(big("1.5")));
+        }
+
+        @Test
+        @DisplayName("Unsupported scales and rounding modes are rejected")
+        void testSettings() {
+            CompiledFormula formula = FormulaCalculator.compile("$x");
+            assertThrows(IllegalArgumentException.class, () -> formula.decimal(-1, RoundingMode.HALF_UP));
+            assertThrows(IllegalArgumentException.class, () -> formula.decimal(19, RoundingMode.HALF_UP));
+            assertThrows(IllegalArgumentException.class, () -> formula.decimal(2, RoundingMode.UNNECESSARY));
+            assertThrows(IllegalArgumentException.class, () -> formula.decimal(2, null));
+            assertEquals(18, formula.decimal(18, RoundingMode.DOWN).scale());
+        }
+
+        @Test
+        @DisplayName("Missing arguments are reported")
+        void testMissingArgument() {
+            DecimalFormula formula = decimal("$a + $b", 2, RoundingMode.HALF_UP);
+            FormulaException e = assertThrows(FormulaException.class, () -> formula.evaluateUnscaled(1));
+            assertEquals(ErrorCategory.MISSING_ARGUMENT, e.category());
+            assertEquals("Invalid formula: no value supplied for argument $b", e.getMessage());
+        }
+    }
+
+    @Nested
+    @DisplayName("Batch")
+    class Batch {
+
+        @Test
+        @DisplayName("Batch evaluation matches single rows across chunks")
+        void testMatchesScalar() {
+            DecimalFormula formula = decimal("max($a * $b / $c, -$a) + floor($b) - 0.07", 2, RoundingMode.HALF_EVEN);
+            int rows = 3 * BatchEvaluator.CHUNK_SIZE + 17;
+            long[][] columns = new long[3][rows];
+            Random random = new Random(7);
+            for (int r = 0; r < rows; r++) {
+                columns[0][r] = random.nextInt(1_000_000) - 500_000;
+                columns[1][r] = random.nextInt(1_000_000) - 500_000;
+                columns[2][r] = r % 100 == 0 ? 0 : random.nextInt(1_000_000) - 500_000;
+            }
+            columns[0][5] = Long.MAX_VALUE / 10;
+            columns[1][5] = 1_000;
+            columns[2][5] = 1_000;
+            long[] out = new long[rows];
+            long[] errors = new long[(rows + 63) / 64];
+            int invalid = formula.evaluateBatch(columns, 0, rows, out, errors);
+            int expectedInvalid = 0;
+            for (int r = 0; r < rows; r++) {
+                boolean error = (errors[r >>> 6] & (1L << r)) != 0;
+                if (columns[2][r] == 0) {
+                    expectedInvalid++;
+                    assertTrue(error, "row " + r);
+                    assertEquals(0, out[r]);
+                } else {
+                    assertFalse(error, "row " + r);
+                    assertEquals(formula.evaluateUnscaled(columns[0][r], columns[1][r], columns[2][r]), out[r], "row " + r);
+                }
+            }
+            assertEquals(expectedInvalid, invalid);
+            assertEquals(Long.MAX_VALUE / 10 + 1_000 - 7, out[5]);
+        }
+
+        @Test
+        @DisplayName("A row range leaves other rows untouched")
+        void testRange() {
+            DecimalFormula formula = decimal("$x * 2", 0, RoundingMode.HALF_UP);
+            long[] out = {-1, -1, -1, -1};
+            assertEquals(0, formula.evaluateBatch(new long[][] {{1, 2, 3, 4}}, 1, 2, out, null));
+            assertArrayEquals(new long[] {-1, 4, 6, -1}, out);
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(new long[][] {{1}}, 0, 2, out, null));
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(new long[][] {{1, 2, 3, 4}}, 1, Integer.MAX_VALUE, out, null));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for FormulaCache
+ */
+@DisplayName("Formula Cache Tests")
+class FormulaCacheTest {
+
+    @Nested
+    @DisplayName("Lookups")
+    class Lookups {
+
+        @Test
+        @DisplayName("Repeated lookups hit the cache")
+        void testHitsAndMisses() {
+            FormulaCache cache = new FormulaCache(16);
+            CompiledFormula first = cache.get("$a + $b");
+            CompiledFormula second = cache.get("$a + $b");
+            assertSame(first, second);
+            assertEquals(1, cache.missCount());
+            assertEquals(1, cache.hitCount());
+            assertEquals(0.5, cache.hitRate());
+            assertEquals(1, cache.size());
+        }
+
+        @Test
+        @DisplayName("Invalid formulas are not cached")
+        void testInvalidFormulas() {
+            FormulaCache cache = new FormulaCache(16);
+            assertThrows(IllegalArgumentException.class, () -> cache.get("2 +"));
+            assertThrows(IllegalArgumentException.class, () -> cache.get(null));
+            assertEquals(0, cache.size());
+        }
+
+        @Test
+        @DisplayName("calc uses the shared cache")
+        void testCalcUsesSharedCache() {
+            FormulaCache cache = FormulaCalculator.cache();
+            String formula = "$cached * 3 + 0.25";
+            FormulaCalculator.calc(formula, 1);
+            long hits = cache.hitCount();
+            assertEquals(6.25, FormulaCalculator.calc(formula, 2));
+            assertTrue(cache.hitCount() > hits);
+        }
+
+        @Test
+        @DisplayName("Concurrent lookups return the same compiled formula")
+        void testConcurrentLookups() throws Exception {
+            FormulaCache cache = new FormulaCache(16);
+            CompiledFormula expected = cache.get("sqrt($x) * 2");
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < 10_000; i++) {
+                            if (cache.get("sqrt($x) * 2") != expected) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }));
+                }
+                start.countDown();
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(1, cache.missCount());
+            assertEquals(threads * 10_000L, cache.hitCount());
+        }
+    }
+
+    @Nested
+    @DisplayName("Eviction")
+    class Eviction {
+
+        @Test
+        @DisplayName("The cache never exceeds its maximum size")
+        void testMaximumSize() {
+            FormulaCache cache = new FormulaCache(32);
+            for (int i = 0; i < 1000; i++) {
+                cache.get("$x + " + i);
+                cache.get("$x + " + i);
+            }
+            assertTrue(cache.size() <= 32);
+            assertTrue(cache.evictionCount() > 0);
+        }
+
+        @Test
+        @DisplayName("Frequently used formulas survive a scan of one-off formulas")
+        void testFrequencyAdmission() {
+            FormulaCache cache = new FormulaCache(64);
+            List<CompiledFormula> hot = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                for (int n = 0; n < 10; n++) {
+                    CompiledFormula formula = cache.get("$hot * " + i);
+                    if (n == 0) {
+                        hot.add(formula);
+                    }
+                }
+            }
+            for (int i = 0; i < 5000; i++) {
+                cache.get("$cold - " + i);
+                cache.get("$hot * " + (i % 32));
+            }
+            for (int i = 0; i < 32; i++) {
+                assertSame(hot.get(i), cache.get("$hot * " + i));
+            }
+            assertTrue(cache.rejectionCount() > 0);
+        }
+
+        @Test
+        @DisplayName("Resizing and disabling the cache")
+        void testResize() {
+            FormulaCache cache = new FormulaCache(64);
+            for (int i = 0; i < 64; i++) {
+                cache.get("$x / " + (i + 1));
+            }
+            assertEquals(64, cache.size());
+            cache.setMaximumSize(10);
+            assertEquals(10, cache.size());
+            cache.setMaximumSize(0);
+            assertEquals(0, cache.size());
+            cache.get("$x / 2");
+            assertEquals(0, cache.size());
+            assertThrows(IllegalArgumentException.class, () -> cache.setMaximumSize(-1));
+        }
+
+        @Test
+        @DisplayName("Hits advance the recency of cached formulas")
+        void testRecency() {
+            FormulaCache cache = new FormulaCache(8);
+            cache.get("$a + 1");
+            cache.get("$a + 2");
+            cache.get("$a + 1");
+            assertTrue(cache.lastAccess("$a + 1") > cache.lastAccess("$a + 2"));
+            int hot = cache.lastAccess("$a + 1");
+            cache.get("$a + 1");
+            assertEquals(hot, cache.lastAccess("$a + 1"));
+            cache.get("$a + 2");
+            assertTrue(cache.lastAccess("$a + 2") > cache.lastAccess("$a + 1"));
+            assertEquals(-1, cache.lastAccess("$a + 3"));
+        }
+
+        @Test
+        @DisplayName("Concurrent increments saturate a counter without wrapping")
+        void testConcurrentSaturation() throws Exception {
+            FrequencySketch sketch = new FrequencySketch(16);
+            int hot = "$hot".hashCode();
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < 100_000; i++) {
+                            sketch.increment(hot);
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(15, sketch.frequency(hot));
+        }
+
+        @Test
+        @DisplayName("Resizing the shared cache while other threads call calc")
+        void testConcurrentResize() throws Exception {
+            FormulaCache cache = FormulaCalculator.cache();
+            int previous = cache.maximumSize();
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < 50_000; i++) {
+                            if (FormulaCalculator.calc("$x + " + (i % 200), i) != i + i % 200) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }));
+                }
+                Future<?> resizer = executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        cache.setMaximumSize(i % 2 == 0 ? 16 : 4096);
+                    }
+                    return null;
+                });
+                start.countDown();
+                resizer.get();
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+            } finally {
+                executor.shutdown();
+                cache.setMaximumSize(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Multi-threaded stress tests for FormulaCalculator
+ */
+@DisplayName("Formula Calculator Concurrency Tests")
+class FormulaCalculatorConcurrencyTest {
+
+    private static final int FORMULAS = 2000;
+
+    /**
+     * A generated formula together with the coefficients needed to compute its expected value
+     */
+    private static final class Case {
+        final String formula;
+        final int k1;
+        final int k2;
+        final int k3;
+
+        Case(int k1, int k2, int k3) {
+            this.k1 = k1;
+            this.k2 = k2;
+            this.k3 = k3;
+            this.formula = "$a * " + k1 + " + $b / " + k2 + " - sqrt(" + k3 + ") + max($a, " + k1 + ")";
+        }
+
+        double expected(double a, double b) {
+            return a * k1 + b / k2 - Math.sqrt(k3) + Math.max(a, k1);
+        }
+    }
+
+    @Test
+    @DisplayName("Thousands of different formulas evaluated on all cores")
+    void testConcurrentEvaluation() throws Exception {
+        Random random = new Random(42);
+        List<Case> cases = new ArrayList<>();
+        for (int i = 0; i < FORMULAS; i++) {
+            cases.add(new Case(random.nextInt(1000) + 1, random.nextInt(1000) + 1, i));
+        }
+        List<CompiledFormula> bytecode = new ArrayList<>();
+        for (Case c : cases.subList(0, 100)) {
+            bytecode.add(FormulaCalculator.compile(c.formula, Backend.BYTECODE));
+        }
+
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                results.add(executor.submit(() -> {
+                    List<Case> order = new ArrayList<>(cases);
+                    Collections.shuffle(order, new Random(seed));
+                    start.await();
+                    int checked = 0;
+                    for (int round = 0; round < 3; round++) {
+                        for (Case c : order) {
+                            double a = seed * 7 + round;
+                            double b = c.k3 + seed;
+                            assertEquals(c.expected(a, b), FormulaCalculator.calc(c.formula, a, b), c.formula);
+                            checked++;
+                        }
+                        for (int i = 0; i < bytecode.size(); i++) {
+                            Case c = cases.get(i);
+                            assertEquals(c.expected(seed, round), bytecode.get(i).evaluate(seed, round), c.formula);
+                            checked++;
+                        }
+                    }
+                    return checked;
+                }));
+            }
+            start.countDown();
+            int checked = 0;
+            for (Future<Integer> result : results) {
+                checked += result.get();
+            }
+            assertEquals(threads * 3 * (FORMULAS + 100), checked);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Random values stay in range when drawn concurrently")
+    void testConcurrentRandom() throws Exception {
+        CompiledFormula formula = FormulaCalculator.compile("random() * $scale", Backend.BYTECODE);
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        double value = formula.evaluate(10.0);
+                        if (value < 0 || value >= 10.0) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
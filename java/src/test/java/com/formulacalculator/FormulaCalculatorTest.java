@@ -230,6 +230,59 @@ class FormulaCalculatorTest {
         }
     }
     
+    @Nested
+    @DisplayName("Parsing")
+    class Parsing {
+        
+        @Test
+        @DisplayName("Exponentiation is right-associative and binds tighter than unary minus")
+        void testPowerPrecedence() {
+            assertEquals(512.0, FormulaCalculator.calc("2 ^ 3 ^ 2"));
+            assertEquals(-4.0, FormulaCalculator.calc("-2 ^ 2"));
+            assertEquals(0.5, FormulaCalculator.calc("2 ** -1"));
+            assertEquals(18.0, FormulaCalculator.calc("2 * 3 ^ 2"));
+        }
+        
+        @Test
+        @DisplayName("Number literals")
+        void testNumberLiterals() {
+            assertEquals(0.5, FormulaCalculator.calc(".5"));
+            assertEquals(1500.0, FormulaCalculator.calc("1.5e3"));
+            assertEquals(0.025, FormulaCalculator.calc("2.5E-2"));
+        }
+        
+        @Test
+        @DisplayName("Repeated arguments share a slot")
+        void testRepeatedArguments() {
+            assertEquals(9.0, FormulaCalculator.calc("$x * $x", 3));
+            assertEquals(7.0, FormulaCalculator.calc("$x + $y * $x", 1, 6));
+        }
+        
+        @Test
+        @DisplayName("Rounding follows half-up rules")
+        void testRoundHalfUp() {
+            assertEquals(3.0, FormulaCalculator.calc("round(2.5)"));
+            assertEquals(-2.0, FormulaCalculator.calc("round(-2.5)"));
+            assertEquals(-3.0, FormulaCalculator.calc("round(-2.6)"));
+        }
+        
+        @Test
+        @DisplayName("Errors report the position in the formula")
+        void testErrorPosition() {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> FormulaCalculator.calc("2 + * 3"));
+            assertTrue(e.getMessage().contains("position 4"), e.getMessage());
+        }
+        
+        @Test
+        @DisplayName("Missing argument values")
+        void testMissingArguments() {
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("$a + $b", 1));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("pow(2)"));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("foo + 1"));
+        }
+    }
+    
     @Nested
     @DisplayName("Error handling")
     class ErrorHandling {
@@ -268,6 +321,126 @@ class FormulaCalculatorTest {
         }
     }
     
+    @Nested
+    @DisplayName("Validation and non-throwing evaluation")
+    class Validation {
+        
+        @Test
+        @DisplayName("Valid formulas report their arguments")
+        void testValid() {
+            ValidationResult result = FormulaCalculator.validate("$quantity * $price + max($quantity, 1)");
+            assertTrue(result.isValid());
+            assertNull(result.error());
+            assertEquals(-1, result.position());
+            assertEquals(java.util.List.of("quantity", "price"), result.argumentNames());
+            assertTrue(FormulaCalculator.validate("$a + $b", 2).isValid());
+        }
+        
+        @Test
+        @DisplayName("Problems are reported with their category and position")
+        void testDiagnostics() {
+            assertDiagnostic("2 + * 3", ErrorCategory.SYNTAX, 4);
+            assertDiagnostic("1 + foo(2)", ErrorCategory.SYNTAX, 4);
+            assertDiagnostic("sqrt(1, 2)", ErrorCategory.SYNTAX, 0);
+            assertDiagnostic("(1 + 2", ErrorCategory.SYNTAX, 6);
+            assertDiagnostic("2 # 3", ErrorCategory.SYNTAX, 2);
+            assertDiagnostic("  ", ErrorCategory.EMPTY_FORMULA, -1);
+            assertEquals(ErrorCategory.EMPTY_FORMULA, FormulaCalculator.validate(null).error());
+            assertTrue(FormulaCalculator.validate("1 + foo(2)").message().contains("Unknown function 'foo'"));
+        }
+        
+        private void assertDiagnostic(String formula, ErrorCategory category, int position) {
+            ValidationResult result = FormulaCalculator.validate(formula);
+            assertFalse(result.isValid(), formula);
+            assertEquals(category, result.error(), formula);
+            assertEquals(position, result.position(), formula);
+            FormulaException e = assertThrows(FormulaException.class, () -> FormulaCalculator.compile(formula));
+            assertEquals(category, e.category());
+            assertEquals(position, e.position());
+            assertEquals(e.getMessage(), result.message());
+            assertTrue(e.getStackTrace().length > 0);
+        }
+        
+        @Test
+        @DisplayName("Too few values point at the first argument without one")
+        void testArgumentCount() {
+            ValidationResult result = FormulaCalculator.validate("$a * ($b + $c) - $b", 1);
+            assertEquals(ErrorCategory.MISSING_ARGUMENT, result.error());
+            assertEquals(6, result.position());
+            assertTrue(result.message().contains("$b"));
+            assertEquals(java.util.List.of("a", "b", "c"), result.argumentNames());
+        }
+        
+        @Test
+        @DisplayName("tryEvaluate reports failures in a reusable holder")
+        void testTryEvaluate() {
+            CompiledFormula formula = FormulaCalculator.compile("$a / $b");
+            EvaluationResult result = new EvaluationResult();
+            assertFalse(result.isValid());
+            assertTrue(formula.tryEvaluate(result, 6, 3));
+            assertEquals(2.0, result.value());
+            assertTrue(result.isValid());
+            assertFalse(formula.tryEvaluate(result, 1, 0));
+            assertEquals(ErrorCategory.INVALID_RESULT, result.error());
+            assertTrue(Double.isNaN(result.value()));
+            assertFalse(formula.tryEvaluate(result, 0, 0));
+            assertEquals(ErrorCategory.INVALID_RESULT, result.error());
+            assertFalse(formula.tryEvaluate(result, 1));
+            assertEquals(ErrorCategory.MISSING_ARGUMENT, result.error());
+            assertTrue(result.message().contains("$b"));
+            assertTrue(formula.tryEvaluate(result, 1, 4));
+            assertEquals(0.25, result.value());
+            assertNull(result.error());
+            assertNull(result.message());
+        }
+        
+        @Test
+        @DisplayName("tryCalc reports every kind of failure")
+        void testTryCalc() {
+            EvaluationResult result = new EvaluationResult();
+            assertTrue(FormulaCalculator.tryCalc(result, "$a + $b", 1, "2.5"));
+            assertEquals(3.5, result.value());
+            assertFalse(FormulaCalculator.tryCalc(result, "$a +", 1));
+            assertEquals(ErrorCategory.SYNTAX, result.error());
+            assertEquals(4, result.position());
+            assertFalse(FormulaCalculator.tryCalc(result, "$a + $b", 1, "n/a"));
+            assertEquals(ErrorCategory.INVALID_ARGUMENT, result.error());
+            assertFalse(FormulaCalculator.tryCalc(result, "$a + $b", 1));
+            assertEquals(ErrorCategory.MISSING_ARGUMENT, result.error());
+            assertFalse(FormulaCalculator.tryCalc(result, "log($a)", -1));
+            assertEquals(ErrorCategory.INVALID_RESULT, result.error());
+            assertFalse(FormulaCalculator.tryCalc(result, null));
+            assertEquals(ErrorCategory.EMPTY_FORMULA, result.error());
+        }
+        
+        @Test
+        @DisplayName("The NaN policy returns NaN instead of throwing")
+        void testNonFinitePolicy() {
+            CompiledFormula formula = FormulaCalculator.compile("1 / $x", Backend.BYTECODE);
+            CompiledFormula lenient = formula.withNonFinitePolicy(NonFinitePolicy.RETURN_NAN);
+            assertEquals(NonFinitePolicy.THROW, formula.nonFinitePolicy());
+            assertEquals(NonFinitePolicy.RETURN_NAN, lenient.nonFinitePolicy());
+            assertSame(lenient, lenient.withNonFinitePolicy(NonFinitePolicy.RETURN_NAN));
+            assertEquals(formula.backend(), lenient.backend());
+            assertTrue(Double.isNaN(lenient.evaluate(0)));
+            assertTrue(Double.isNaN(lenient.evaluate(new double[] {0})));
+            assertEquals(0.5, lenient.evaluate(2));
+            FormulaException e = assertThrows(FormulaException.class, () -> formula.evaluate(0));
+            assertEquals(ErrorCategory.INVALID_RESULT, e.category());
+            assertThrows(FormulaException.class, () -> lenient.evaluate());
+            
+            assertEquals(NonFinitePolicy.THROW, FormulaCalculator.nonFinitePolicy());
+            try {
+                FormulaCalculator.setNonFinitePolicy(NonFinitePolicy.RETURN_NAN);
+                assertTrue(Double.isNaN(FormulaCalculator.calc("1 / 0")));
+                assertThrows(FormulaException.class, () -> FormulaCalculator.calc("1 /"));
+            } finally {
+                FormulaCalculator.setNonFinitePolicy(NonFinitePolicy.THROW);
+            }
+            assertThrows(FormulaException.class, () -> FormulaCalculator.calc("1 / 0"));
+        }
+    }
+    
     @Nested
     @DisplayName("Edge cases")
     class EdgeCases {
@@ -0,0 +1,165 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for FormulaGroup
+ */
+@DisplayName("Formula Group Tests")
+class FormulaGroupTest {
+
+    private static final List<String> RISK = List.of(
+        "$notional * exp(-$rate * $years)",
+        "$notional * exp(-$rate * $years) * $years",
+        "$notional * exp(-$rate * $years) * $years * $years / 2",
+        "sqrt($vol * $vol * $years) + $rate");
+
+    @Nested
+    @DisplayName("Compilation")
+    class Compilation {
+
+        @Test
+        @DisplayName("Arguments share slots in order of first appearance across formulas")
+        void testSchema() {
+            FormulaGroup group = FormulaCalculator.compileGroup(List.of("$a + $b", "$c * $a", "$b - $d"));
+            assertEquals(List.of("a", "b", "c", "d"), group.argumentNames());
+            assertEquals(4, group.argumentCount());
+            assertEquals(3, group.size());
+            assertEquals(2, group.slotOf("$c"));
+            assertEquals(-1, group.slotOf("e"));
+            assertEquals("$a + $b; $c * $a; $b - $d", group.toString());
+        }
+
+        @Test
+        @DisplayName("Shared subexpressions are computed once for the whole group")
+        void testSharing() {
+            FormulaGroup group = FormulaCalculator.compileGroup(RISK);
+            int separate = 0;
+            for (String formula : RISK) {
+                separate += FormulaCalculator.compile(formula).program().size();
+            }
+            assertEquals(4, group.program().outputs.length);
+            assertTrue(group.program().size() <= separate - 8, group.program().toString());
+        }
+
+        @Test
+        @DisplayName("Invalid groups are rejected")
+        void testInvalid() {
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compileGroup(List.of()));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compileGroup(null));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compileGroup(List.of("$a", " ")));
+            List<String> withNull = new ArrayList<>(List.of("$a"));
+            withNull.add(null);
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compileGroup(withNull));
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> FormulaCalculator.compileGroup(List.of("$a", "$a +")));
+            assertTrue(e.getMessage().startsWith("Invalid formula"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Single row")
+    class SingleRow {
+
+        @Test
+        @DisplayName("Every formula gets the result it has on its own")
+        void testMatchesCompiledFormulas() {
+            FormulaGroup group = FormulaCalculator.compileGroup(RISK);
+            double[] args = {1_000_000, 0.03, 7.5, 0.2};
+            double[] out = new double[group.size()];
+            assertEquals(0, group.evaluate(args, out));
+            for (int i = 0; i < RISK.size(); i++) {
+                CompiledFormula formula = FormulaCalculator.compile(RISK.get(i));
+                double[] own = new double[formula.argumentCount()];
+                for (int slot = 0; slot < own.length; slot++) {
+                    own[slot] = args[group.slotOf(formula.argumentNames().get(slot))];
+                }
+                assertEquals(formula.evaluate(own), out[i], RISK.get(i));
+            }
+        }
+
+        @Test
+        @DisplayName("Named arguments bind by name")
+        void testNamedArguments() {
+            FormulaGroup group = FormulaCalculator.compileGroup(List.of("$quantity * $price", "$quantity + 1"));
+            double[] out = new double[2];
+            assertEquals(0, group.evaluate(Map.of("price", 6, "quantity", 4), out));
+            assertArrayEquals(new double[] {24.0, 5.0}, out);
+            assertThrows(IllegalArgumentException.class, () -> group.evaluate(Map.of("price", 6), out));
+        }
+
+        @Test
+        @DisplayName("Invalid results are counted without stopping the others")
+        void testInvalidResults() {
+            FormulaGroup group = FormulaCalculator.compileGroup(List.of("$a / $b", "$a + $b", "sqrt($b)"));
+            double[] out = new double[3];
+            assertEquals(1, group.evaluate(new double[] {1, -0.0}, out));
+            assertEquals(Double.NEGATIVE_INFINITY, out[0]);
+            assertEquals(1.0, out[1]);
+            assertEquals(-0.0, out[2]);
+            assertEquals(1, group.evaluate(new double[] {1, -4}, out));
+            assertTrue(Double.isNaN(out[2]));
+            assertThrows(IllegalArgumentException.class, () -> group.evaluate(new double[] {1}, out));
+            assertThrows(IllegalArgumentException.class, () -> group.evaluate(new double[] {1, 2}, new double[2]));
+        }
+    }
+
+    @Nested
+    @DisplayName("Batch")
+    class Batch {
+
+        @Test
+        @DisplayName("Batch results equal single-row results for every backend")
+        void testBatchMatchesRows() {
+            int rows = 3 * BatchEvaluator.CHUNK_SIZE + 11;
+            Random random = new Random(15);
+            double[][] columns = new double[4][rows];
+            for (int row = 0; row < rows; row++) {
+                columns[0][row] = random.nextDouble() * 1e6;
+                columns[1][row] = random.nextDouble() * 0.1;
+                columns[2][row] = random.nextDouble() * 30;
+                columns[3][row] = random.nextDouble();
+            }
+            for (Backend backend : Backend.values()) {
+                FormulaGroup group = FormulaCalculator.compileGroup(RISK, backend);
+                assertNotEquals(Backend.BYTECODE, group.backend());
+                double[][] out = new double[group.size()][rows];
+                assertEquals(0, group.evaluateBatch(columns, out));
+                double[] args = new double[4];
+                double[] expected = new double[group.size()];
+                for (int row = 0; row < rows; row++) {
+                    for (int slot = 0; slot < 4; slot++) {
+                        args[slot] = columns[slot][row];
+                    }
+                    group.evaluate(args, expected);
+                    for (int i = 0; i < group.size(); i++) {
+                        assertEquals(expected[i], out[i][row], backend + " row " + row);
+                    }
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Each formula has its own error bitmap")
+        void testErrors() {
+            FormulaGroup group = FormulaCalculator.compileGroup(List.of("$a / $b", "log($a)"));
+            double[][] columns = {{1, 0, -1, 2, 3}, {1, 1, 0, 0, 1}};
+            double[][] out = new double[2][5];
+            long[][] errors = {new long[1], null};
+            assertEquals(4, group.evaluateBatch(columns, 1, 4, out, errors));
+            assertEquals(0b1100L, errors[0][0]);
+            assertEquals(0.0, out[0][0]);
+            assertEquals(Math.log(3), out[1][4]);
+            assertThrows(IllegalArgumentException.class, () -> group.evaluateBatch(columns, 0, 5, new double[1][5], null));
+            assertThrows(IllegalArgumentException.class, () -> group.evaluateBatch(columns, 0, 5, new double[][] {new double[5], new double[4]}, null));
+            assertThrows(IllegalArgumentException.class, () -> group.evaluateBatch(columns, 0, 5, out, new long[1][]));
+        }
+    }
+}
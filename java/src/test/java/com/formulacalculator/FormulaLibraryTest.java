@@ -0,0 +1,244 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for FormulaLibrary
+ */
+@DisplayName("Formula Library Tests")
+class FormulaLibraryTest {
+
+    private static final List<String> FORMULAS = List.of(
+        "$quantity * $price",
+        "$notional * exp(-$rate * $years)",
+        "max($a, $b) - min($a, $b) + PI",
+        "sqrt($x * $x + $y * $y)",
+        "42",
+        "$a / ($b - 1) + round($a * 3.14159)");
+
+    @TempDir
+    Path directory;
+
+    private Path write(List<String> formulas) throws IOException {
+        Path file = directory.resolve("formulas.bin");
+        FormulaLibrary.write(file, formulas);
+        return file;
+    }
+
+    private static double[] args(int count) {
+        double[] args = new double[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = 1.5 + i * 0.75;
+        }
+        return args;
+    }
+
+    @Nested
+    @DisplayName("Round trip")
+    class RoundTrip {
+
+        @Test
+        @DisplayName("Loaded formulas evaluate like freshly compiled ones")
+        void testMatchesCompile() throws IOException {
+            FormulaLibrary library = FormulaLibrary.open(write(FORMULAS));
+            assertEquals(FORMULAS.size(), library.size());
+            for (int i = 0; i < FORMULAS.size(); i++) {
+                String formula = FORMULAS.get(i);
+                CompiledFormula expected = FormulaCalculator.compile(formula);
+                CompiledFormula loaded = library.get(formula);
+                assertEquals(formula, library.formula(i));
+                assertEquals(i, library.indexOf(formula));
+                assertEquals(formula, loaded.toString());
+                assertEquals(expected.argumentNames(), loaded.argumentNames());
+                assertEquals(expected.program().toString(), loaded.program().toString());
+                double[] args = args(expected.argumentCount());
+                assertEquals(expected.evaluate(args), loaded.evaluate(args), formula);
+            }
+            assertEquals(FORMULAS.size(), library.decodedCount());
+            assertEquals(0, library.reparsedCount());
+        }
+
+        @Test
+        @DisplayName("Formulas are decoded once, on first use")
+        void testLazyDecoding() throws IOException {
+            FormulaLibrary library = FormulaLibrary.open(write(FORMULAS));
+            assertEquals(0, library.decodedCount());
+            CompiledFormula first = library.get(1);
+            assertSame(first, library.get(FORMULAS.get(1)));
+            assertEquals(1, library.decodedCount());
+        }
+
+        @Test
+        @DisplayName("Duplicates are stored once and many formulas are found by hash")
+        void testManyFormulas() throws IOException {
+            List<String> formulas = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                formulas.add("$x * " + i + " + $y");
+            }
+            formulas.add("$x * 7 + $y");
+            FormulaLibrary library = FormulaLibrary.open(write(formulas));
+            assertEquals(2000, library.size());
+            for (int i = 0; i < 2000; i += 97) {
+                assertEquals(i, library.indexOf("$x * " + i + " + $y"));
+                assertEquals(i + 2.0, library.get("$x * " + i + " + $y").evaluate(1, 2));
+            }
+            assertEquals(-1, library.indexOf("$x * 2000 + $y"));
+            assertEquals(-1, library.indexOf(null));
+        }
+
+        @Test
+        @DisplayName("Formulas not in the library are compiled")
+        void testMiss() throws IOException {
+            FormulaLibrary library = FormulaLibrary.open(write(FORMULAS));
+            assertEquals(7.0, library.get("$a + $b").evaluate(3, 4));
+            assertEquals(1, library.missCount());
+            assertThrows(IllegalArgumentException.class, () -> library.get("$a +"));
+            assertThrows(IndexOutOfBoundsException.class, () -> library.get(FORMULAS.size()));
+        }
+
+        @Test
+        @DisplayName("Invalid formulas cannot be written")
+        void testInvalidFormula() {
+            Path file = directory.resolve("invalid.bin");
+            assertThrows(IllegalArgumentException.class, () -> FormulaLibrary.write(file, List.of("$a", "$a *")));
+            assertFalse(Files.exists(file));
+        }
+    }
+
+    @Nested
+    @DisplayName("Integrity")
+    class Integrity {
+
+        private ByteBuffer read(Path file) throws IOException {
+            return ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private int entry(int index) {
+            return FormulaLibrary.HEADER_SIZE + index * FormulaLibrary.ENTRY_SIZE;
+        }
+
+        /** Rewrites the header checksum after the header or index was edited on purpose */
+        private void reseal(ByteBuffer bytes) {
+            int tableEnd = entry(bytes.getInt(12)) + 4 * bytes.getInt(16);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.array(), 0, 20);
+            crc.update(bytes.array(), FormulaLibrary.HEADER_SIZE, tableEnd - FormulaLibrary.HEADER_SIZE);
+            bytes.putInt(20, (int) crc.getValue());
+        }
+
+        @Test
+        @DisplayName("A program that fails its checksum is parsed from its text")
+        void testCorruptProgram() throws IOException {
+            Path file = write(FORMULAS);
+            ByteBuffer bytes = read(file);
+            int entry = entry(1);
+            int program = (int) bytes.getLong(entry) + bytes.getInt(entry + 8);
+            bytes.put(program + 3, (byte) (bytes.get(program + 3) ^ 0x55));
+            Files.write(file, bytes.array());
+
+            FormulaLibrary library = FormulaLibrary.open(file);
+            double[] args = {100, 0.05, 2};
+            assertEquals(FormulaCalculator.compile(FORMULAS.get(1)).evaluate(args), library.get(1).evaluate(args));
+            assertEquals(1, library.reparsedCount());
+            assertEquals(0, library.decodedCount());
+            library.get(0);
+            assertEquals(1, library.decodedCount());
+        }
+
+        @Test
+        @DisplayName("Programs of another encoding version are parsed from their text")
+        void testEncodingVersionMismatch() throws IOException {
+            Path file = write(FORMULAS);
+            ByteBuffer bytes = read(file);
+            bytes.putInt(8, ProgramCodec.VERSION + 1);
+            reseal(bytes);
+            Files.write(file, bytes.array());
+
+            FormulaLibrary library = FormulaLibrary.open(file);
+            for (int i = 0; i < FORMULAS.size(); i++) {
+                CompiledFormula expected = FormulaCalculator.compile(FORMULAS.get(i));
+                double[] args = args(expected.argumentCount());
+                assertEquals(expected.evaluate(args), library.get(FORMULAS.get(i)).evaluate(args));
+            }
+            assertEquals(FORMULAS.size(), library.reparsedCount());
+            assertEquals(0, library.decodedCount());
+        }
+
+        @Test
+        @DisplayName("A stored text that fails its checksum is reported")
+        void testCorruptText() throws IOException {
+            Path file = write(FORMULAS);
+            ByteBuffer bytes = read(file);
+            int offset = (int) bytes.getLong(entry(0));
+            bytes.put(offset, (byte) '#');
+            Files.write(file, bytes.array());
+
+            FormulaLibrary library = FormulaLibrary.open(file);
+            assertThrows(IllegalStateException.class, () -> library.get(0));
+            assertEquals(-1, library.indexOf(FORMULAS.get(0)));
+            assertEquals(12.0, library.get(FORMULAS.get(0)).evaluate(3, 4));
+        }
+
+        @Test
+        @DisplayName("Files that are not libraries or have a corrupt index are rejected")
+        void testRejected() throws IOException {
+            Path file = write(FORMULAS);
+            ByteBuffer bytes = read(file);
+
+            Path other = directory.resolve("other.bin");
+            Files.write(other, "not a formula library at all, just text".getBytes());
+            assertThrows(IOException.class, () -> FormulaLibrary.open(other));
+            Files.write(other, new byte[0]);
+            assertThrows(IOException.class, () -> FormulaLibrary.open(other));
+
+            ByteBuffer format = ByteBuffer.wrap(bytes.array().clone()).order(ByteOrder.LITTLE_ENDIAN);
+            format.putShort(4, (short) (FormulaLibrary.FORMAT_VERSION + 1));
+            reseal(format);
+            Files.write(other, format.array());
+            assertThrows(IOException.class, () -> FormulaLibrary.open(other));
+
+            ByteBuffer index = ByteBuffer.wrap(bytes.array().clone()).order(ByteOrder.LITTLE_ENDIAN);
+            index.putInt(entry(2) + 8, 1);
+            Files.write(other, index.array());
+            assertThrows(IOException.class, () -> FormulaLibrary.open(other));
+        }
+    }
+
+    @Nested
+    @DisplayName("Program encoding")
+    class Encoding {
+
+        @Test
+        @DisplayName("Malformed encodings are rejected")
+        void testMalformed() {
+            CompiledFormula formula = FormulaCalculator.compile("$a * 2 + sin($b)");
+            byte[] valid = ProgramCodec.encode(formula.argumentNames(), formula.program());
+            ProgramCodec.Decoded decoded = ProgramCodec.decode(ByteBuffer.wrap(valid), 0, valid.length);
+            assertEquals(formula.program().toString(), decoded.program.toString());
+
+            for (int length = 0; length < valid.length; length++) {
+                int truncated = length;
+                assertThrows(IllegalArgumentException.class,
+                    () -> ProgramCodec.decode(ByteBuffer.wrap(valid), 0, truncated), "length " + length);
+            }
+            byte[] trailing = java.util.Arrays.copyOf(valid, valid.length + 1);
+            assertThrows(IllegalArgumentException.class, () -> ProgramCodec.decode(ByteBuffer.wrap(trailing), 0, trailing.length));
+            // Argument count too large for the remaining bytes
+            byte[] count = valid.clone();
+            count[0] = 0x7F;
+            assertThrows(IllegalArgumentException.class, () -> ProgramCodec.decode(ByteBuffer.wrap(count), 0, count.length));
+        }
+    }
+}
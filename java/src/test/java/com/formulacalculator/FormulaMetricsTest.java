@@ -0,0 +1,251 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for FormulaMetrics and LatencyHistogram
+ */
+@DisplayName("Formula Metrics Tests")
+class FormulaMetricsTest {
+
+    @BeforeEach
+    void clear() {
+        FormulaMetrics.reset();
+    }
+
+    @AfterEach
+    void restoreDefaults() {
+        FormulaMetrics.setEnabled(false);
+        FormulaMetrics.setListener(null);
+        FormulaMetrics.reset();
+    }
+
+    @Nested
+    @DisplayName("Metrics")
+    class Metrics {
+
+        @Test
+        @DisplayName("Nothing is recorded while disabled")
+        void testDisabled() {
+            assertFalse(FormulaMetrics.isEnabled());
+            FormulaCalculator.compile("$a + 1").evaluate(2);
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile("$a +"));
+            assertEquals(0, FormulaMetrics.compileCount());
+            assertEquals(0, FormulaMetrics.evaluationCount());
+            assertEquals(0, FormulaMetrics.errorCount(ErrorCategory.SYNTAX));
+            assertEquals(0, FormulaMetrics.evaluationLatency().count());
+        }
+
+        @Test
+        @DisplayName("Compilations, evaluations and latencies are counted")
+        void testCounts() {
+            FormulaMetrics.setEnabled(true);
+            CompiledFormula formula = FormulaCalculator.compile("$a * $b + 1");
+            for (int i = 0; i < 10; i++) {
+                formula.evaluate(i, 2);
+            }
+            formula.evaluate(new double[] {1, 2});
+            formula.evaluate(Map.of("a", 1, "b", 2));
+            assertEquals(1, FormulaMetrics.compileCount());
+            assertEquals(12, FormulaMetrics.evaluationCount());
+            assertEquals(1, FormulaMetrics.compileLatency().count());
+            assertEquals(12, FormulaMetrics.evaluationLatency().count());
+            assertTrue(FormulaMetrics.evaluationLatency().max() > 0);
+        }
+
+        @Test
+        @DisplayName("Failures are counted by category")
+        void testErrorCategories() {
+            FormulaMetrics.setEnabled(true);
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile(" "));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc(null));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("2 * (3"));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("$x + $y", 1));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile("$x").evaluate(Map.of()));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("$x + $y", "one", 2));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("1 / $x", 0));
+            assertEquals(2, FormulaMetrics.errorCount(ErrorCategory.EMPTY_FORMULA));
+            assertEquals(1, FormulaMetrics.errorCount(ErrorCategory.SYNTAX));
+            assertEquals(2, FormulaMetrics.errorCount(ErrorCategory.MISSING_ARGUMENT));
+            assertEquals(1, FormulaMetrics.errorCount(ErrorCategory.INVALID_ARGUMENT));
+            assertEquals(1, FormulaMetrics.errorCount(ErrorCategory.INVALID_RESULT));
+            assertEquals(3, FormulaMetrics.evaluationLatency().count(), "rejected arguments are not timed");
+        }
+
+        @Test
+        @DisplayName("Hot spots rank formulas by total evaluation time")
+        void testHotSpots() {
+            FormulaMetrics.setEnabled(true);
+            CompiledFormula cheap = FormulaCalculator.compile("$a + 1");
+            CompiledFormula costly = FormulaCalculator.compile("sin($a) * cos($a) + exp($a) / log($a + 2) + sqrt($a) ^ 3");
+            for (int i = 0; i < 20_000; i++) {
+                costly.evaluate(i % 10);
+            }
+            cheap.evaluate(1);
+            assertThrows(IllegalArgumentException.class, () -> cheap.evaluate());
+            List<FormulaMetrics.HotSpot> hotSpots = FormulaMetrics.hotSpots(2);
+            assertEquals(2, hotSpots.size());
+            assertEquals(costly.formula(), hotSpots.get(0).formula());
+            assertEquals(20_000, hotSpots.get(0).evaluations());
+            assertTrue(hotSpots.get(0).meanNanos() > 0);
+            assertEquals(cheap.formula(), hotSpots.get(1).formula());
+            assertEquals(2, hotSpots.get(1).evaluations());
+            assertEquals(1, hotSpots.get(1).errors());
+            assertTrue(FormulaMetrics.hotSpots(0).isEmpty());
+        }
+
+        @Test
+        @DisplayName("A non-finite policy view shares the counters of its formula")
+        void testPolicyViewSharesCounters() {
+            FormulaMetrics.setEnabled(true);
+            CompiledFormula formula = FormulaCalculator.compile("1 / $a");
+            CompiledFormula view = formula.withNonFinitePolicy(NonFinitePolicy.RETURN_NAN);
+            view.evaluate(0);
+            formula.evaluate(2);
+            assertNotNull(formula.counters());
+            assertSame(formula.counters(), view.counters());
+            assertSame(view, view.withNonFinitePolicy(NonFinitePolicy.RETURN_NAN));
+            assertSame(formula.counters(), view.withNonFinitePolicy(NonFinitePolicy.THROW).counters());
+            assertEquals(2, FormulaMetrics.hotSpots(1).get(0).evaluations());
+        }
+    }
+
+    @Nested
+    @DisplayName("Listener")
+    class ListenerTests {
+
+        @Test
+        @DisplayName("The listener sees compilations and evaluations without enabling metrics")
+        void testListener() {
+            List<String> seen = Collections.synchronizedList(new ArrayList<>());
+            FormulaMetrics.setListener(new FormulaMetrics.Listener() {
+                @Override
+                public void compiled(String formula, long nanos, ErrorCategory error) {
+                    seen.add("compiled " + formula + " " + error);
+                }
+
+                @Override
+                public void evaluated(CompiledFormula formula, Tier tier, long nanos, ErrorCategory error) {
+                    seen.add("evaluated " + formula + " " + tier + " " + error);
+                }
+            });
+            CompiledFormula formula = FormulaCalculator.compile("2 / $a");
+            formula.evaluate(4);
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluate(0));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile("2 /"));
+            assertEquals(List.of(
+                "compiled 2 / $a null",
+                "evaluated 2 / $a INTERPRETED null",
+                "evaluated 2 / $a INTERPRETED INVALID_RESULT",
+                "compiled 2 / SYNTAX"), seen);
+            assertEquals(0, FormulaMetrics.evaluationCount());
+        }
+
+        @Test
+        @DisplayName("A failing listener does not break evaluation")
+        void testFailingListener() {
+            FormulaMetrics.setListener(new FormulaMetrics.Listener() {
+                @Override
+                public void evaluated(CompiledFormula formula, Tier tier, long nanos, ErrorCategory error) {
+                    throw new IllegalStateException("export failed");
+                }
+            });
+            assertEquals(5.0, FormulaCalculator.compile("$a + 3").evaluate(2));
+        }
+    }
+
+    @Nested
+    @DisplayName("Flight Recorder")
+    class FlightRecorder {
+
+        @TempDir
+        Path directory;
+
+        @Test
+        @DisplayName("Compilations and evaluations are recorded as events")
+        void testEvents() throws Exception {
+            Path file = directory.resolve("formulas.jfr");
+            CompiledFormula formula;
+            try (Recording recording = new Recording()) {
+                recording.enable("com.formulacalculator.Compile");
+                recording.enable("com.formulacalculator.Evaluate").withThreshold(Duration.ZERO);
+                recording.start();
+                formula = FormulaCalculator.compile("$a * 2", Backend.TIERED);
+                formula.evaluate(21);
+                assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile("$a *"));
+                recording.stop();
+                recording.dump(file);
+            }
+            assertFalse(FormulaMetrics.active);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            List<String> seen = new ArrayList<>();
+            for (RecordedEvent event : events) {
+                String name = event.getEventType().getName();
+                if (name.equals("com.formulacalculator.Compile")) {
+                    seen.add("compile " + event.getString("formula") + " " + event.getString("error"));
+                } else if (name.equals("com.formulacalculator.Evaluate")) {
+                    assertEquals(formula.formula().hashCode(), event.getInt("formulaHash"));
+                    seen.add("evaluate " + event.getString("tier"));
+                }
+            }
+            Collections.sort(seen);
+            assertEquals(List.of("compile $a * 2 null", "compile $a * SYNTAX", "evaluate INTERPRETED"), seen);
+        }
+    }
+
+    @Nested
+    @DisplayName("Latency histogram")
+    class Histogram {
+
+        @Test
+        @DisplayName("Buckets are contiguous and within 3% of their values")
+        void testBuckets() {
+            assertEquals(0, LatencyHistogram.bucket(0));
+            assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+            for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                long lowest = LatencyHistogram.lowestValue(bucket);
+                assertEquals(bucket, LatencyHistogram.bucket(lowest));
+                assertEquals(bucket - 1, LatencyHistogram.bucket(lowest - 1));
+                long width = LatencyHistogram.lowestValue(bucket) - LatencyHistogram.lowestValue(bucket - 1);
+                assertTrue(width <= Math.max(1, lowest / 32), "bucket " + bucket);
+            }
+        }
+
+        @Test
+        @DisplayName("Percentiles are estimated from the buckets")
+        void testPercentiles() {
+            LatencyHistogram histogram = new LatencyHistogram();
+            assertEquals(0, histogram.percentile(99));
+            for (int i = 1; i <= 1000; i++) {
+                histogram.record(i * 1000L);
+            }
+            histogram.record(-5);
+            assertEquals(1001, histogram.count());
+            assertEquals(1_000_000, histogram.max());
+            assertEquals(0, histogram.percentile(0));
+            assertEquals(500_000, histogram.percentile(50), 500_000 * 0.032);
+            assertEquals(990_000, histogram.percentile(99), 990_000 * 0.032);
+            assertEquals(1_000_000, histogram.percentile(100));
+            assertEquals(500_000.0, histogram.mean(), 1000);
+            assertThrows(IllegalArgumentException.class, () -> histogram.percentile(101));
+            histogram.reset();
+            assertEquals(0, histogram.count());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for FormulaSheet
+ */
+@DisplayName("Formula Sheet Tests")
+class FormulaSheetTest {
+
+    private static FormulaSheet invoice() {
+        FormulaSheet sheet = new FormulaSheet();
+        sheet.define("subtotal", "$quantity * $price");
+        sheet.define("tax", "$subtotal * $taxRate");
+        sheet.define("total", "$subtotal + $tax");
+        sheet.set(Map.of("quantity", 4, "price", 6, "taxRate", 0.25));
+        return sheet;
+    }
+
+    @Nested
+    @DisplayName("Definitions")
+    class Definitions {
+
+        @Test
+        @DisplayName("Formulas reference inputs and other formulas")
+        void testReferences() {
+            FormulaSheet sheet = invoice();
+            assertEquals(24.0, sheet.get("subtotal"));
+            assertEquals(6.0, sheet.get("$tax"));
+            assertEquals(30.0, sheet.get("total"));
+            assertEquals("$subtotal + $tax", sheet.formula("total"));
+            assertNull(sheet.formula("price"));
+            assertEquals(6, sheet.names().size());
+        }
+
+        @Test
+        @DisplayName("Redefining a formula recomputes its dependents")
+        void testRedefine() {
+            FormulaSheet sheet = invoice();
+            sheet.define("tax", "max($subtotal * $taxRate, 10)");
+            assertEquals(34.0, sheet.get("total"));
+            sheet.define("price", "$quantity + 1");
+            assertEquals(20.0, sheet.get("subtotal"));
+            assertEquals(30.0, sheet.get("total"));
+        }
+
+        @Test
+        @DisplayName("Circular references are rejected and leave the sheet unchanged")
+        void testCycles() {
+            FormulaSheet sheet = invoice();
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> sheet.define("quantity", "$total / 2"));
+            assertEquals("Invalid formula: circular reference $quantity -> $total -> $subtotal -> $quantity", e.getMessage());
+            assertThrows(IllegalArgumentException.class, () -> sheet.define("x", "$x + 1"));
+            assertNull(sheet.formula("quantity"));
+            assertFalse(sheet.contains("x"));
+            sheet.set("quantity", 2);
+            assertEquals(15.0, sheet.get("total"));
+        }
+
+        @Test
+        @DisplayName("Invalid names, formulas and operations are rejected")
+        void testErrors() {
+            FormulaSheet sheet = invoice();
+            assertThrows(IllegalArgumentException.class, () -> sheet.define("1st", "1"));
+            assertThrows(IllegalArgumentException.class, () -> sheet.define("bad", "1 +"));
+            assertThrows(IllegalArgumentException.class, () -> sheet.set("total", 1));
+            assertThrows(IllegalArgumentException.class, () -> sheet.get("missing"));
+            assertThrows(IllegalArgumentException.class, () -> sheet.remove("subtotal"));
+            sheet.define("ratio", "$total / $discount");
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> sheet.get("discount"));
+            assertEquals("Invalid formula: no value set for input $discount", e.getMessage());
+            assertThrows(IllegalArgumentException.class, () -> sheet.get("ratio"));
+            sheet.set("discount", 0);
+            assertThrows(IllegalArgumentException.class, () -> sheet.get("ratio"));
+            sheet.set("discount", 3);
+            assertEquals(10.0, sheet.get("ratio"));
+            sheet.remove("ratio");
+            assertFalse(sheet.contains("ratio"));
+        }
+
+        @Test
+        @DisplayName("Formulas depending on an unset input report it, even when optimized away")
+        void testUnsetInput() {
+            FormulaSheet sheet = new FormulaSheet();
+            sheet.define("f", "$a ^ 0");
+            sheet.define("g", "$a + 1");
+            sheet.define("h", "$f * 2");
+            for (String name : new String[] {"f", "g", "h"}) {
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> sheet.get(name));
+                assertEquals("Invalid formula: no value set for input $a", e.getMessage());
+            }
+            sheet.set("a", 4);
+            assertEquals(1.0, sheet.get("f"));
+            assertEquals(5.0, sheet.get("g"));
+            assertEquals(2.0, sheet.get("h"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Incremental recalculation")
+    class IncrementalRecalculation {
+
+        @Test
+        @DisplayName("Only cells downstream of a change are recomputed")
+        void testAffectedOnly() {
+            FormulaSheet sheet = new FormulaSheet();
+            for (int i = 0; i < 1000; i++) {
+                sheet.define("cell" + i, "$input" + i + " * 2");
+            }
+            sheet.define("sum", "$cell0 + $cell1");
+            long before = sheet.evaluationCount();
+            sheet.set("input500", 3);
+            assertEquals(1, sheet.evaluationCount() - before);
+            assertEquals(6.0, sheet.get("cell500"));
+
+            before = sheet.evaluationCount();
+            sheet.set(Map.of("input0", 1, "input1", 2));
+            assertEquals(3, sheet.evaluationCount() - before);
+            assertEquals(6.0, sheet.get("sum"));
+        }
+
+        @Test
+        @DisplayName("Unchanged values do not propagate")
+        void testEarlyCutoff() {
+            FormulaSheet sheet = new FormulaSheet();
+            sheet.define("sign", "min(max($x, -1), 1)");
+            sheet.define("a", "$sign * 10");
+            sheet.define("b", "$a + $sign");
+            sheet.set("x", 5);
+            assertEquals(11.0, sheet.get("b"));
+            long before = sheet.evaluationCount();
+            sheet.set("x", 7);
+            assertEquals(1, sheet.evaluationCount() - before);
+            sheet.set("x", 7);
+            assertEquals(1, sheet.evaluationCount() - before);
+        }
+
+        @Test
+        @DisplayName("Diamonds are evaluated once per change in dependency order")
+        void testDiamond() {
+            FormulaSheet sheet = new FormulaSheet();
+            sheet.define("d", "$b + $c");
+            sheet.define("b", "$a * 2");
+            sheet.define("c", "$b + $a");
+            sheet.set("a", 1);
+            assertEquals(5.0, sheet.get("d"));
+            long before = sheet.evaluationCount();
+            sheet.set("a", 2);
+            assertEquals(10.0, sheet.get("d"));
+            assertEquals(3, sheet.evaluationCount() - before);
+        }
+
+        @Test
+        @DisplayName("Parallel sheets compute the same values")
+        void testParallel() {
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                FormulaSheet sequential = new FormulaSheet();
+                FormulaSheet parallel = new FormulaSheet(pool);
+                for (FormulaSheet sheet : new FormulaSheet[] {sequential, parallel}) {
+                    for (int i = 0; i < 2000; i++) {
+                        sheet.define("branch" + i, "sin($x * " + i + ") * exp($y / " + (i + 1) + ")");
+                        sheet.define("leaf" + i, "$branch" + i + " + sqrt(abs($branch" + i + "))");
+                    }
+                    sheet.set(Map.of("x", 0.5, "y", 2));
+                }
+                for (int i = 0; i < 2000; i++) {
+                    assertEquals(sequential.get("leaf" + i), parallel.get("leaf" + i));
+                }
+                assertEquals(sequential.evaluationCount(), parallel.evaluationCount());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for evaluation over off-heap columns
+ */
+@DisplayName("Mapped Columns Tests")
+class MappedColumnsTest {
+
+    private static final int ROWS = 5000;
+
+    @TempDir
+    Path directory;
+
+    private static double[][] columns() {
+        double[][] columns = new double[2][ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            columns[0][i] = i * 0.25;
+            columns[1][i] = i % 50 - 10;
+        }
+        return columns;
+    }
+
+    @Test
+    @DisplayName("Formulas evaluate memory-mapped files into a mapped output")
+    void testMappedFiles() throws IOException {
+        double[][] columns = columns();
+        Path input = directory.resolve("columns.bin");
+        Path output = directory.resolve("result.bin");
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.allocate(2 * ROWS * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.asDoubleBuffer().put(columns[0]).put(columns[1]);
+            channel.write(bytes);
+        }
+
+        CompiledFormula formula = FormulaCalculator.compile("sqrt($x) * $y + $x / $y", Backend.VECTOR);
+        double[] expected = new double[ROWS];
+        long[] expectedErrors = new long[(ROWS + 63) / 64];
+        int expectedInvalid = formula.evaluateBatch(columns, 0, ROWS, expected, expectedErrors);
+        assertTrue(expectedInvalid > 0);
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DoubleBuffer x = MappedColumns.read(in, 0, ROWS);
+            DoubleBuffer y = MappedColumns.read(in, (long) ROWS * Double.BYTES, ROWS);
+            DoubleBuffer result = MappedColumns.write(out, 0, ROWS);
+            long[] errors = new long[expectedErrors.length];
+            assertEquals(expectedInvalid, formula.evaluateBatch(new DoubleBuffer[] {x, y}, 0, ROWS, result, errors));
+            assertArrayEquals(expectedErrors, errors);
+            assertEquals(0, x.position());
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(new DoubleBuffer[] {x, y}, x));
+        }
+        try (FileChannel in = FileChannel.open(output, StandardOpenOption.READ)) {
+            assertEquals((long) ROWS * Double.BYTES, in.size());
+            double[] actual = new double[ROWS];
+            MappedColumns.read(in, 0, ROWS).get(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    @DisplayName("Heap, direct and big-endian buffers give the same results")
+    void testBufferKinds() {
+        double[][] columns = columns();
+        CompiledFormula formula = FormulaCalculator.compile("max($x, $y) - floor($x) * 2");
+        double[] expected = new double[ROWS];
+        formula.evaluateBatch(columns, expected);
+
+        DoubleBuffer[] heap = {DoubleBuffer.wrap(columns[0]), DoubleBuffer.wrap(columns[1])};
+        DoubleBuffer[] direct = new DoubleBuffer[2];
+        for (int slot = 0; slot < 2; slot++) {
+            direct[slot] = ByteBuffer.allocateDirect(ROWS * Double.BYTES).order(ByteOrder.BIG_ENDIAN).asDoubleBuffer();
+            direct[slot].put(columns[slot]);
+        }
+        for (DoubleBuffer[] buffers : new DoubleBuffer[][] {heap, direct}) {
+            DoubleBuffer out = ByteBuffer.allocateDirect(ROWS * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            assertEquals(0, formula.evaluateBatch(buffers, out));
+            double[] actual = new double[ROWS];
+            out.get(0, actual);
+            assertArrayEquals(expected, actual);
+        }
+
+        DoubleBuffer partial = DoubleBuffer.allocate(ROWS);
+        assertEquals(0, formula.evaluateBatch(heap, 100, 10, partial, null));
+        assertEquals(expected[105], partial.get(105));
+        assertEquals(0.0, partial.get(99));
+        assertThrows(IllegalArgumentException.class, () -> formula.evaluateBatch(heap, 0, ROWS + 1, DoubleBuffer.allocate(ROWS + 1), null));
+    }
+}
@@ -0,0 +1,150 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the Optimizer
+ */
+@DisplayName("Optimizer Tests")
+class OptimizerTest {
+
+    private static Program optimize(String formula) {
+        return FormulaCalculator.compile(formula).program();
+    }
+
+    private static long count(Program program, Operation operation) {
+        return Arrays.stream(program.operations).filter(op -> op == operation).count();
+    }
+
+    @Nested
+    @DisplayName("Constant folding")
+    class ConstantFolding {
+
+        @Test
+        @DisplayName("Constant subtrees are evaluated once at compile time")
+        void testFolding() {
+            Program program = optimize("sqrt(16) + 2 * pi");
+            assertEquals(0, program.size());
+            assertEquals(4 + 2 * Math.PI, program.constants[0]);
+
+            program = optimize("$x * (sqrt(16) + 2 * pi)");
+            assertEquals(1, program.size());
+            assertEquals(Operation.MULTIPLY, program.operations[0]);
+        }
+
+        @Test
+        @DisplayName("random() is never folded or shared")
+        void testRandomNotFolded() {
+            Program program = optimize("random() - random()");
+            assertEquals(2, count(program, Operation.RANDOM));
+        }
+
+        @Test
+        @DisplayName("Folded division by zero is still rejected")
+        void testFoldedDivisionByZero() {
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("1 / 0"));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.calc("$x + 1 / 0", 1));
+        }
+    }
+
+    @Nested
+    @DisplayName("Strength reduction")
+    class StrengthReduction {
+
+        @Test
+        @DisplayName("Squares become multiplications")
+        void testSquares() {
+            Program program = optimize("pow($x, 2) + $y ^ 2");
+            assertEquals(0, count(program, Operation.POW) + count(program, Operation.POWER));
+            assertEquals(2, count(program, Operation.MULTIPLY));
+        }
+
+        @Test
+        @DisplayName("Identities are removed")
+        void testIdentities() {
+            assertEquals(0, optimize("$x ^ 1 * 1 / 1 - 0").size());
+            assertEquals(0, optimize("--$x").size());
+            assertEquals(0, optimize("pow($x, 0)").size());
+        }
+    }
+
+    @Nested
+    @DisplayName("Common subexpressions")
+    class CommonSubexpressions {
+
+        @Test
+        @DisplayName("Repeated subterms are computed once")
+        void testSharedSubterms() {
+            Program program = optimize("sin($angle) * $r + sin($angle) * $k");
+            assertEquals(1, count(program, Operation.SIN));
+            assertEquals(2, count(program, Operation.MULTIPLY));
+        }
+
+        @Test
+        @DisplayName("Commutative operands are shared regardless of order")
+        void testCommutativeSharing() {
+            Program program = optimize("$a * $b + $b * $a + max($a, $b) - max($b, $a)");
+            assertEquals(1, count(program, Operation.MULTIPLY));
+            assertEquals(1, count(program, Operation.MAX));
+        }
+    }
+
+    @Nested
+    @DisplayName("Exactness")
+    class Exactness {
+
+        @Test
+        @DisplayName("Optimized programs match the unoptimized tree bit for bit")
+        void testMatchesTree() {
+            String[] formulas = {
+                "sqrt(pow($base, 2) + pow($height, 2))", "sqrt($base^2 + $height^2)", "$x ^ 2 - $x * $x",
+                "sin($x) * $y + sin($x) * $x", "$x ^ 1 * 1 / 1 - 0 + --$y", "pow($x, 0) + pow($y, -0)",
+                "min($x, $y) + min($y, $x) * max($x, $y)", "round($x) - round($y) + floor($x / $y)", "2 * pi * $x - e ^ $y"
+            };
+            double[] specials = {0.0, -0.0, 1.0, -1.0, 2.5, -2.5, 1e300, -1e-300, Double.NaN,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, 3.0, 0.1};
+            for (String text : formulas) {
+                CompiledFormula formula = FormulaCalculator.compile(text);
+                CompiledFormula generated = FormulaCalculator.compile(text, Backend.BYTECODE);
+                Program program = formula.program();
+                double[] registers = new double[program.registerCount()];
+                for (double x : specials) {
+                    for (double y : specials) {
+                        double[] args = {x, y};
+                        double expected = formula.root().eval(args);
+                        assertEquals(expected, program.run(args, registers), text + " at " + x + ", " + y);
+                        assertEquals(expected, generated.kernel().apply(args), text + " at " + x + ", " + y);
+                    }
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Squares match Math.pow at subnormal, overflow and special values")
+        void testSquareEdges() {
+            double root = Math.sqrt(Double.MAX_VALUE);
+            double[] values = {Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, Math.nextDown(Double.MIN_NORMAL),
+                1e-160, -1e-160, 1.5e-154, 1e-162, 1.3e154, -1.3e154, root, Math.nextUp(root), Math.nextDown(root),
+                -root, Double.MAX_VALUE, 0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                0.1, -0.1, 1.0 / 3.0, Math.PI, Math.nextUp(1.0), Math.nextDown(1.0)};
+            CompiledFormula formula = FormulaCalculator.compile("$x ^ 2");
+            Program program = formula.program();
+            assertEquals(1, count(program, Operation.MULTIPLY));
+            double[] registers = new double[program.registerCount()];
+            Random random = new Random(8);
+            for (int i = 0; i < values.length + 100_000; i++) {
+                double x = i < values.length ? values[i] : Double.longBitsToDouble(random.nextLong());
+                double[] args = {x};
+                long expected = Double.doubleToRawLongBits(Math.pow(x, 2));
+                assertEquals(expected, Double.doubleToRawLongBits(x * x), "x = " + x);
+                assertEquals(expected, Double.doubleToRawLongBits(formula.root().eval(args)), "x = " + x);
+                assertEquals(expected, Double.doubleToRawLongBits(program.run(args, registers)), "x = " + x);
+            }
+        }
+    }
+}
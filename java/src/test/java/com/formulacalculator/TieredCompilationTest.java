@@ -0,0 +1,153 @@
+package com.formulacalculator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for tiered execution
+ */
+@DisplayName("Tiered Compilation Tests")
+class TieredCompilationTest {
+
+    @AfterEach
+    void restoreDefaults() {
+        TieredCompilation.setThreshold(TieredCompilation.DEFAULT_THRESHOLD);
+        TieredCompilation.setListener(null);
+    }
+
+    private static void awaitTier(CompiledFormula formula, Tier expected) throws InterruptedException {
+        for (int i = 0; i < 500 && formula.tier() != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, formula.tier());
+    }
+
+    @Nested
+    @DisplayName("Promotion")
+    class Promotion {
+
+        @Test
+        @DisplayName("Formulas are interpreted until the threshold and then compiled")
+        void testThreshold() throws InterruptedException {
+            TieredCompilation.setThreshold(50);
+            long promotions = TieredCompilation.promotionCount();
+            CompiledFormula formula = FormulaCalculator.compile("sqrt($a * $a + $b * $b)", Backend.TIERED);
+            assertEquals(Backend.TIERED, formula.backend());
+            for (int i = 0; i < 49; i++) {
+                assertEquals(5.0, formula.evaluate(3, 4));
+            }
+            assertEquals(Tier.INTERPRETED, formula.tier());
+            assertEquals(49, formula.invocationCount());
+            assertEquals(5.0, formula.evaluate(3, 4));
+            assertNotEquals(Tier.INTERPRETED, formula.tier());
+            awaitTier(formula, Tier.COMPILED);
+            assertEquals(promotions + 1, TieredCompilation.promotionCount());
+            assertTrue(TieredCompilation.compilationNanos() > 0);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(13.0, formula.evaluate(5, 12));
+            }
+            assertEquals(50, formula.invocationCount());
+            assertThrows(IllegalArgumentException.class, () -> formula.evaluate(1));
+            assertThrows(IllegalArgumentException.class, () -> FormulaCalculator.compile("log($a)", Backend.TIERED).evaluate(-1));
+        }
+
+        @Test
+        @DisplayName("Transitions are reported to the listener")
+        void testListener() throws InterruptedException {
+            TieredCompilation.setThreshold(0);
+            List<String> transitions = Collections.synchronizedList(new ArrayList<>());
+            CompiledFormula formula = FormulaCalculator.compile("$a + 1", Backend.TIERED);
+            TieredCompilation.setListener((compiled, from, to) -> {
+                if (compiled == formula) {
+                    transitions.add(from + "->" + to);
+                }
+                throw new IllegalStateException("ignored");
+            });
+            assertEquals(Tier.INTERPRETED, formula.tier());
+            assertEquals(2.0, formula.evaluate(1));
+            awaitTier(formula, Tier.COMPILED);
+            for (int i = 0; i < 100 && transitions.size() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of("INTERPRETED->COMPILING", "COMPILING->COMPILED"), transitions);
+        }
+
+        @Test
+        @DisplayName("Formulas too large for generated code stay interpreted")
+        void testTooLarge() throws InterruptedException {
+            TieredCompilation.setThreshold(1);
+            StringBuilder text = new StringBuilder("0");
+            for (int i = 1; i <= 7000; i++) {
+                text.append(" + sin($a + ").append(i).append(')');
+            }
+            long failures = TieredCompilation.failureCount();
+            CompiledFormula formula = FormulaCalculator.compile(text.toString(), Backend.TIERED);
+            double expected = formula.evaluate(0.5);
+            for (int i = 0; i < 500 && TieredCompilation.failureCount() == failures; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(failures + 1, TieredCompilation.failureCount());
+            assertEquals(Tier.INTERPRETED, formula.tier());
+            assertTrue(((TieredKernel) formula.kernel()).failed());
+            assertEquals(expected, formula.evaluate(0.5));
+        }
+
+        @Test
+        @DisplayName("Concurrent evaluation across the promotion gives correct results")
+        void testConcurrentPromotion() throws Exception {
+            TieredCompilation.setThreshold(1000);
+            CompiledFormula formula = FormulaCalculator.compile("$a * $b - $a / 4", Backend.TIERED);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    results.add(executor.submit(() -> {
+                        for (int i = 0; i < 200_000; i++) {
+                            if (formula.evaluate(i, 2) != i * 2.0 - i / 4.0) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }));
+                }
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+            awaitTier(formula, Tier.COMPILED);
+        }
+    }
+
+    @Nested
+    @DisplayName("Configuration")
+    class Configuration {
+
+        @Test
+        @DisplayName("Other backends report a fixed tier")
+        void testFixedTiers() {
+            assertEquals(Tier.INTERPRETED, FormulaCalculator.compile("$a", Backend.INTERPRETER).tier());
+            assertEquals(Tier.COMPILED, FormulaCalculator.compile("$a", Backend.BYTECODE).tier());
+            assertEquals(0, FormulaCalculator.compile("$a").invocationCount());
+        }
+
+        @Test
+        @DisplayName("calc uses tiered formulas and the threshold is validated")
+        void testCalcAndThreshold() {
+            assertEquals(7.0, FormulaCalculator.calc("$a + $b + 0.5", 2.5, 4));
+            assertEquals(Backend.TIERED, FormulaCalculator.cache().get("$a + $b + 0.5").backend());
+            assertThrows(IllegalArgumentException.class, () -> TieredCompilation.setThreshold(-1));
+            assertEquals(TieredCompilation.DEFAULT_THRESHOLD, TieredCompilation.threshold());
+        }
+    }
+}